@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.content.Context;
+
+import com.mikebl71.android.websms.connector.cabbage.core.ErrorClass;
+
+/**
+ * Health of the accounts, from the outcomes and latencies of their recent requests (see {@link HealthRecord}).
+ * 
+ * A quarantined account is left out of automatic balance refreshes and of account pools for a while.
+ * A successful request, such as a send the user makes with the account, ends the quarantine.
+ */
+public class AccountHealth {
+
+	// Health by account id
+	private static final Map<String, HealthRecord> HEALTH = new ConcurrentHashMap<String, HealthRecord>();
+
+	// Message templates for balances with the health score
+	private static String balanceTemplate;
+	private static String quarantinedBalanceTemplate;
+
+
+	/**
+	 * Loads the message templates. Does nothing if they are already loaded.
+	 */
+	public static synchronized void init(final Context context) {
+		if (balanceTemplate == null) {
+			quarantinedBalanceTemplate = context.getString(R.string.health_balance_quarantined);
+			balanceTemplate = context.getString(R.string.health_balance);
+		}
+	}
+
+	/**
+	 * Records a successful request of the account.
+	 */
+	public static void recordSuccess(final String accId, final long latencyMs) {
+		final HealthRecord health = getHealth(accId);
+		synchronized (health) {
+			health.recordSuccess(latencyMs);
+		}
+	}
+
+	/**
+	 * Records a failed request of the account, with the class of the gateway error (null for I/O errors).
+	 * To be called once per request, after its retries.
+	 */
+	public static void recordFailure(final String accId, final ErrorClass errorClass) {
+		final HealthRecord health = getHealth(accId);
+		synchronized (health) {
+			health.recordFailure(errorClass, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Forgets the history of the account, e.g. after its credentials changed.
+	 */
+	public static void clear(final String accId) {
+		HEALTH.remove(accId);
+	}
+
+	/**
+	 * Checks if the account is quarantined.
+	 */
+	public static boolean isQuarantined(final String accId) {
+		final HealthRecord health = HEALTH.get(accId);
+		if (health == null) {
+			return false;
+		}
+		synchronized (health) {
+			return health.isQuarantined(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Returns the smoothed latency (in ms) of successful requests of the account, or -1 if not known.
+	 */
+	public static long getAvgLatency(final String accId) {
+		final HealthRecord health = HEALTH.get(accId);
+		if (health == null) {
+			return -1;
+		}
+		synchronized (health) {
+			return health.getAvgLatency();
+		}
+	}
+
+	/**
+	 * Returns the health score (0-100) of the account, or -1 if it has made no requests yet.
+	 */
+	public static int getScore(final String accId) {
+		final HealthRecord health = HEALTH.get(accId);
+		if (health == null) {
+			return -1;
+		}
+		synchronized (health) {
+			return health.getScore();
+		}
+	}
+
+	/**
+	 * Returns the balance of the account to be shown to the user, with the health score if known.
+	 */
+	public static String formatBalance(final String accId, final String balance) {
+		final int score = getScore(accId);
+		if (balance == null || score < 0 || balanceTemplate == null) {
+			return balance;
+		}
+		return MessageFormat.format(isQuarantined(accId) ? quarantinedBalanceTemplate : balanceTemplate,
+				balance, score);
+	}
+
+	/**
+	 * Returns the balance from a balance shown to the user, i.e. without the health score.
+	 */
+	public static String parseBalance(final String shownBalance) {
+		if (shownBalance == null) {
+			return null;
+		}
+		final int spaceIdx = shownBalance.indexOf(' ');
+		return spaceIdx >= 0 ? shownBalance.substring(0, spaceIdx) : shownBalance;
+	}
+
+
+	private static HealthRecord getHealth(final String accId) {
+		HealthRecord health = HEALTH.get(accId);
+		if (health == null) {
+			synchronized (HEALTH) {
+				health = HEALTH.get(accId);
+				if (health == null) {
+					health = new HealthRecord();
+					HEALTH.put(accId, health);
+				}
+			}
+		}
+		return health;
+	}
+
+}
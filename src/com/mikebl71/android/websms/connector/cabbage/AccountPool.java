@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+
+/**
+ * Pool of all accounts configured for the same provider.
+ * 
+ * A pool is exposed to WebSMS as an extra subconnector with id "pool_P" where P is the provider.
+ * Sends through a pool are spread across the healthy accounts of the provider,
+ * weighted by their remaining balance and recent latency (see {@link AccountHealth}).
+ * Quarantined and exhausted accounts are left out; a send fails if no account is left.
+ */
+public class AccountPool {
+
+	// Prefix of pool subconnector ids
+	private static final String POOL_ID_PREFIX = "pool_";
+
+	// Balance assumed for accounts whose balance is not known yet
+	private static final int UNKNOWN_BALANCE = 10;
+
+	// Latency (in ms) at which an account's weight is halved
+	private static final long REFERENCE_LATENCY_MS = 5000;
+
+
+	/**
+	 * Checks if the subconnector id is a pool id.
+	 */
+	public static boolean isPoolId(final String subId) {
+		return subId != null && subId.startsWith(POOL_ID_PREFIX);
+	}
+
+	/**
+	 * Returns the pool id for the provider.
+	 */
+	public static String getPoolId(final String provider) {
+		return POOL_ID_PREFIX + provider;
+	}
+
+	/**
+	 * Returns the provider of the pool.
+	 */
+	public static String getProvider(final String poolId) {
+		return poolId.substring(POOL_ID_PREFIX.length());
+	}
+
+	/**
+	 * Returns providers that have more than one account, each with the display name of the provider.
+	 */
+	public static Map<String, String> getPooledProviders(final SharedPreferences prefs, final List<String> accIds) {
+		final Map<String, String> displayNames = new LinkedHashMap<String, String>();
+		final Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+
+		for (String accId : accIds) {
+			final String provider = AccountPreferences.getProvider(prefs, accId);
+			if (provider != null) {
+				final Integer count = counts.get(provider);
+				counts.put(provider, count == null ? 1 : count + 1);
+				final String displayName = AccountPreferences.getDisplayProvider(prefs, accId);
+				displayNames.put(provider, displayName != null ? displayName : provider);
+			}
+		}
+
+		final Map<String, String> pooled = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (entry.getValue() > 1) {
+				pooled.put(entry.getKey(), displayNames.get(entry.getKey()));
+			}
+		}
+		return pooled;
+	}
+
+	/**
+	 * Returns ids of all accounts of the provider that can currently be used,
+	 * i.e. not quarantined and not out of texts.
+	 * A single failed request does not leave an account out, only a quarantine does.
+	 * Returns an empty list if none of the accounts is healthy.
+	 */
+	public static List<String> getHealthyMembers(final SharedPreferences prefs, final String provider) {
+		final List<String> healthy = new ArrayList<String>();
+
+		for (String accId : AccountPreferences.getAccountIds(prefs)) {
+			if (provider.equals(AccountPreferences.getProvider(prefs, accId))) {
+				if (!AccountHealth.isQuarantined(accId) && getBalance(accId) != 0) {
+					healthy.add(accId);
+				}
+			}
+		}
+		return healthy;
+	}
+
+	/**
+	 * Assigns each chunk of recipients to one of the accounts.
+	 * Each chunk goes to the account with the best weight, where the weight is the balance remaining
+	 * after the chunks already assigned to the account, reduced for accounts with high latency.
+	 */
+	public static List<String> assignChunks(final List<String> accIds, final List<String[]> chunks) {
+		final double[] remaining = new double[accIds.size()];
+		for (int idx = 0; idx < accIds.size(); idx++) {
+			final int balance = getBalance(accIds.get(idx));
+			remaining[idx] = balance < 0 ? UNKNOWN_BALANCE : balance;
+		}
+
+		final List<String> assignment = new ArrayList<String>(chunks.size());
+		for (String[] chunk : chunks) {
+			int bestIdx = 0;
+			double bestWeight = -Double.MAX_VALUE;
+			for (int idx = 0; idx < accIds.size(); idx++) {
+				final double weight = remaining[idx] * getLatencyFactor(accIds.get(idx));
+				if (weight > bestWeight) {
+					bestWeight = weight;
+					bestIdx = idx;
+				}
+			}
+			remaining[bestIdx] -= chunk.length;
+			assignment.add(accIds.get(bestIdx));
+		}
+		return assignment;
+	}
+
+	/**
+	 * Returns the combined balance of the accounts of the provider or null if none of them is known.
+	 */
+	public static String getPoolBalance(final SharedPreferences prefs, final String provider) {
+		int total = 0;
+		boolean known = false;
+		for (String accId : AccountPreferences.getAccountIds(prefs)) {
+			if (provider.equals(AccountPreferences.getProvider(prefs, accId))) {
+				final int balance = getBalance(accId);
+				if (balance >= 0) {
+					total += balance;
+					known = true;
+				}
+			}
+		}
+		return known ? Integer.toString(total) : null;
+	}
+
+	/**
+	 * Returns the balance of the account or -1 if not known.
+	 */
+	private static int getBalance(final String accId) {
+		final String balance = BalanceState.getValue(accId);
+		if (balance != null) {
+			try {
+				return Integer.parseInt(balance.trim());
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a factor in (0, 1] that reduces the weight of slow accounts.
+	 */
+	private static double getLatencyFactor(final String accId) {
+		final long avgLatencyMs = AccountHealth.getAvgLatency(accId);
+		if (avgLatencyMs < 0) {
+			return 1.0;
+		}
+		return (double) REFERENCE_LATENCY_MS / (REFERENCE_LATENCY_MS + avgLatencyMs);
+	}
+
+}
@@ -23,13 +23,17 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.text.TextUtils;
 
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageProtocol;
+
 /**
  * Helper class for getting/setting account preferences
- * in the SharedPreferences or in a Bundle.
+ * in the {@link AccountStore} or in a Bundle.
  * 
- * Account preferences are stored in the SharedPreferences using keys in the form of
- * "account_N_pref" where N is the account id.
- * So, for example, a preference with key "account_2_label" will store the label of the account #2.
+ * The SharedPreferences arguments are kept for compatibility of the helpers;
+ * accounts themselves live in the AccountStore, which must be open.
+ * Older versions stored account preferences in the SharedPreferences using keys in the form of
+ * "account_N_pref" where N is the account id, e.g. "account_2_label" for the label of the account #2.
+ * Such preferences are moved into the AccountStore when it is created.
  * 
  * Bundles are used to pass account preferences between activities.
  * Account preferences are stored in a Bundle using keys in the form of "account__pref". 
@@ -43,7 +47,11 @@ public class AccountPreferences {
 	public static final String ACCOUNT_BUNDLE = "account_bundle";
 
 	// Some important providers
-	public static final String PROVIDER_VODAFONE = "v";
+	public static final String PROVIDER_VODAFONE = CabbageProtocol.PROVIDER_VODAFONE;
+	public static final String PROVIDER_METEOR = "m";
+	public static final String PROVIDER_THREE = "t";
+	public static final String PROVIDER_TESCO = "te";
+	public static final String PROVIDER_EMOBILE = "em";
 
 	// --- Private constants ---
 
@@ -83,40 +91,45 @@ public class AccountPreferences {
 		COOKIES_ACC_PREF_SUFFIX }; 
 
 
-	// --- Getters/Setters for preferences stored in the SharedPreferences ---
+	// --- Getters/Setters for preferences stored in the AccountStore ---
 
 	public static String getLabel(SharedPreferences prefs, String accId) {
-		return prefs.getString(ACC_PREF_PREFIX + accId + LABEL_ACC_PREF_SUFFIX, null);
+		AccountStore.Account account = AccountStore.get().getAccount(accId);
+		return account != null ? account.getLabel() : null;
 	}
 
 	public static String getProvider(SharedPreferences prefs, String accId) {
-		return prefs.getString(ACC_PREF_PREFIX + accId + PROVIDER_ACC_PREF_SUFFIX, null);
+		AccountStore.Account account = AccountStore.get().getAccount(accId);
+		return account != null ? account.getProvider() : null;
 	}
 
 	public static String getListedProvider(SharedPreferences prefs, String accId) {
-		return prefs.getString(ACC_PREF_PREFIX + accId + LISTEDPROV_ACC_PREF_SUFFIX, null);
+		AccountStore.Account account = AccountStore.get().getAccount(accId);
+		return account != null ? account.getListedProvider() : null;
 	}
 
 	public static String getDisplayProvider(SharedPreferences prefs, String accId) {
-		return prefs.getString(ACC_PREF_PREFIX + accId + DISPLAYPROV_ACC_PREF_SUFFIX, null);
+		AccountStore.Account account = AccountStore.get().getAccount(accId);
+		return account != null ? account.getDisplayProvider() : null;
 	}
 
 	public static String getUsername(SharedPreferences prefs, String accId) {
-		return prefs.getString(ACC_PREF_PREFIX + accId + USERNAME_ACC_PREF_SUFFIX, null);
+		AccountStore.Account account = AccountStore.get().getAccount(accId);
+		return account != null ? account.getUsername() : null;
 	}
 
 	public static String getPassword(SharedPreferences prefs, String accId) {
-		return prefs.getString(ACC_PREF_PREFIX + accId + PASSWORD_ACC_PREF_SUFFIX, null);
+		AccountStore.Account account = AccountStore.get().getAccount(accId);
+		return account != null ? account.getPassword() : null;
 	}
 
 	public static String getCookies(SharedPreferences prefs, String accId) {
-		return prefs.getString(ACC_PREF_PREFIX + accId + COOKIES_ACC_PREF_SUFFIX, null);
+		AccountStore.Account account = AccountStore.get().getAccount(accId);
+		return account != null ? account.getCookies() : null;
 	}
 
 	public static void setCookies(SharedPreferences prefs, String accId, String cookies) {
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putString(ACC_PREF_PREFIX + accId + COOKIES_ACC_PREF_SUFFIX, cookies);
-		editor.commit();
+		AccountStore.get().setCookies(accId, cookies);
 	}
 
 
@@ -185,89 +198,38 @@ public class AccountPreferences {
 	 * Returns list of all known account ids in the numerically ascending order. 
 	 */
 	public static List<String> getAccountIds(SharedPreferences prefs) {
-		List<String> accIds = new ArrayList<String>();
-		List<Integer> accNumIds = new ArrayList<Integer>();
-
-		for (String key : prefs.getAll().keySet()) {
-			if (key.startsWith(ACC_PREF_PREFIX) && key.endsWith(LABEL_ACC_PREF_SUFFIX)) {
-
-				String accId = key.substring(ACC_PREF_PREFIX.length(), key.length() - LABEL_ACC_PREF_SUFFIX.length());
-				int accNumId = Integer.parseInt(accId);
-
-				// order numerically for consistency
-				int idx = 0;
-				for (; idx < accNumIds.size(); idx++) {
-					if (accNumId < accNumIds.get(idx)) {
-						break;
-					}
-				}
-				if (idx < accNumIds.size()) {
-					accNumIds.add(idx, accNumId);
-					accIds.add(idx, accId);
-				} else {
-					accNumIds.add(accNumId);
-					accIds.add(accId);
-				}
-			}
-		}
-		return accIds;
+		return AccountStore.get().getAccountIds();
 	}
 
 	/**
 	 * Returns the next free account id. 
 	 */
 	public static String getNextAccountId(SharedPreferences prefs) {
-		int lastAccNumId = 0;
-
-		for (String key : prefs.getAll().keySet()) {
-			if (key.startsWith(ACC_PREF_PREFIX) && key.endsWith(LABEL_ACC_PREF_SUFFIX)) {
-
-				String accId = key.substring(ACC_PREF_PREFIX.length(), key.length() - LABEL_ACC_PREF_SUFFIX.length());
-				int accNumId = Integer.parseInt(accId);
-
-				if (accNumId > lastAccNumId) {
-					lastAccNumId = accNumId;
-				}
-			}
-		}
-		return Integer.toString(lastAccNumId + 1);
+		return AccountStore.get().getNextAccountId();
 	}
 
 	/**
-	 * Updates account preferences in the SharedPreferences with preferences from the Bundle. 
+	 * Updates account preferences in the AccountStore with preferences from the Bundle. 
 	 */
 	public static void updateAccount(SharedPreferences prefs, Bundle bundle) {
 		String accId = getId(bundle);
 		if (accId != null) {
-			SharedPreferences.Editor editor = prefs.edit();
-
-			for (String suffix : ACC_PREF_SUFFIXES) {
-				editor.putString(ACC_PREF_PREFIX + accId + suffix, bundle.getString(ACC_PREF_PREFIX + suffix));
-			}
-			for (String suffix : INTERNAL_ACC_PREF_SUFFIXES) {
-				editor.remove(ACC_PREF_PREFIX + accId + suffix);
-			}
-
-			editor.commit();
+			// new credentials need a new session, so cookies are dropped
+			AccountStore.get().putAccount(new AccountStore.Account(accId, getLabel(bundle), getProvider(bundle),
+					getListedProvider(bundle), getDisplayProvider(bundle), getUsername(bundle), getPassword(bundle),
+					null));
+			// and the account deserves another chance
+			AccountHealth.clear(accId);
 		}
 	}
 
 	/**
-	 * Removes the account mentioned in the Bundle from the SharedPreferences. 
+	 * Removes the account mentioned in the Bundle from the AccountStore. 
 	 */
 	public static void deleteAccount(SharedPreferences prefs, Bundle bundle) {
 		String accId = getId(bundle);
 		if (accId != null) {
-			SharedPreferences.Editor editor = prefs.edit();
-
-			for (String suffix : ACC_PREF_SUFFIXES) {
-				editor.remove(ACC_PREF_PREFIX + accId + suffix);
-			}
-			for (String suffix : INTERNAL_ACC_PREF_SUFFIXES) {
-				editor.remove(ACC_PREF_PREFIX + accId + suffix);
-			}
-
-			editor.commit();
+			AccountStore.get().deleteAccount(accId);
 		}
 	}
 
@@ -275,16 +237,7 @@ public class AccountPreferences {
 	 * Checks if an account for the given provider exists.
 	 */
 	public static boolean isProviderConfigured(SharedPreferences prefs, String provider) {
-		for (String key : prefs.getAll().keySet()) {
-			if (key.startsWith(ACC_PREF_PREFIX) && key.endsWith(PROVIDER_ACC_PREF_SUFFIX)) {
-
-				String accProvider = prefs.getString(key, "");
-				if (accProvider.equals(provider)) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return !AccountStore.get().getAccountIds(provider).isEmpty();
 	}
 
 	/**
@@ -297,13 +250,19 @@ public class AccountPreferences {
 	}
 
 	/**
-	 * Extracts all preferences of the given account from the SharedPreferences into a Bundle. 
+	 * Extracts all preferences of the given account from the AccountStore into a Bundle. 
 	 */
 	public static Bundle extractToBundle(SharedPreferences prefs, String accId) {
 		Bundle bundle = new Bundle();
 
-		for (String suffix : ACC_PREF_SUFFIXES) {
-			bundle.putString(ACC_PREF_PREFIX + suffix, prefs.getString(ACC_PREF_PREFIX + accId + suffix, null));
+		AccountStore.Account account = AccountStore.get().getAccount(accId);
+		if (account != null) {
+			setLabel(bundle, account.getLabel());
+			setProvider(bundle, account.getProvider());
+			setListedProvider(bundle, account.getListedProvider());
+			setDisplayProvider(bundle, account.getDisplayProvider());
+			setUsername(bundle, account.getUsername());
+			setPassword(bundle, account.getPassword());
 		}
 		setId(bundle, accId);
 
@@ -330,4 +289,56 @@ public class AccountPreferences {
 				&& !TextUtils.isEmpty(getPassword(bundle));
 	}
 
+
+
+	// --- Accounts stored in the SharedPreferences by older versions ---
+
+	/**
+	 * Reads accounts stored in the SharedPreferences by older versions.
+	 */
+	static List<AccountStore.Account> readLegacyAccounts(SharedPreferences prefs) {
+		List<AccountStore.Account> accounts = new ArrayList<AccountStore.Account>();
+
+		for (String key : prefs.getAll().keySet()) {
+			if (key.startsWith(ACC_PREF_PREFIX) && key.endsWith(LABEL_ACC_PREF_SUFFIX)) {
+
+				String accId = key.substring(ACC_PREF_PREFIX.length(), key.length() - LABEL_ACC_PREF_SUFFIX.length());
+				try {
+					Integer.parseInt(accId);
+				} catch (NumberFormatException e) {
+					continue;
+				}
+
+				String keyPrefix = ACC_PREF_PREFIX + accId;
+				accounts.add(new AccountStore.Account(accId,
+						prefs.getString(keyPrefix + LABEL_ACC_PREF_SUFFIX, null),
+						prefs.getString(keyPrefix + PROVIDER_ACC_PREF_SUFFIX, null),
+						prefs.getString(keyPrefix + LISTEDPROV_ACC_PREF_SUFFIX, null),
+						prefs.getString(keyPrefix + DISPLAYPROV_ACC_PREF_SUFFIX, null),
+						prefs.getString(keyPrefix + USERNAME_ACC_PREF_SUFFIX, null),
+						prefs.getString(keyPrefix + PASSWORD_ACC_PREF_SUFFIX, null),
+						prefs.getString(keyPrefix + COOKIES_ACC_PREF_SUFFIX, null)));
+			}
+		}
+		return accounts;
+	}
+
+	/**
+	 * Removes the given accounts stored in the SharedPreferences by older versions.
+	 */
+	static void removeLegacyAccounts(SharedPreferences prefs, List<AccountStore.Account> accounts) {
+		SharedPreferences.Editor editor = prefs.edit();
+
+		for (AccountStore.Account account : accounts) {
+			for (String suffix : ACC_PREF_SUFFIXES) {
+				editor.remove(ACC_PREF_PREFIX + account.getId() + suffix);
+			}
+			for (String suffix : INTERNAL_ACC_PREF_SUFFIXES) {
+				editor.remove(ACC_PREF_PREFIX + account.getId() + suffix);
+			}
+		}
+
+		editor.commit();
+	}
+
 }
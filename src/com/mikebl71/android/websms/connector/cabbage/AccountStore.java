@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.preference.PreferenceManager;
+
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Store of accounts: one row per account in an SQLite table indexed by id and by provider.
+ * 
+ * All accounts are also kept in memory, ordered by id and indexed by provider, so reading an account
+ * never touches the disk. A change writes the single row of the account.
+ * 
+ * Accounts kept as "account_N_pref" keys in the SharedPreferences by older versions are copied
+ * into the store when it is created, and their keys are removed once the store is open, i.e. once
+ * the copies have been committed.
+ * 
+ * The store must be opened with {@link #open(Context)} before it is used.
+ */
+public class AccountStore extends SQLiteOpenHelper {
+
+	private static final String TAG = "cabbage";
+
+	// Database name and version
+	private static final String DB_NAME = "accounts.db";
+	private static final int DB_VERSION = 1;
+
+	// Table and columns
+	private static final String TABLE = "accounts";
+	private static final String COL_ID = "id";
+	private static final String COL_LABEL = "label";
+	private static final String COL_PROVIDER = "provider";
+	private static final String COL_LISTED_PROVIDER = "listed_provider";
+	private static final String COL_DISPLAY_PROVIDER = "display_provider";
+	private static final String COL_USERNAME = "username";
+	private static final String COL_PASSWORD = "password";
+	private static final String COL_COOKIES = "cookies";
+
+	private static final String[] COLUMNS = new String[] {
+		COL_ID, COL_LABEL, COL_PROVIDER, COL_LISTED_PROVIDER, COL_DISPLAY_PROVIDER,
+		COL_USERNAME, COL_PASSWORD, COL_COOKIES };
+
+	// The store, opened on first use
+	private static AccountStore instance;
+
+	// Source of accounts kept by older versions
+	private final SharedPreferences prefs;
+
+	// All accounts by numeric id
+	private final TreeMap<Integer, Account> accounts = new TreeMap<Integer, Account>();
+	// Ids of accounts by provider
+	private final Map<String, List<String>> providerIndex = new HashMap<String, List<String>>();
+
+
+	private AccountStore(final Context context, final String dbName, final SharedPreferences prefs) {
+		super(context, dbName, null, DB_VERSION);
+		this.prefs = prefs;
+	}
+
+	/**
+	 * Opens the store. Does nothing if the store is already open.
+	 */
+	public static synchronized AccountStore open(final Context context) {
+		if (instance == null) {
+			final Context appContext = context.getApplicationContext();
+			instance = create(appContext, DB_NAME, PreferenceManager.getDefaultSharedPreferences(appContext));
+		}
+		return instance;
+	}
+
+	/**
+	 * Opens a store kept in the given database, with accounts of older versions kept in the given preferences.
+	 * Used directly only by tests, see {@link #open(Context)}.
+	 */
+	static AccountStore create(final Context context, final String dbName, final SharedPreferences prefs) {
+		final AccountStore store = new AccountStore(context, dbName, prefs);
+		store.load();
+		store.removeMigratedPreferences();
+		return store;
+	}
+
+	/**
+	 * Returns the opened store.
+	 */
+	public static synchronized AccountStore get() {
+		if (instance == null) {
+			throw new IllegalStateException("account store is not open");
+		}
+		return instance;
+	}
+
+	@Override
+	public void onCreate(final SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE + " ("
+				+ COL_ID + " INTEGER PRIMARY KEY, "
+				+ COL_LABEL + " TEXT, "
+				+ COL_PROVIDER + " TEXT, "
+				+ COL_LISTED_PROVIDER + " TEXT, "
+				+ COL_DISPLAY_PROVIDER + " TEXT, "
+				+ COL_USERNAME + " TEXT, "
+				+ COL_PASSWORD + " TEXT, "
+				+ COL_COOKIES + " TEXT)");
+		db.execSQL("CREATE INDEX " + TABLE + "_" + COL_PROVIDER + " ON " + TABLE + " (" + COL_PROVIDER + ")");
+
+		migrateFromPreferences(db);
+	}
+
+	@Override
+	public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+		// no older versions of the table yet
+	}
+
+	/**
+	 * Returns the account or null if there is no such account.
+	 */
+	public synchronized Account getAccount(final String accId) {
+		try {
+			return accounts.get(Integer.valueOf(accId));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns ids of all accounts in the numerically ascending order.
+	 */
+	public synchronized List<String> getAccountIds() {
+		final List<String> accIds = new ArrayList<String>(accounts.size());
+		for (Integer accNumId : accounts.keySet()) {
+			accIds.add(accNumId.toString());
+		}
+		return accIds;
+	}
+
+	/**
+	 * Returns ids of the accounts of the provider in the numerically ascending order.
+	 */
+	public synchronized List<String> getAccountIds(final String provider) {
+		final List<String> accIds = providerIndex.get(provider);
+		return accIds != null ? new ArrayList<String>(accIds) : Collections.<String>emptyList();
+	}
+
+	/**
+	 * Returns the next free account id.
+	 */
+	public synchronized String getNextAccountId() {
+		return Integer.toString(accounts.isEmpty() ? 1 : accounts.lastKey() + 1);
+	}
+
+	/**
+	 * Adds the account or replaces the account with the same id.
+	 */
+	public synchronized void putAccount(final Account account) {
+		getWritableDatabase().replace(TABLE, null, toValues(account));
+		cache(account);
+	}
+
+	/**
+	 * Adds the accounts in a single transaction. Accounts without an id get the next free ids,
+	 * accounts with an id replace the account with the same id.
+	 * Returns the accounts as stored.
+	 */
+	public synchronized List<Account> addAccounts(final List<Account> newAccounts) {
+		final List<Account> stored = new ArrayList<Account>(newAccounts.size());
+		int nextId = Integer.parseInt(getNextAccountId());
+		for (Account account : newAccounts) {
+			if (account.getId() == null) {
+				account = account.withId(Integer.toString(nextId++));
+			}
+			stored.add(account);
+		}
+
+		final SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			for (Account account : stored) {
+				db.replace(TABLE, null, toValues(account));
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		for (Account account : stored) {
+			cache(account);
+		}
+		return stored;
+	}
+
+	/**
+	 * Removes the account.
+	 */
+	public synchronized void deleteAccount(final String accId) {
+		getWritableDatabase().delete(TABLE, COL_ID + "=?", new String[] { accId });
+		uncache(accId);
+	}
+
+	/**
+	 * Updates the session cookies of the account.
+	 */
+	public synchronized void setCookies(final String accId, final String cookies) {
+		final Account account = getAccount(accId);
+		if (account != null) {
+			final ContentValues values = new ContentValues();
+			values.put(COL_COOKIES, cookies);
+			getWritableDatabase().update(TABLE, values, COL_ID + "=?", new String[] { accId });
+			cache(account.withCookies(cookies));
+		}
+	}
+
+
+	/**
+	 * Loads all accounts into memory.
+	 */
+	private synchronized void load() {
+		// opening for writing creates the table (and copies legacy accounts) in a committed transaction
+		final Cursor cursor = getWritableDatabase().query(TABLE, COLUMNS, null, null, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+				cache(new Account(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3),
+						cursor.getString(4), cursor.getString(5), cursor.getString(6), cursor.getString(7)));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private void cache(final Account account) {
+		uncache(account.getId());
+		accounts.put(Integer.valueOf(account.getId()), account);
+
+		if (account.getProvider() != null) {
+			List<String> accIds = providerIndex.get(account.getProvider());
+			if (accIds == null) {
+				accIds = new ArrayList<String>();
+				providerIndex.put(account.getProvider(), accIds);
+			}
+			// keep numeric order
+			int idx = 0;
+			while (idx < accIds.size() && Integer.parseInt(accIds.get(idx)) < Integer.parseInt(account.getId())) {
+				idx++;
+			}
+			accIds.add(idx, account.getId());
+		}
+	}
+
+	private void uncache(final String accId) {
+		final Account old = accounts.remove(Integer.valueOf(accId));
+		if (old != null && old.getProvider() != null) {
+			final List<String> accIds = providerIndex.get(old.getProvider());
+			if (accIds != null) {
+				accIds.remove(accId);
+				if (accIds.isEmpty()) {
+					providerIndex.remove(old.getProvider());
+				}
+			}
+		}
+	}
+
+	private static ContentValues toValues(final Account account) {
+		final ContentValues values = new ContentValues();
+		values.put(COL_ID, Integer.valueOf(account.getId()));
+		values.put(COL_LABEL, account.getLabel());
+		values.put(COL_PROVIDER, account.getProvider());
+		values.put(COL_LISTED_PROVIDER, account.getListedProvider());
+		values.put(COL_DISPLAY_PROVIDER, account.getDisplayProvider());
+		values.put(COL_USERNAME, account.getUsername());
+		values.put(COL_PASSWORD, account.getPassword());
+		values.put(COL_COOKIES, account.getCookies());
+		return values;
+	}
+
+	/**
+	 * Copies accounts kept in the SharedPreferences by older versions into the new table.
+	 * Runs within the transaction that creates the table, so the keys are left for
+	 * {@link #removeMigratedPreferences()}: if the transaction does not commit, the accounts are still there.
+	 */
+	private void migrateFromPreferences(final SQLiteDatabase db) {
+		final List<Account> legacyAccounts = AccountPreferences.readLegacyAccounts(prefs);
+		if (legacyAccounts.isEmpty()) {
+			return;
+		}
+		Log.i(TAG, "moving " + legacyAccounts.size() + " accounts from preferences to the account store");
+
+		for (Account account : legacyAccounts) {
+			db.replace(TABLE, null, toValues(account));
+		}
+	}
+
+	/**
+	 * Removes the keys of accounts kept in the SharedPreferences by older versions that are now in the store.
+	 * To be called after the database has been opened, when the accounts copied into it are committed.
+	 */
+	private synchronized void removeMigratedPreferences() {
+		final List<Account> migrated = new ArrayList<Account>();
+		for (Account account : AccountPreferences.readLegacyAccounts(prefs)) {
+			if (accounts.containsKey(Integer.valueOf(account.getId()))) {
+				migrated.add(account);
+			}
+		}
+		if (!migrated.isEmpty()) {
+			AccountPreferences.removeLegacyAccounts(prefs, migrated);
+		}
+	}
+
+	/**
+	 * Account record. Immutable.
+	 */
+	public static class Account {
+		private final String id;
+		private final String label;
+		private final String provider;
+		private final String listedProvider;
+		private final String displayProvider;
+		private final String username;
+		private final String password;
+		private final String cookies;
+
+		public Account(final String id, final String label, final String provider, final String listedProvider,
+				final String displayProvider, final String username, final String password, final String cookies) {
+			this.id = id;
+			this.label = label;
+			this.provider = provider;
+			this.listedProvider = listedProvider;
+			this.displayProvider = displayProvider;
+			this.username = username;
+			this.password = password;
+			this.cookies = cookies;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public String getProvider() {
+			return provider;
+		}
+
+		public String getListedProvider() {
+			return listedProvider;
+		}
+
+		public String getDisplayProvider() {
+			return displayProvider;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+
+		public String getCookies() {
+			return cookies;
+		}
+
+		/**
+		 * Returns a copy of the account with the given id.
+		 */
+		public Account withId(final String newId) {
+			return new Account(newId, label, provider, listedProvider, displayProvider, username, password, cookies);
+		}
+
+		/**
+		 * Returns a copy of the account with the given cookies.
+		 */
+		public Account withCookies(final String newCookies) {
+			return new Account(id, label, provider, listedProvider, displayProvider, username, password, newCookies);
+		}
+	}
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Environment;
+import android.text.TextUtils;
+
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Bulk import and export of account definitions.
+ * 
+ * Accounts are exchanged as a JSON document:
+ * <pre>
+ * {"version": 1, "accounts": [
+ *   {"label": "...", "provider": "v", "username": "...", "password": "..."}, ...]}
+ * </pre>
+ * Optional "listed_provider" and "display_provider" fields are derived from the provider when missing.
+ * 
+ * Imported accounts are written to the {@link AccountStore} in a single transaction and the subconnectors
+ * are refreshed once at the end. An imported account replaces the existing account with the same label,
+ * so importing the same file twice does not duplicate accounts. Like an account edited by the user,
+ * a replaced account starts a new session and its failures are forgotten.
+ */
+public class AccountTransfer {
+
+	private static final String TAG = "cabbage";
+
+	// Default file to import from, in the root of the external storage
+	public static final String FILE_NAME = "cabbage_accounts.json";
+
+	// Format version
+	private static final int VERSION = 1;
+
+	// Document fields
+	private static final String FIELD_VERSION = "version";
+	private static final String FIELD_ACCOUNTS = "accounts";
+	private static final String FIELD_LABEL = "label";
+	private static final String FIELD_PROVIDER = "provider";
+	private static final String FIELD_LISTED_PROVIDER = "listed_provider";
+	private static final String FIELD_DISPLAY_PROVIDER = "display_provider";
+	private static final String FIELD_USERNAME = "username";
+	private static final String FIELD_PASSWORD = "password";
+
+	// Value of the listed provider for providers not in the list
+	private static final String CUSTOM_PROVIDER_VALUE = "custom";
+
+	// Size of the buffer for reading the document
+	private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+
+	/**
+	 * Returns the default file to import from.
+	 */
+	public static File getDefaultFile() {
+		return new File(Environment.getExternalStorageDirectory(), FILE_NAME);
+	}
+
+	/**
+	 * Reads the document.
+	 */
+	public static String read(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[READ_BUFFER_SIZE];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, count);
+		}
+		return out.toString("UTF-8");
+	}
+
+	/**
+	 * Parses the document into accounts without ids.
+	 * Fails if the document is malformed or any of the accounts is incomplete.
+	 */
+	public static List<AccountStore.Account> parse(final Context context, final String document)
+			throws JSONException {
+		final JSONObject root = new JSONObject(document);
+		if (root.optInt(FIELD_VERSION, VERSION) > VERSION) {
+			throw new JSONException("unsupported version " + root.optInt(FIELD_VERSION));
+		}
+		final JSONArray array = root.getJSONArray(FIELD_ACCOUNTS);
+
+		final Map<String, String> providerNames = getProviderNames(context);
+		final List<AccountStore.Account> accounts = new ArrayList<AccountStore.Account>(array.length());
+		for (int idx = 0; idx < array.length(); idx++) {
+			final JSONObject item = array.getJSONObject(idx);
+			final String label = optString(item, FIELD_LABEL);
+			final String provider = optString(item, FIELD_PROVIDER);
+			final String username = optString(item, FIELD_USERNAME);
+			final String password = optString(item, FIELD_PASSWORD);
+			if (label == null || provider == null || username == null || password == null) {
+				throw new JSONException("account " + (idx + 1) + " is incomplete");
+			}
+
+			String listedProvider = optString(item, FIELD_LISTED_PROVIDER);
+			String displayProvider = optString(item, FIELD_DISPLAY_PROVIDER);
+			if (listedProvider == null) {
+				listedProvider = providerNames.containsKey(provider) ? provider : CUSTOM_PROVIDER_VALUE;
+			}
+			if (displayProvider == null) {
+				displayProvider = providerNames.containsKey(provider) ? providerNames.get(provider) : provider;
+			}
+
+			accounts.add(new AccountStore.Account(null, label, provider, listedProvider, displayProvider,
+					username, password, null));
+		}
+		return accounts;
+	}
+
+	/**
+	 * Imports the accounts. Accounts replace existing accounts with the same label.
+	 * Returns the number of imported accounts.
+	 */
+	public static int importAccounts(final Context context, final List<AccountStore.Account> accounts) {
+		final AccountStore store = AccountStore.get();
+
+		// existing accounts by label
+		final Map<String, String> idsByLabel = new HashMap<String, String>();
+		for (String accId : store.getAccountIds()) {
+			final AccountStore.Account account = store.getAccount(accId);
+			if (account != null && account.getLabel() != null) {
+				idsByLabel.put(account.getLabel(), accId);
+			}
+		}
+
+		final List<AccountStore.Account> toStore = new ArrayList<AccountStore.Account>(accounts.size());
+		final List<String> replacedIds = new ArrayList<String>();
+		for (AccountStore.Account account : accounts) {
+			final String existingId = idsByLabel.get(account.getLabel());
+			if (existingId != null) {
+				// new credentials need a new session, so cookies are dropped
+				toStore.add(account.withId(existingId).withCookies(null));
+				replacedIds.add(existingId);
+			} else {
+				toStore.add(account);
+			}
+		}
+
+		store.addAccounts(toStore);
+		Log.i(TAG, "imported " + toStore.size() + " accounts");
+
+		// and the replaced accounts deserve another chance
+		for (String accId : replacedIds) {
+			AccountHealth.clear(accId);
+			KnownFailures.clear(accId);
+		}
+
+		CabbageConnector.refreshSubConnectors(context);
+		return toStore.size();
+	}
+
+	/**
+	 * Formats all accounts as a document. The document contains the passwords.
+	 */
+	public static String export() throws JSONException {
+		final AccountStore store = AccountStore.get();
+
+		final JSONArray array = new JSONArray();
+		for (String accId : store.getAccountIds()) {
+			final AccountStore.Account account = store.getAccount(accId);
+			if (account != null) {
+				final JSONObject item = new JSONObject();
+				item.put(FIELD_LABEL, account.getLabel());
+				item.put(FIELD_PROVIDER, account.getProvider());
+				item.put(FIELD_LISTED_PROVIDER, account.getListedProvider());
+				item.put(FIELD_DISPLAY_PROVIDER, account.getDisplayProvider());
+				item.put(FIELD_USERNAME, account.getUsername());
+				item.put(FIELD_PASSWORD, account.getPassword());
+				array.put(item);
+			}
+		}
+
+		final JSONObject root = new JSONObject();
+		root.put(FIELD_VERSION, VERSION);
+		root.put(FIELD_ACCOUNTS, array);
+		return root.toString(2);
+	}
+
+
+	/**
+	 * Returns names of the listed providers by their values.
+	 */
+	private static Map<String, String> getProviderNames(final Context context) {
+		final String[] values = context.getResources().getStringArray(R.array.cabbage_providers_values);
+		final String[] names = context.getResources().getStringArray(R.array.cabbage_providers);
+		final Map<String, String> providerNames = new HashMap<String, String>();
+		for (int idx = 0; idx < values.length && idx < names.length; idx++) {
+			if (!CUSTOM_PROVIDER_VALUE.equals(values[idx])) {
+				providerNames.put(values[idx], names[idx]);
+			}
+		}
+		return providerNames;
+	}
+
+	private static String optString(final JSONObject item, final String field) {
+		if (item.isNull(field)) {
+			return null;
+		}
+		final String value = item.optString(field);
+		return TextUtils.isEmpty(value) ? null : value;
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+/**
+ * Adaptive limit of concurrent requests to a gateway (additive increase, multiplicative decrease).
+ * 
+ * The limit grows by one per limit-worth of successful requests while their latency stays close to
+ * the best latency seen, and is halved when the gateway is overloaded (timeouts, HTTP errors, throttling).
+ * Requests that started before the last decrease do not decrease it again, so a burst of failures
+ * of the same overload counts once.
+ * 
+ * Not thread-safe, guarded by the caller.
+ */
+public class AimdLimit {
+
+	/** Bounds of the limit. */
+	public static final int MIN_LIMIT = 1;
+	public static final int MAX_LIMIT = 8;
+
+	// Limit before anything is known about the gateway
+	private static final double INITIAL_LIMIT = 3;
+
+	// Factor applied to the limit when the gateway is overloaded
+	private static final double BACKOFF_RATIO = 0.5;
+
+	// Latency above this multiple of the baseline is a sign of congestion, so the limit is not raised
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	// Weight of a new latency in the baseline when it is above the baseline
+	// (the baseline drops to a lower latency at once, and creeps up if latencies stay higher)
+	private static final double BASELINE_DRIFT = 0.05;
+
+	private double limit = INITIAL_LIMIT;
+	// best recent latency (in ms), or negative if none yet
+	private double baselineMs = -1;
+	// time of the last decrease (System.nanoTime)
+	private long lastDecreaseNanos = System.nanoTime();
+
+
+	/**
+	 * Returns the current limit.
+	 */
+	public int get() {
+		return (int) limit;
+	}
+
+	/**
+	 * Accounts for a request that got a response after the given time.
+	 */
+	public void onSuccess(final long latencyMs) {
+		if (baselineMs < 0 || latencyMs < baselineMs) {
+			baselineMs = latencyMs;
+		} else {
+			baselineMs += BASELINE_DRIFT * (latencyMs - baselineMs);
+		}
+
+		if (latencyMs <= baselineMs * LATENCY_TOLERANCE) {
+			limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+		}
+	}
+
+	/**
+	 * Accounts for a request started at the given time (System.nanoTime) that found the gateway overloaded.
+	 */
+	public void onOverload(final long startNanos) {
+		if (startNanos - lastDecreaseNanos > 0) {
+			limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+			lastDecreaseNanos = System.nanoTime();
+		}
+	}
+
+}
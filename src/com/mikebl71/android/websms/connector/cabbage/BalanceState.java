@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.ub0r.android.websms.connector.common.Connector;
+import de.ub0r.android.websms.connector.common.ConnectorSpec;
+import de.ub0r.android.websms.connector.common.ConnectorSpec.SubConnectorSpec;
+
+/**
+ * Current balances of the subconnectors.
+ * 
+ * Each subconnector has its own atomic reference to an immutable balance (value, time and source),
+ * so concurrent updates of different subconnectors never wait for each other and an older balance
+ * never overwrites a newer one. The balances are copied into the {@link ConnectorSpec}
+ * with {@link #publish(ConnectorSpec)} before the spec is passed to WebSMS.
+ */
+public class BalanceState {
+
+	// Sources of balances
+	public static final int SOURCE_SNAPSHOT = 0;
+	public static final int SOURCE_REQUEST = 1;
+	public static final int SOURCE_UPDATE = 2;
+	public static final int SOURCE_SEND = 3;
+	public static final int SOURCE_POOL = 4;
+
+	// Balances by subconnector id
+	private static final ConcurrentMap<String, AtomicReference<Balance>> BALANCES =
+			new ConcurrentHashMap<String, AtomicReference<Balance>>();
+
+
+	/**
+	 * Sets the balance of the subconnector received just now.
+	 */
+	public static void set(final String subId, final String value, final int source) {
+		set(subId, value, System.currentTimeMillis(), source);
+	}
+
+	/**
+	 * Sets the balance of the subconnector received at the given time,
+	 * unless a newer balance is already known.
+	 */
+	public static void set(final String subId, final String value, final long timestamp, final int source) {
+		final AtomicReference<Balance> ref = getRef(subId);
+		final Balance balance = new Balance(value, timestamp, source);
+		while (true) {
+			final Balance current = ref.get();
+			if (current != null && current.timestamp > timestamp) {
+				return;
+			}
+			if (ref.compareAndSet(current, balance)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sets the balance of the subconnector if no balance is known yet.
+	 */
+	public static void setIfUnknown(final String subId, final String value, final int source) {
+		final AtomicReference<Balance> ref = getRef(subId);
+		ref.compareAndSet(null, new Balance(value, System.currentTimeMillis(), source));
+	}
+
+	/**
+	 * Returns the balance of the subconnector or null if not known.
+	 */
+	public static Balance get(final String subId) {
+		final AtomicReference<Balance> ref = BALANCES.get(subId);
+		return ref != null ? ref.get() : null;
+	}
+
+	/**
+	 * Returns the balance value of the subconnector or null if not known.
+	 */
+	public static String getValue(final String subId) {
+		final Balance balance = get(subId);
+		return balance != null ? balance.getValue() : null;
+	}
+
+	/**
+	 * Copies the current balances into the subconnectors of the spec, with the health scores of the accounts.
+	 */
+	public static void publish(final ConnectorSpec cs) {
+		synchronized (Connector.SYNC_UPDATE) {
+			for (SubConnectorSpec sub : cs.getSubConnectors()) {
+				final Balance balance = get(sub.getID());
+				if (balance != null) {
+					sub.setBalance(AccountHealth.formatBalance(sub.getID(), balance.getValue()));
+				}
+			}
+		}
+	}
+
+
+	private static AtomicReference<Balance> getRef(final String subId) {
+		AtomicReference<Balance> ref = BALANCES.get(subId);
+		if (ref == null) {
+			final AtomicReference<Balance> newRef = new AtomicReference<Balance>();
+			ref = BALANCES.putIfAbsent(subId, newRef);
+			if (ref == null) {
+				ref = newRef;
+			}
+		}
+		return ref;
+	}
+
+	/**
+	 * Balance of a subconnector. Immutable.
+	 */
+	public static class Balance {
+		private final String value;
+		private final long timestamp;
+		private final int source;
+
+		public Balance(final String value, final long timestamp, final int source) {
+			this.value = value;
+			this.timestamp = timestamp;
+			this.source = source;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getSource() {
+			return source;
+		}
+	}
+
+}
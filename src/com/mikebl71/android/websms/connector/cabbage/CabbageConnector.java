@@ -17,41 +17,43 @@
 package com.mikebl71.android.websms.connector.cabbage;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Semaphore;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.conn.ConnectTimeoutException;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageClient;
+import com.mikebl71.android.websms.connector.cabbage.core.GatewayError;
+import com.mikebl71.android.websms.connector.cabbage.core.RetryRules;
+
 import de.ub0r.android.websms.connector.common.Connector;
 import de.ub0r.android.websms.connector.common.ConnectorCommand;
 import de.ub0r.android.websms.connector.common.ConnectorSpec;
 import de.ub0r.android.websms.connector.common.ConnectorSpec.SubConnectorSpec;
 import de.ub0r.android.websms.connector.common.Log;
 import de.ub0r.android.websms.connector.common.Utils;
-import de.ub0r.android.websms.connector.common.Utils.HttpOptions;
 import de.ub0r.android.websms.connector.common.WebSMSException;
 import de.ub0r.android.websms.connector.common.WebSMSNoNetworkException;
 
@@ -67,38 +69,31 @@ public class CabbageConnector extends Connector {
 	// Id of the dummy subconnector
 	private static final String DUMMY_SUB_CONNECTOR_ID = "0";
 
-	// Timeout for establishing a connection and waiting for a response from the server
-	private static final int CONN_TIMEOUT_MS = 60000;
+	// Max number of automatic retries of a request that failed with a transient error
+	private static final int MAX_RETRIES = 2;
+	// Base delay before retrying a request (doubled with each retry)
+	private static final long RETRY_BASE_DELAY_MS = 1000;
 
-	// HTTP request properties
-	private static final String ENCODING = "UTF-8";
+	// Source of jitter for retry delays
+	private static final Random RETRY_JITTER = new Random();
 
-	// Parameters for Cabbage send script
-	private static final String PARAM_PROVIDER   = "s";
-	private static final String PARAM_USERNAME   = "u";
-	private static final String PARAM_PASSWORD   = "p";
-	private static final String PARAM_RECIPIENTS = "d";
-	private static final String PARAM_TEXT       = "m";
-	private static final String PARAM_BALANCE_ONLY = "c";
-	private static final String PARAM_CAPTCHA_ANSWER = "cap";
-
-	// Regex for extracting the first number from the script response
-	private static final Pattern FIRST_NUMBER = Pattern.compile("^(-?\\d+)");
+	// Timeout for waiting a captcha answer from a user
+    private static final long CAPTCHA_ANSWER_TIMEOUT = 60000;
 
-	// Prefix used by resources with error messages
-	private static final String ERR_MESSAGE_PREFIX = "cabbage_err_";
+	// Captchas waiting for an answer from the user
+    private static final CaptchaWaits<String> USER_CAPTCHAS = new CaptchaWaits<String>();
+    // Captchas waiting for candidate answers from the solver app, most likely first
+    private static final CaptchaWaits<List<CaptchaAnswerFixer.Candidate>> SOLVER_CAPTCHAS =
+    		new CaptchaWaits<List<CaptchaAnswerFixer.Candidate>>();
 
-	// Return codes for trySendingData method 
-	private static final int SENT_DONE         = 0; 
-	private static final int SENT_NEED_CAPTCHA = 1; 
+	// Merges sends of the same text from the same account
+	private static final SendCoalescer SEND_COALESCER = new SendCoalescer();
 
-	// Timeout for waiting a captcha answer from a user
-    private static final long CAPTCHA_ANSWER_TIMEOUT = 60000;
+	// Limits concurrent broadcast chunks per account id
+	private static final Map<String, Semaphore> ACCOUNT_SLOTS = new HashMap<String, Semaphore>();
 
-	// Sync object for solving a captcha
-    private static final Object CAPTCHA_SYNC = new Object();
-    // Captcha answer returned by user or a solver app 
-    private static String receivedCaptchaAnswer;
+	// Runs balance refreshes that were put off, after the send that brought the radio up
+	private static final ExecutorService PENDING_REFRESHES = Executors.newSingleThreadExecutor();
 
 	/**
 	 * Initializes {@link ConnectorSpec}. This is only run once. Changing properties are set in updateSpec(). 
@@ -107,6 +102,11 @@ public class CabbageConnector extends Connector {
 	@Override
 	public final ConnectorSpec initSpec(final Context context) {
 		final String connectorName = context.getString(R.string.connector_cabbage_name);
+		ErrorTable.init(context);
+		AccountHealth.init(context);
+		AccountStore.open(context);
+		SendJournal.open(context);
+		DataUsage.open(context);
 
 		// create ConnectorSpec
 		final ConnectorSpec connectorSpec = new ConnectorSpec(connectorName);
@@ -118,25 +118,70 @@ public class CabbageConnector extends Connector {
 				| ConnectorSpec.CAPABILITIES_PREFS);
 		
 		// init subconnectors
+		if (!addSubConnectors(context, connectorSpec)) {
+			// WebSMS requires connectors to have at least one subconnector hence creating a dummy one
+			connectorSpec.addSubConnector(DUMMY_SUB_CONNECTOR_ID, 
+					"dummy",
+					SubConnectorSpec.FEATURE_NONE);
+			Log.d(TAG, "initSpec: inited with dummy subconnector");
+		}
+
+		// show the last known balances straight away
+		SpecSnapshot.restore(context, connectorSpec);
+
+		return connectorSpec;
+	}
+
+	/**
+	 * Adds subconnectors for the accounts (and account pools) that do not have one yet. 
+	 * Called once after accounts were added in bulk, so WebSMS learns about them without a restart.
+	 */
+	public static void refreshSubConnectors(final Context context) {
+		final ConnectorSpec connectorSpec = new CabbageConnector().getSpec(context);
+		synchronized (SYNC_UPDATE) {
+			addSubConnectors(context, connectorSpec);
+		}
+
+		final Intent intent = new Intent(Connector.ACTION_INFO);
+		BalanceState.publish(connectorSpec);
+		connectorSpec.setToIntent(intent);
+		context.sendBroadcast(intent);
+	}
+
+	/**
+	 * Adds the missing subconnectors for all accounts and account pools.
+	 * Returns false if there are no accounts.
+	 */
+	private static boolean addSubConnectors(final Context context, final ConnectorSpec connectorSpec) {
 		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 		final List<String> accIds = AccountPreferences.getAccountIds(prefs);
+		if (accIds.isEmpty()) {
+			return false;
+		}
 
-		if (accIds.size() > 0) {
-			for (String accId : accIds) {
+		int added = 0;
+		for (String accId : accIds) {
+			if (connectorSpec.getSubConnector(accId) == null) {
 				connectorSpec.addSubConnector(accId, 
 						AccountPreferences.getLabel(prefs, accId),
 						SubConnectorSpec.FEATURE_MULTIRECIPIENTS);
+				added++;
 			}
-			Log.d(TAG, "initSpec: inited with " + accIds.size() + " subconnectors");
-		} else {
-			// WebSMS requires connectors to have at least one subconnector hence creating a dummy one
-			connectorSpec.addSubConnector(DUMMY_SUB_CONNECTOR_ID, 
-					"dummy",
-					SubConnectorSpec.FEATURE_NONE);
-			Log.d(TAG, "initSpec: inited with dummy subconnector");
 		}
 
-		return connectorSpec;
+		// add a pool subconnector for each provider with several accounts
+		if (CabbageConnectorPreferences.isAccountPoolsEnabled(prefs)) {
+			for (Map.Entry<String, String> provider : AccountPool.getPooledProviders(prefs, accIds).entrySet()) {
+				final String poolId = AccountPool.getPoolId(provider.getKey());
+				if (connectorSpec.getSubConnector(poolId) == null) {
+					connectorSpec.addSubConnector(poolId,
+							context.getString(R.string.pool_subconnector_label, provider.getValue()),
+							SubConnectorSpec.FEATURE_MULTIRECIPIENTS);
+				}
+			}
+		}
+		Log.d(TAG, "added " + added + " subconnectors");
+		return true;
 	}
 
 	/**
@@ -153,6 +198,7 @@ public class CabbageConnector extends Connector {
 			connectorSpec.setStatus(ConnectorSpec.STATUS_INACTIVE);
 			Log.d(TAG, "updateSpec: set inactive");
 		}
+		BalanceState.publish(connectorSpec);
 
 		return connectorSpec;
 	}
@@ -177,28 +223,50 @@ public class CabbageConnector extends Connector {
 		// restore balance info that we might have lost from the request
 		if (reqSpec != null) {
 			final ConnectorSpec connSpec = this.getSpec(context);
-			SubConnectorSpec[] connSubs = connSpec.getSubConnectors();
-			SubConnectorSpec[] reqSubs = reqSpec.getSubConnectors();
-			
-			for (int idx = 0; idx < connSubs.length && idx < reqSubs.length; idx++) {
-				final String connBalance = connSubs[idx].getBalance();
-				final String reqBalance = reqSubs[idx].getBalance();
-	
-				if (connBalance == null && reqBalance != null) {
-					connSubs[idx].setBalance(reqBalance);
+			for (SubConnectorSpec reqSub : reqSpec.getSubConnectors()) {
+				if (connSpec.getSubConnector(reqSub.getID()) != null && reqSub.getBalance() != null) {
+					BalanceState.setIfUnknown(reqSub.getID(), AccountHealth.parseBalance(reqSub.getBalance()),
+							BalanceState.SOURCE_REQUEST);
 				}
 			}
+			BalanceState.publish(connSpec);
 		}
 	}
 
 	/**
-	 * Called to update balance. Updates subconnector's balances concurrently.
+	 * Called to update balance.
+	 * The update may be put off till the network is in use anyway, see {@link NetworkWindow}.
 	 */
 	@Override
 	protected void doUpdate(final Context context, final Intent intent) {
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (NetworkWindow.deferRefresh(prefs, NetworkProfile.get(context))) {
+			Log.d(TAG, "balance refresh put off till the next network window");
+			publishBalances(context, this.getSpec(context));
+			return;
+		}
+		refreshBalances(context);
+	}
+
+	/**
+	 * Updates subconnector's balances concurrently.
+	 * Quarantined accounts are skipped, see {@link AccountHealth}.
+	 * Balances of pool subconnectors are derived from the balances of their accounts.
+	 */
+	private void refreshBalances(final Context context) {
 		final ConnectorSpec cs = this.getSpec(context);
-		final int subCount = cs.getSubConnectorCount();
-		final SubConnectorSpec[] subs = cs.getSubConnectors();
+		final List<SubConnectorSpec> subs = new ArrayList<SubConnectorSpec>();
+		for (SubConnectorSpec sub : cs.getSubConnectors()) {
+			if (AccountPool.isPoolId(sub.getID())) {
+				continue;
+			}
+			if (AccountHealth.isQuarantined(sub.getID())) {
+				Log.d(TAG, "skipping quarantined subconnector " + sub.getID());
+				continue;
+			}
+			subs.add(sub);
+		}
+		final int subCount = subs.size();
 
 		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(subCount);
 		for (SubConnectorSpec sub : subs) {
@@ -206,23 +274,25 @@ public class CabbageConnector extends Connector {
 
 			tasks.add(new Callable<Void>() {
 				public Void call() throws Exception {
-					// clone intent and assign it to this sub connector
-					final Intent subIntent = new Intent(intent);
-					ConnectorCommand cmd = new ConnectorCommand(subIntent);
-					cmd.setSelectedSubConnector(subId);
-					cmd.setToIntent(subIntent);
 					// update balance for this subconnector
-					sendData(context, new ConnectorCommand(subIntent));
+					updateBalance(subId, sendData(context, null, subId, null), BalanceState.SOURCE_UPDATE);
 					return null;
 				}
 			});
 		}
 
 		try {
-			final ExecutorService executor = Executors.newFixedThreadPool(subCount);
-			// execute all updates in parallel and wait till all are complete
+			// no more threads than requests the scheduler may let through at once on this network
+			// (and at least one, as all accounts may be quarantined)
+			final int maxThreads = Math.min(AimdLimit.MAX_LIMIT, NetworkProfile.get(context).getMaxConcurrency());
+			final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(subCount, maxThreads)));
+			// execute all updates and wait till all are complete
 			final List<Future<Void>> results = executor.invokeAll(tasks);
 			executor.shutdownNow();
+			updatePoolBalances(context, cs);
+			publishBalances(context, cs);
+			ConnectorStats.dump(TAG);
+			DataUsage.get().dump(TAG);
 
 			// if any of the updates failed then re-throw the first exception
 			// (which will then be returned to WebSMS)
@@ -231,7 +301,7 @@ public class CabbageConnector extends Connector {
 				try {
 					result.get();
 				} catch (ExecutionException ex) {
-					String subName = subs[idx].getName();
+					String subName = subs.get(idx).getName();
 					throw new WebSMSException(subName + ": " + ConnectorSpec.convertErrorMessage(context, ex.getCause()));
 				}
 			}
@@ -242,272 +312,675 @@ public class CabbageConnector extends Connector {
 
 	/**
 	 * Called to send the actual message.
+	 * Sends of the same text from the same account that arrive within the batching window
+	 * are merged into one multi-recipient request.
+	 * Balance refreshes pause until the send is over.
 	 */
 	@Override
 	protected void doSend(final Context context, final Intent intent)
 			throws IOException {
-		sendData(context, new ConnectorCommand(intent));
+		final ConnectorCommand command = new ConnectorCommand(intent);
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+		// pause balance refreshes while the user sends
+		RequestScheduler.beginSend();
+		try {
+			SEND_COALESCER.send(command.getSelectedSubConnector(), command.getText(), command.getRecipients(),
+					CabbageConnectorPreferences.getSendBatchWindow(prefs),
+					new SendCoalescer.BatchSender() {
+						public void send(String accId, String text, String[] recipients) throws IOException {
+							sendMessage(context, command, recipients);
+						}
+					});
+		} finally {
+			RequestScheduler.endSend();
+		}
+
+		// the radio is up after the send, so a balance refresh that was put off costs little now
+		if (NetworkWindow.takePendingRefresh()) {
+			refreshInBackground(context);
+		}
+		ConnectorStats.dump(TAG);
+		DataUsage.get().dump(TAG);
 	}
 
 	/**
-	 * Communicates with Cabbage server to send a message or to request the current balance.
+	 * Refreshes the balances in the background, so the result of the send does not wait for it,
+	 * and then passes them to WebSMS.
 	 */
-	private void sendData(final Context context, final ConnectorCommand command)
+	private void refreshInBackground(final Context context) {
+		final Context appContext = context.getApplicationContext();
+		PENDING_REFRESHES.execute(new Runnable() {
+			public void run() {
+				try {
+					refreshBalances(appContext);
+				} catch (RuntimeException e) {
+					// nobody waits for this refresh, the balances that could be refreshed are still passed on
+					Log.w(TAG, "put off balance refresh failed", e);
+				}
+
+				final ConnectorSpec cs = getSpec(appContext);
+				final Intent intent = new Intent(Connector.ACTION_INFO);
+				BalanceState.publish(cs);
+				cs.setToIntent(intent);
+				appContext.sendBroadcast(intent);
+			}
+		});
+	}
+
+	/**
+	 * Sends the message to the given recipients and updates the balance.
+	 * In broadcast mode, a long list of recipients is split into provider-sized chunks
+	 * which are sent concurrently.
+	 * Messages sent through a pool subconnector are spread across the accounts of the pool.
+	 */
+	private void sendMessage(final Context context, final ConnectorCommand command, final String[] recipients)
 			throws IOException {
+		final ConnectorSpec cs = this.getSpec(context);
+		final String subId = command.getSelectedSubConnector();
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
-		// check network availability
-		if (!Utils.isNetworkAvailable(context)) {
-			throw new WebSMSNoNetworkException(context);
+		if (AccountPool.isPoolId(subId)) {
+			final String provider = AccountPool.getProvider(subId);
+			final List<String> members = AccountPool.getHealthyMembers(prefs, provider);
+			if (members.isEmpty()) {
+				// quarantined or failing accounts are not used, not even as a last resort
+				throw new WebSMSException(context, R.string.pool_err_no_healthy_accounts);
+			}
+			final List<String[]> chunks = splitRecipients(recipients, ProviderLimits.getMaxRecipients(provider));
+			final List<String> accIds = AccountPool.assignChunks(members, chunks);
+			sendBroadcast(context, command, accIds, chunks);
+			updatePoolBalances(context, cs);
+			publishBalances(context, cs);
+			return;
 		}
 
-		int sendRes = trySendingData(context, command, null);
+		final String provider = AccountPreferences.getProvider(prefs, subId);
+		final int chunkSize = ProviderLimits.getMaxRecipients(provider);
 
-		if (sendRes == SENT_NEED_CAPTCHA) {
-			boolean canUseCaptchaSolver = CaptcherSolverClient.canUse(context);
-			boolean wasSolverUsed = false;
+		if (CabbageConnectorPreferences.isBroadcastMode(prefs) && recipients != null && recipients.length > chunkSize) {
+			final List<String[]> chunks = splitRecipients(recipients, chunkSize);
+			sendBroadcast(context, command, Collections.nCopies(chunks.size(), subId), chunks);
+		} else {
+			updateBalance(subId, sendData(context, command.getText(), subId, recipients), BalanceState.SOURCE_SEND);
+		}
+		updatePoolBalances(context, cs);
+		publishBalances(context, cs);
+	}
 
-			int attempts = 0;
-			while (sendRes == SENT_NEED_CAPTCHA) {
-				++attempts;
+	/**
+	 * Sends the message to each chunk of recipients concurrently, each chunk through the given account.
+	 * Chunks of one account are sent concurrently only if the provider allows it.
+	 * Reports recipients of failed chunks in the thrown exception,
+	 * and takes the balance of each account from the lowest balance its chunks reported.
+	 */
+	private void sendBroadcast(final Context context, final ConnectorCommand command,
+			final List<String> accIds, final List<String[]> chunks) throws IOException {
+		final ConnectorSpec cs = this.getSpec(context);
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		Log.d(TAG, "broadcasting in " + chunks.size() + " chunks");
+
+		final List<Callable<String>> tasks = new ArrayList<Callable<String>>(chunks.size());
+		for (int idx = 0; idx < chunks.size(); idx++) {
+			final String accId = accIds.get(idx);
+			final String[] chunk = chunks.get(idx);
+			final Semaphore accountSlots = getAccountSlots(accId, AccountPreferences.getProvider(prefs, accId));
+
+			tasks.add(new Callable<String>() {
+				public String call() throws Exception {
+					accountSlots.acquire();
+					try {
+						return sendData(context, command.getText(), accId, chunk);
+					} finally {
+						accountSlots.release();
+					}
+				}
+			});
+		}
 
-				Bitmap captcha = retrieveCaptcha(context, command);
+		final List<Future<String>> results;
+		final int maxThreads = Math.min(ProviderLimits.MAX_PARALLEL_CHUNKS,
+				NetworkProfile.get(context).getMaxConcurrency());
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxThreads, chunks.size()));
+		try {
+			// send all chunks and wait till all are complete
+			results = executor.invokeAll(tasks);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while broadcasting");
+		} finally {
+			executor.shutdownNow();
+		}
 
-				String captchaAnswer = null;
-				if (canUseCaptchaSolver) {
-					int remainingAttempts = CaptcherSolverClient.getMaxAttempts() - attempts;
-					if (remainingAttempts >= 0) {
-						captchaAnswer = solveCaptchaWithSolver(context, captcha);
-						wasSolverUsed = true;
+		// aggregate results per recipient
+		final Map<String, String> lowestBalances = new HashMap<String, String>();
+		Throwable firstFailure = null;
+		final List<String> failedRecipients = new ArrayList<String>();
+		int totalRecipients = 0;
 
-						if (TextUtils.isEmpty(captchaAnswer) && remainingAttempts > 0) {
-							captchaAnswer = "x";    // request another captcha
-						}
-					}
+		for (int idx = 0; idx < results.size(); idx++) {
+			final String accId = accIds.get(idx);
+			final String[] chunk = chunks.get(idx);
+			totalRecipients += chunk.length;
+			try {
+				final String balance = results.get(idx).get();
+				if (!lowestBalances.containsKey(accId) || isLower(balance, lowestBalances.get(accId))) {
+					lowestBalances.put(accId, balance);
 				}
-
-				if (TextUtils.isEmpty(captchaAnswer)) {
-					captchaAnswer = solveCaptchaWithUser(context, captcha, wasSolverUsed);
+			} catch (ExecutionException ex) {
+				Log.w(TAG, "failed to send chunk " + idx, ex.getCause());
+				if (firstFailure == null) {
+					firstFailure = ex.getCause();
 				}
-
-				if (TextUtils.isEmpty(captchaAnswer)) {
-					throw new WebSMSException(context, R.string.error_captcha_not_solved);
+				for (String recipient : chunk) {
+					failedRecipients.add(recipient);
 				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while broadcasting");
+			}
+		}
+
+		// reconcile balances from the lowest balance of each account: the chunks ran in parallel,
+		// so the gateway may have processed them in another order than they completed here,
+		// but the lowest balance reflects all texts sent
+		for (Map.Entry<String, String> lowestBalance : lowestBalances.entrySet()) {
+			updateBalance(lowestBalance.getKey(), lowestBalance.getValue(), BalanceState.SOURCE_SEND);
+		}
 
-				sendRes = trySendingData(context, command, captchaAnswer);
+		if (firstFailure != null) {
+			if (lowestBalances.isEmpty() && firstFailure instanceof IOException) {
+				throw (IOException) firstFailure;
+			} else if (lowestBalances.isEmpty() && firstFailure instanceof RuntimeException) {
+				throw (RuntimeException) firstFailure;
 			}
+			final String msgTemplate = context.getString(R.string.error_broadcast_partial);
+			throw new WebSMSException(MessageFormat.format(msgTemplate,
+					failedRecipients.size(), totalRecipients,
+					Utils.joinRecipientsNumbers(failedRecipients.toArray(new String[failedRecipients.size()]), ", ", false),
+					ConnectorSpec.convertErrorMessage(context, firstFailure)));
 		}
 	}
-	
+
 	/**
-	 * First attempt to communicates with Cabbage server.
-	 * Returns SENT_DONE or SENT_NEED_CAPTCHA.
+	 * Checks if the balance is lower than the other one. A balance that is not a number is never lower,
+	 * and any number is lower than a balance that is not a number.
 	 */
-	private int trySendingData(final Context context, final ConnectorCommand command, final String captchaAnswer)
-			throws IOException {
-		Log.d(TAG, "trying to send request to the server");
-		int res = SENT_DONE;
+	private static boolean isLower(final String balance, final String other) {
+		final int value = SendJournal.parseBalance(balance);
+		final int otherValue = SendJournal.parseBalance(other);
+		return value >= 0 && (otherValue < 0 || value < otherValue);
+	}
 
-		final ConnectorSpec cs = this.getSpec(context);
-		final String accId = command.getSelectedSubConnector();
+	/**
+	 * Returns the semaphore limiting concurrent broadcast chunks of the account.
+	 */
+	private static Semaphore getAccountSlots(final String accId, final String provider) {
+		synchronized (ACCOUNT_SLOTS) {
+			Semaphore slots = ACCOUNT_SLOTS.get(accId);
+			if (slots == null) {
+				slots = new Semaphore(ProviderLimits.getMaxParallelChunks(provider));
+				ACCOUNT_SLOTS.put(accId, slots);
+			}
+			return slots;
+		}
+	}
 
-		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		final String provider = AccountPreferences.getProvider(prefs, accId);
+	/**
+	 * Splits recipients into chunks of the given size.
+	 */
+	private static List<String[]> splitRecipients(final String[] recipients, final int chunkSize) {
+		final List<String[]> chunks = new ArrayList<String[]>();
+		for (int start = 0; start < recipients.length; start += chunkSize) {
+			final String[] chunk = new String[Math.min(chunkSize, recipients.length - start)];
+			System.arraycopy(recipients, start, chunk, 0, chunk.length);
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
 
-		// prepare web request
-		final HttpOptions o = new HttpOptions(ENCODING);
-		final ArrayList<BasicNameValuePair> d = new ArrayList<BasicNameValuePair>();
-		populateCommonOptions(o, d, cs, accId, provider, prefs);
+	/**
+	 * Sets the balance of the subconnector. Does not lock the spec, see {@link #publishBalances}.
+	 */
+	private void updateBalance(final String accId, final String balance, final int source) {
+		BalanceState.set(accId, balance, source);
+	}
 
-		o.url = CabbageConnectorPreferences.getCabbageUrl(prefs, provider);
+	/**
+	 * Copies the current balances into the spec, which is then passed to WebSMS,
+	 * and keeps them for the next start.
+	 */
+	private void publishBalances(final Context context, final ConnectorSpec cs) {
+		BalanceState.publish(cs);
+		SpecSnapshot.save(context, cs);
+	}
 
-		String text = command.getText();
-		if (text != null && text.length() > 0) {
-			addParam(d, PARAM_RECIPIENTS, Utils.joinRecipientsNumbers(command.getRecipients(), ",", false /*oldFormat*/));
-			addParam(d, PARAM_TEXT, text);
-		} else {
-			addParam(d, PARAM_BALANCE_ONLY, "1");
+	/**
+	 * Sets balances of pool subconnectors to the combined balances of their accounts.
+	 */
+	private void updatePoolBalances(final Context context, final ConnectorSpec cs) {
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		for (SubConnectorSpec sub : cs.getSubConnectors()) {
+			if (AccountPool.isPoolId(sub.getID())) {
+				final String balance = AccountPool.getPoolBalance(prefs, AccountPool.getProvider(sub.getID()));
+				updateBalance(sub.getID(), balance, BalanceState.SOURCE_POOL);
+			}
 		}
+	}
 
-		if (captchaAnswer != null) {
-			addParam(d, PARAM_CAPTCHA_ANSWER, captchaAnswer);
+	/**
+	 * Communicates with Cabbage server to send a message or to request the current balance.
+	 * The request is made for the given account, and the text (if any) is sent to the given recipients.
+	 * Returns the balance reported by the server.
+	 */
+	private String sendData(final Context context, final String text, final String accId,
+			final String[] recipients) throws IOException {
+
+		// check network availability
+		if (!Utils.isNetworkAvailable(context)) {
+			throw new WebSMSNoNetworkException(context);
 		}
 
-		o.addFormParameter(d);
+		if (TextUtils.isEmpty(text)) {
+			return exchangeData(context, null, accId, recipients);
+		}
 
-		// send web request to the server and read the response
-		HttpResponse response = Utils.getHttpClient(o);
+		// a retry of a send with an unknown outcome first checks if the earlier send has gone through
+		final SendJournal journal = SendJournal.get();
+		final SendJournal.Attempt earlierAttempt = journal.findUnknown(accId, recipients, text);
+		if (earlierAttempt != null) {
+			final String balance = reconcileAttempt(context, accId, earlierAttempt);
+			if (balance != null) {
+				return balance;
+			}
+		}
 
-		// process the response
-		checkResponseCode(context, response);
+		final long attemptId = journal.begin(accId, recipients, text);
+		try {
+			final String balance = exchangeData(context, text, accId, recipients);
+			journal.complete(attemptId);
+			return balance;
+
+		} catch (GatewayException e) {
+			// the attempt is kept unless the server has surely rejected the message
+			if (RetryRules.isRejected(e.getCode(), e.getErrorClass())) {
+				journal.abandon(attemptId);
+			}
+			throw e;
 
-		String responseText = Utils.stream2str(response.getEntity().getContent()).trim();
-		Log.d(TAG, "HTTP RESPONSE: " + responseText);
+		} catch (RuntimeException e) {
+			// the message has not been sent at all (e.g. the captcha has not been solved)
+			journal.abandon(attemptId);
+			throw e;
 
-		if (provider.equals(AccountPreferences.PROVIDER_VODAFONE) && responseText.contains("JSESSIONID")) {
-			processVodafoneCookies(prefs, accId, responseText);
-			res = SENT_NEED_CAPTCHA;
-		} else {
-			processRegularResponse(context, command, cs, responseText);
+		} catch (IOException e) {
+			// unless the request could not reach the server, the outcome is not known and the attempt is kept
+			if (isConnectFailure(e)) {
+				journal.abandon(attemptId);
+			}
+			throw e;
 		}
-		return res;
 	}
 
 	/**
-	 * Populates common request options.
+	 * Checks if an earlier attempt to send the same message, whose outcome is not known, has gone through:
+	 * it has if the balance has dropped since the attempt by at least the number of its recipients
+	 * and no other send of the account could have caused the drop.
+	 * Returns the current balance if the attempt has gone through, otherwise forgets the attempt and returns null.
 	 */
-	private void populateCommonOptions(final HttpOptions o, final ArrayList<BasicNameValuePair> d,
-			final ConnectorSpec cs, final String accId, final String provider, final SharedPreferences prefs) {
-		o.timeout = CONN_TIMEOUT_MS;
-		o.maxConnections = cs.getSubConnectorCount() + 1;
-		
-		addParam(d, PARAM_PROVIDER, provider);
-		addParam(d, PARAM_USERNAME, AccountPreferences.getUsername(prefs, accId));
-		addParam(d, PARAM_PASSWORD, AccountPreferences.getPassword(prefs, accId));
-		
-		String cookies = AccountPreferences.getCookies(prefs, accId);
-		if (!TextUtils.isEmpty(cookies)) {
-			for (String cookie : cookies.split("&")) {
-				String[] cookieParts = cookie.split("=");
-				addParam(d, cookieParts[0], URLDecoder.decode(cookieParts[1]));
+	private String reconcileAttempt(final Context context, final String accId, final SendJournal.Attempt attempt)
+			throws IOException {
+		final SendJournal journal = SendJournal.get();
+		if (attempt.getBalanceBefore() >= 0 && !journal.hasOtherAttempts(accId, attempt)) {
+			// part of the send, so it goes with the priority of a send (refreshes wait for the send to end)
+			// null if a captcha needs to be solved, then the balance is not known
+			final String balance = trySendingDataWithRetry(context, null, accId, null, null, true);
+			if (RetryRules.isEarlierSendDone(attempt.getBalanceBefore(), SendJournal.parseBalance(balance),
+					attempt.getRecipients())) {
+				Log.i(TAG, "earlier send has gone through, not sending again");
+				journal.complete(attempt.getId());
+				return balance;
 			}
 		}
+		journal.abandon(attempt.getId());
+		return null;
 	}
 
 	/**
-	 * Parses HTTP response code. Throws {@link WebSMSException} if response != HTTP_OK.
+	 * Communicates with Cabbage server to send the text (if any) or to request the current balance,
+	 * solving captchas if needed.
+	 * Returns the balance reported by the server.
 	 */
-	private void checkResponseCode(final Context context, final HttpResponse response) {
-		
-		final int resp = response.getStatusLine().getStatusCode();
-		if (resp != HttpURLConnection.HTTP_OK) {
-			// log error response
-			Log.e(TAG, "HTTP Status Line: " + response.getStatusLine().toString());
-			Log.e(TAG, "HTTP Headers:");
-			for (Header h : response.getAllHeaders()) {
-				Log.e(TAG, h.getName() + ": " + h.getValue());
+	private String exchangeData(final Context context, final String text, final String accId,
+			final String[] recipients) throws IOException {
+		final boolean isSend = !TextUtils.isEmpty(text);
+		String balance = trySendingDataWithRetry(context, text, accId, recipients, null, isSend);
+
+		if (balance == null) {
+			boolean canUseCaptchaOcr = CaptchaRecognizer.canUse(context);
+			boolean canUseCaptchaSolver = CaptcherSolverClient.canUse(context);
+			boolean wasSolverUsed = false;
+
+			final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+			final boolean isPrefetch = NetworkProfile.get(context).isCaptchaPrefetch(
+					CabbageConnectorPreferences.isCaptchaPrefetch(prefs));
+			final ExecutorService prefetcher = isPrefetch ? Executors.newSingleThreadExecutor() : null;
+			Future<CaptchaImage> nextCaptcha = null;
+
+			try {
+				int ocrAttempts = 0;
+				int attempts = 0;
+				while (balance == null) {
+					final CaptchaImage captcha = nextCaptcha != null
+							? takePrefetchedCaptcha(context, accId, isSend, nextCaptcha)
+							: retrieveCaptcha(context, accId, isSend);
+					nextCaptcha = null;
+
+					String captchaAnswer = null;
+					try {
+						CaptchaOcr.Result recognized = null;
+						if (canUseCaptchaOcr) {
+							recognized = CaptchaRecognizer.recognize(context, captcha.getBitmap());
+							if (ocrAttempts < CaptchaRecognizer.getMaxAttempts()) {
+								captchaAnswer = CaptchaRecognizer.getConfidentAnswer(recognized);
+								if (captchaAnswer != null) {
+									++ocrAttempts;
+									wasSolverUsed = true;
+								}
+							}
+						}
+
+						if (TextUtils.isEmpty(captchaAnswer) && canUseCaptchaSolver) {
+							++attempts;
+							int remainingAttempts = CaptcherSolverClient.getMaxAttempts() - attempts;
+							if (remainingAttempts >= 0) {
+								captchaAnswer = solveCaptchaWithSolver(context, captcha, recognized);
+								wasSolverUsed = true;
+
+								if (TextUtils.isEmpty(captchaAnswer) && remainingAttempts > 0) {
+									captchaAnswer = "x";    // request another captcha
+								}
+							}
+						}
+
+						if (TextUtils.isEmpty(captchaAnswer)) {
+							captchaAnswer = solveCaptchaWithUser(context, captcha, wasSolverUsed);
+						}
+					} finally {
+						// the image has been copied into the broadcasts, so it can go
+						captcha.recycle();
+					}
+
+					if (TextUtils.isEmpty(captchaAnswer)) {
+						throw new WebSMSException(context, R.string.error_captcha_not_solved);
+					}
+
+					// fetch the next captcha while the answer is checked, in case it is rejected
+					if (prefetcher != null) {
+						nextCaptcha = prefetcher.submit(new Callable<CaptchaImage>() {
+							public CaptchaImage call() throws Exception {
+								return retrieveCaptcha(context, accId, isSend);
+							}
+						});
+					}
+
+					balance = trySendingDataWithRetry(context, text, accId, recipients, captchaAnswer, isSend);
+				}
+			} finally {
+				// the send is over, the prefetched captcha is not needed
+				if (nextCaptcha != null) {
+					discardPrefetchedCaptcha(nextCaptcha);
+				}
+				if (prefetcher != null) {
+					prefetcher.shutdownNow();
+				}
 			}
+		}
+		return balance;
+	}
+
+	/**
+	 * Communicates with Cabbage server, automatically retrying transient failures with a jittered backoff.
+	 * A send is only retried if it surely has not reached the server, see {@link RetryRules}.
+	 * Requests that are known to fail again are rejected without contacting the server.
+	 * The health of the account is updated once for the request, not for each attempt.
+	 * Urgent requests (those of user sends) go ahead of balance refreshes.
+	 * Returns the balance reported by the server or null if a captcha needs to be solved.
+	 */
+	private String trySendingDataWithRetry(final Context context, final String text, final String accId,
+			final String[] recipients, final String captchaAnswer, final boolean urgent) throws IOException {
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		final boolean isSend = !TextUtils.isEmpty(text);
+
+		KnownFailures.check(prefs, accId, isSend, urgent);
+
+		for (int attempt = 0; ; attempt++) {
 			try {
-				final String htmlText = Utils.stream2str(response.getEntity().getContent()).trim();
-				Log.e(TAG, "HTTP Body:");
-				for (String l : htmlText.split("\n")) {
-					Log.e(TAG, l);
+				final String balance = trySendingData(context, text, accId, recipients, captchaAnswer, urgent);
+				if (balance != null) {
+					KnownFailures.clear(accId);
+				}
+				return balance;
+
+			} catch (GatewayException e) {
+				KnownFailures.record(prefs, accId, e);
+				if (attempt >= MAX_RETRIES || !RetryRules.mayRetry(e.getErrorClass(), isSend)) {
+					AccountHealth.recordFailure(accId, e.getErrorClass());
+					throw e;
 				}
-			} catch (Exception e) {
-				Log.w(TAG, "error getting content", e);
+				Log.w(TAG, "retrying after gateway error " + e.getCode());
+
+			} catch (IOException e) {
+				final boolean isInterrupted = Thread.currentThread().isInterrupted();
+				if (attempt >= MAX_RETRIES || !RetryRules.mayRetry(isConnectFailure(e), isInterrupted, isSend)) {
+					if (!isInterrupted && !(e instanceof InterruptedIOException)) {
+						AccountHealth.recordFailure(accId, null);
+					}
+					throw e;
+				}
+				Log.w(TAG, "retrying after " + e.toString());
 			}
 
-			throw new WebSMSException(context, R.string.error_http, String.valueOf(resp));
+			// exponential backoff with jitter (half of the delay is random)
+			final long delay = RETRY_BASE_DELAY_MS << attempt;
+			final long jitter;
+			synchronized (RETRY_JITTER) {
+				jitter = (long) (RETRY_JITTER.nextDouble() * delay / 2);
+			}
+			try {
+				Thread.sleep(delay / 2 + jitter);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting to retry");
+			}
 		}
 	}
 
 	/**
-	 * Parses response from Cabbage server.
-	 * Should be a number: remaining balance if positive or error code if negative.
-	 * NOTE that some free php hosting sites add a trailer to all pages, so take the first number from the response.
+	 * Checks if the I/O error means that the request could not reach the server.
 	 */
-	private void processRegularResponse(final Context context, 
-			final ConnectorCommand command, final ConnectorSpec cs, final String responseText) {
+	private static boolean isConnectFailure(final IOException e) {
+		return e instanceof ConnectTimeoutException || e instanceof ConnectException || e instanceof UnknownHostException;
+	}
 
-		final Matcher m = FIRST_NUMBER.matcher(responseText);
-		if (!m.find()) {
-			throw new WebSMSException(context.getString(R.string.cabbage_err_unexpected));
-		}
-		final String retCode = m.group();
-		int retNumCode = Integer.parseInt(retCode);
-		
-		if (retNumCode >= 0) {
-			synchronized (SYNC_UPDATE) {
-				cs.getSubConnector(command.getSelectedSubConnector()).setBalance(retCode);
+	/**
+	 * First attempt to communicates with Cabbage server.
+	 * Urgent requests (those of user sends) go ahead of balance refreshes.
+	 * Returns the balance reported by the server or null if a captcha needs to be solved.
+	 */
+	private String trySendingData(final Context context, final String text, final String accId,
+			final String[] recipients, final String captchaAnswer, final boolean urgent) throws IOException {
+		Log.d(TAG, "trying to send request to the server");
+
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		final String provider = AccountPreferences.getProvider(prefs, accId);
+
+		final boolean isSend = !TextUtils.isEmpty(text);
+		final String joinedRecipients = isSend ? Utils.joinRecipientsNumbers(recipients, ",", false /*oldFormat*/)
+				: null;
+
+		// shape requests to the provider and the account
+		RateLimiter.acquire(prefs, provider, accId, urgent);
+
+		// user sends go ahead of balance refreshes, refreshes keep within the gateway's concurrency limit
+		final NetworkProfile profile = NetworkProfile.get(context);
+		final RequestScheduler.Permit permit = RequestScheduler.acquire(
+				CabbageConnectorPreferences.getCabbageUrl(prefs, provider), urgent, profile.getMaxConcurrency());
+		int outcome = RequestScheduler.OUTCOME_FAILURE;
+		try {
+			final long startTime = System.currentTimeMillis();
+			final String balance;
+			try {
+				balance = getClient(prefs, profile, accId, provider)
+						.exchange(accId, text, joinedRecipients, captchaAnswer);
+			} catch (GatewayError e) {
+				outcome = getSchedulerOutcome(e);
+				throw toWebSMSException(context, e);
+			} catch (IOException e) {
+				outcome = getSchedulerOutcome(e);
+				throw e;
 			}
-		} else {
-			throw new WebSMSException(getErrorMessage(context, retNumCode));
+			AccountHealth.recordSuccess(accId, System.currentTimeMillis() - startTime);
+			outcome = RequestScheduler.OUTCOME_SUCCESS;
+			return balance;
+		} finally {
+			RequestScheduler.release(permit, outcome);
+			NetworkWindow.recordActivity();
 		}
 	}
 
 	/**
-	 * Parses Vodafone cookies returned from Cabbage server in the form:
-	 *   JSESSIONID=m7m0Q4QC0qTfyyQQ42YL8S<br/>supercookie=6d376d3071347163201e<br/>
-	 * and store ("&" separated) in Preferences.
-	 * NOTE that some free php hosting sites add a trailer to all pages, so need to ignore it.
+	 * Returns how the failure of a request reflects on the load of the gateway.
+	 * Timeouts, HTTP server errors, throttling and transient gateway errors are signs of overload.
+	 * Other failures do not count as successes either, so they never raise the concurrency limit.
 	 */
-	private void processVodafoneCookies(final SharedPreferences prefs, final String accId, final String responseText) {
-		String jsessionid = "";
-		int startIdx = responseText.indexOf("JSESSIONID=");
-		if (startIdx >= 0) {
-			int endIdx = responseText.indexOf("<br/>", startIdx+11);
-			if (endIdx >= 0) {
-				jsessionid = responseText.substring(startIdx+11, endIdx);
-			}
+	private static int getSchedulerOutcome(final IOException e) {
+		if (e instanceof GatewayError) {
+			return ((GatewayError) e).isOverload()
+					? RequestScheduler.OUTCOME_OVERLOAD : RequestScheduler.OUTCOME_FAILURE;
+		} else if (e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException) {
+			return RequestScheduler.OUTCOME_OVERLOAD;
+		} else {
+			return RequestScheduler.OUTCOME_FAILURE;
 		}
+	}
 
-		String supercookie = "";
-		startIdx = responseText.indexOf("supercookie=");
-		if (startIdx >= 0) {
-			int endIdx = responseText.indexOf("<br/>", startIdx+12);
-			if (endIdx >= 0) {
-				supercookie = responseText.substring(startIdx+12, endIdx);
-			}
+	/**
+	 * Creates a gateway client backed by the preferences and the pooled HTTP client.
+	 */
+	private CabbageClient getClient(final SharedPreferences prefs, final NetworkProfile profile,
+			final String accId, final String provider) {
+		// leave room in the shared connection pool for refreshes up to the concurrency limit and broadcast chunks
+		final int maxConnections = AimdLimit.MAX_LIMIT + ProviderLimits.MAX_PARALLEL_CHUNKS + 1;
+		return new CabbageClient(new PreferencesGatewayConfig(prefs),
+				new HttpGatewayTransport(maxConnections, profile.getTimeoutMs(), accId, provider));
+	}
+
+	/**
+	 * Converts a gateway error into an exception with a message for the user.
+	 */
+	private static WebSMSException toWebSMSException(final Context context, final GatewayError e) {
+		if (e.getCode() == GatewayError.CODE_UNEXPECTED_RESPONSE) {
+			return new WebSMSException(context.getString(R.string.cabbage_err_unexpected));
 		}
-		
-		AccountPreferences.setCookies(prefs, accId, 
-				"JSESSIONID=" + URLEncoder.encode(jsessionid) + "&supercookie=" + URLEncoder.encode(supercookie));
+		final String message = e.isHttpError()
+				? new WebSMSException(context, R.string.error_http, String.valueOf(e.getCode())).getMessage()
+				: ErrorTable.getMessage(context, e.getCode());
+		return new GatewayException(message, e.getCode(), e.getErrorClass());
 	}
 
 	/**
-	 * Retrieves captcha image from Cabbage server.
+	 * Retrieves captcha image from Cabbage server, with the priority of the send or refresh it belongs to.
 	 */
-	private Bitmap retrieveCaptcha(final Context context, final ConnectorCommand command)
+	private CaptchaImage retrieveCaptcha(final Context context, final String accId, final boolean isSend)
 			throws IOException {
 		Log.d(TAG, "retrieving captch image");
-		final ConnectorSpec cs = this.getSpec(context);
-		final String accId = command.getSelectedSubConnector();
 
 		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 		final String provider = AccountPreferences.getProvider(prefs, accId);
 
-		// prepare web request
-		final HttpOptions o = new HttpOptions(ENCODING);
-		final ArrayList<BasicNameValuePair> d = new ArrayList<BasicNameValuePair>();
-		populateCommonOptions(o, d, cs, accId, provider, prefs);
+		// shape requests to the provider and the account
+		RateLimiter.acquire(prefs, provider, accId, isSend);
 
-		o.url = CabbageConnectorPreferences.getCabbageUrl(prefs, provider).replace("/send.php", "/voda.send.php");
-		addParam(d, "print", "cap");
-
-		o.addFormParameter(d);
+		final byte[] image;
+		final NetworkProfile profile = NetworkProfile.get(context);
+		final RequestScheduler.Permit permit = RequestScheduler.acquire(
+				CabbageConnectorPreferences.getCabbageUrl(prefs, provider), isSend, profile.getMaxConcurrency());
+		int outcome = RequestScheduler.OUTCOME_FAILURE;
+		try {
+			image = getClient(prefs, profile, accId, provider).fetchCaptcha(accId);
+			outcome = RequestScheduler.OUTCOME_SUCCESS;
+		} catch (GatewayError e) {
+			outcome = getSchedulerOutcome(e);
+			throw toWebSMSException(context, e);
+		} catch (IOException e) {
+			outcome = getSchedulerOutcome(e);
+			throw e;
+		} finally {
+			RequestScheduler.release(permit, outcome);
+			NetworkWindow.recordActivity();
+		}
 
-		// send web request to the server and get the response
-		final HttpResponse response = Utils.getHttpClient(o);
+		final CaptchaImage captcha = CaptchaImage.decode(image);
+		if (captcha == null) {
+			throw new WebSMSException(context, R.string.error_retrieve_captcha);
+		}
+		return captcha;
+	}
 
-		// process the response
-		checkResponseCode(context, response);
+	/**
+	 * Waits for the captcha fetched in the background.
+	 * Fetches it again if the background fetch failed.
+	 */
+	private CaptchaImage takePrefetchedCaptcha(final Context context, final String accId, final boolean isSend,
+			final Future<CaptchaImage> captcha) throws IOException {
+		final long startTime = System.currentTimeMillis();
+		try {
+			final CaptchaImage prefetched = captcha.get();
+			ConnectorStats.record(ConnectorStats.CAPTCHA_PREFETCH_WAIT_MS, System.currentTimeMillis() - startTime);
+			if (prefetched != null) {
+				return prefetched;
+			}
+		} catch (ExecutionException e) {
+			Log.w(TAG, "failed to prefetch captcha", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for captcha");
+		}
+		return retrieveCaptcha(context, accId, isSend);
+	}
 
-		final HttpEntity entity = response.getEntity();
-        if (entity == null) {
-        	throw new WebSMSException(context, R.string.error_retrieve_captcha);
-        }
-        InputStream inputStream = null;
-        try {
-            inputStream = entity.getContent();
-            return BitmapFactory.decodeStream(inputStream);
-        } finally {
-            if (inputStream != null) {
-                inputStream.close();
-            }
-            entity.consumeContent();
-        }
+	/**
+	 * Cancels the background fetch of a captcha, or frees the captcha if it has already been fetched.
+	 */
+	private void discardPrefetchedCaptcha(final Future<CaptchaImage> captcha) {
+		if (!captcha.cancel(true) && !captcha.isCancelled()) {
+			try {
+				final CaptchaImage prefetched = captcha.get();
+				if (prefetched != null) {
+					prefetched.recycle();
+				}
+			} catch (ExecutionException e) {
+				// nothing to free
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	/**
 	 * Asks user to solve the captcha.
 	 */
-	private String solveCaptchaWithUser(final Context context, final Bitmap captcha, final boolean wasSolverUsed) {
+	private String solveCaptchaWithUser(final Context context, final CaptchaImage captcha,
+			final boolean wasSolverUsed) throws IOException {
 		Log.d(TAG, "requesting captcha answer from user");
-		CabbageConnector.receivedCaptchaAnswer = null;
 
 		// send request to WebSMS
 		final Intent intent = new Intent(Connector.ACTION_CAPTCHA_REQUEST);
-	    getSpec(context).setToIntent(intent);
-	    intent.putExtra(Connector.EXTRA_CAPTCHA_DRAWABLE, captcha);
+	    final ConnectorSpec cs = getSpec(context);
+	    BalanceState.publish(cs);
+	    cs.setToIntent(intent);
+	    intent.putExtra(Connector.EXTRA_CAPTCHA_DRAWABLE, captcha.getBitmap());
 	    if (CaptcherSolverClient.shouldRemind(context)) {
 		    intent.putExtra(Connector.EXTRA_CAPTCHA_MESSAGE, context.getString(R.string.websms_captcha_text_with_tip));
 	    } else if (wasSolverUsed) {
@@ -515,38 +988,31 @@ public class CabbageConnector extends Connector {
 	    } else {
 		    intent.putExtra(Connector.EXTRA_CAPTCHA_MESSAGE, context.getString(R.string.websms_captcha_text));
 	    }
-	    context.sendBroadcast(intent);
-
-	    // wait for answer
-	    try {
-	        synchronized (CAPTCHA_SYNC) {
-	            CAPTCHA_SYNC.wait(CAPTCHA_ANSWER_TIMEOUT);
-	        }
-	    } catch (InterruptedException e) {
-	    }
 
-	    return CabbageConnector.receivedCaptchaAnswer;
+	    // register before sending, so an early answer is not lost
+	    final CaptchaWaits<String>.Waiter waiter = USER_CAPTCHAS.register(CAPTCHA_ANSWER_TIMEOUT);
+	    context.sendBroadcast(intent);
+	    return waiter.await();
 	}
 
 	/**
 	 * Asks the captcha solver app to solve the captcha.
 	 */
-	private String solveCaptchaWithSolver(final Context context, final Bitmap captcha) {
+	private String solveCaptchaWithSolver(final Context context, final CaptchaImage captcha,
+			final CaptchaOcr.Result recognized) throws IOException {
 		Log.d(TAG, "requesting captcha answer from Captcha Solver");
-		CabbageConnector.receivedCaptchaAnswer = null;
 
 		// send request to captcha solver app
-		final Intent intent = CaptcherSolverClient.createRequestIntent(captcha);
+		final Intent intent = CaptcherSolverClient.createRequestIntent(captcha.getCompressed());
+	    final CaptchaWaits<List<CaptchaAnswerFixer.Candidate>>.Waiter waiter =
+	    		SOLVER_CAPTCHAS.register(CAPTCHA_ANSWER_TIMEOUT);
 	    context.sendBroadcast(intent);
 
-	    // wait for answer
-	    try {
-	        synchronized (CAPTCHA_SYNC) {
-	            CAPTCHA_SYNC.wait(CAPTCHA_ANSWER_TIMEOUT);
-	        }
-	    } catch (InterruptedException e) {
+	    final List<CaptchaAnswerFixer.Candidate> candidates = waiter.await();
+	    if (candidates == null || candidates.isEmpty()) {
+	    	return null;
 	    }
-	    return CabbageConnector.receivedCaptchaAnswer;
+	    return CaptchaRecognizer.pickAnswer(candidates, recognized);
 	}
 
 	/**
@@ -557,9 +1023,10 @@ public class CabbageConnector extends Connector {
 		final String tag = specs.toString();
 		Log.d(tag, "got solved captcha");
 
-		String answer = CaptcherSolverClient.parseResponseIntent(context, intent);
-
-		gotSolvedCaptcha(context, answer);
+		final List<CaptchaAnswerFixer.Candidate> candidates = CaptcherSolverClient.parseResponseIntent(context, intent);
+		if (!SOLVER_CAPTCHAS.answer(candidates)) {
+			Log.d(tag, "no captcha is waiting for the solved captcha");
+		}
 
 		try {
 			this.setResultCode(Activity.RESULT_OK);
@@ -573,29 +1040,9 @@ public class CabbageConnector extends Connector {
 	 */
 	@Override
     protected void gotSolvedCaptcha(final Context context, final String solvedCaptcha) {
-		CabbageConnector.receivedCaptchaAnswer = solvedCaptcha;
-        synchronized (CAPTCHA_SYNC) {
-            CAPTCHA_SYNC.notify();
-        }
-    }
-
-
-	private ArrayList<BasicNameValuePair> addParam(final ArrayList<BasicNameValuePair> d, final String n, final String v) {
-		if (!TextUtils.isEmpty(n)) {
-			d.add(new BasicNameValuePair(n, v));
+		if (!USER_CAPTCHAS.answer(solvedCaptcha)) {
+			Log.d(TAG, "no captcha is waiting for the solved captcha");
 		}
-		return d;
-	}
+    }
 
-	private String getErrorMessage(final Context context, final int retNumCode) {
-		final String msgIdStr = ERR_MESSAGE_PREFIX + Integer.toString(-retNumCode);
-		final int msgId = context.getResources().getIdentifier(msgIdStr, "string", context.getPackageName());
-		if (msgId > 0) {
-			return context.getString(msgId);
-		} else {
-			String msgTemplate = context.getString(R.string.cabbage_err_N);
-			return MessageFormat.format(msgTemplate, retNumCode);
-		}
-	}
-	
 }
@@ -16,8 +16,16 @@
  */
 package com.mikebl71.android.websms.connector.cabbage;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -26,13 +34,18 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.Toast;
+import de.ub0r.android.websms.connector.common.Log;
 import de.ub0r.android.websms.connector.common.ConnectorPreferenceActivity;
 
 /**
@@ -40,7 +53,21 @@ import de.ub0r.android.websms.connector.common.ConnectorPreferenceActivity;
  */
 public final class CabbageConnectorPreferenceActivity extends ConnectorPreferenceActivity {
 
+	private static final String TAG = "cabbage";
+
 	public static final int DIALOG_INVALID_CONFIRM_ID = 12;
+	public static final int DIALOG_IMPORT_CONFIRM_ID = 13;
+	public static final int DIALOG_EXPORT_CONFIRM_ID = 14;
+
+	// Action for importing accounts, either from the file in the data URI or from the EXTRA_ACCOUNTS extra
+	public static final String ACTION_IMPORT_ACCOUNTS = "com.mikebl71.android.websms.connector.cabbage.IMPORT_ACCOUNTS";
+	public static final String EXTRA_ACCOUNTS = "accounts";
+
+	// Accounts from the import intent waiting for confirmation
+	private List<AccountStore.Account> pendingImport;
+
+	// Task loading the account list, if any
+	private AccountListLoader accountListLoader;
 
 	/**
 	 * {@inheritDoc}
@@ -48,6 +75,7 @@ public final class CabbageConnectorPreferenceActivity extends ConnectorPreferenc
 	@Override
 	protected void onCreate(final Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		AccountStore.open(this);
 		this.addPreferencesFromResource(R.xml.connector_prefs);
 
 		// special treatment for "enable" preference
@@ -67,6 +95,14 @@ public final class CabbageConnectorPreferenceActivity extends ConnectorPreferenc
 				return true;
 			}
 		});
+
+		// accounts passed in by an import intent are only imported when confirmed
+		if (ACTION_IMPORT_ACCOUNTS.equals(getIntent().getAction())) {
+			pendingImport = parseAccounts(readImportIntent(getIntent()));
+			if (pendingImport != null && savedInstanceState == null) {
+				showDialog(DIALOG_IMPORT_CONFIRM_ID);
+			}
+		}
 	}
 
 	/**
@@ -78,6 +114,18 @@ public final class CabbageConnectorPreferenceActivity extends ConnectorPreferenc
 		populateAccountList();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void onPause() {
+		super.onPause();
+		if (accountListLoader != null) {
+			accountListLoader.cancel(false);
+			accountListLoader = null;
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -101,6 +149,15 @@ public final class CabbageConnectorPreferenceActivity extends ConnectorPreferenc
 					AccountPreferences.createNewBundle(getPreferenceManager().getSharedPreferences()));
 			startActivityForResult(intent, 0);
 			return true;
+
+		case R.id.menu_import_accounts:
+			importFromFile(AccountTransfer.getDefaultFile());
+			return true;
+
+		case R.id.menu_export_accounts:
+			// the export contains the passwords, so it is only done when confirmed
+			showDialog(DIALOG_EXPORT_CONFIRM_ID);
+			return true;
 		}
 		return super.onOptionsItemSelected(item);
 	}
@@ -176,6 +233,51 @@ public final class CabbageConnectorPreferenceActivity extends ConnectorPreferenc
 					}
 				});
 			return builder.create();
+
+		case DIALOG_IMPORT_CONFIRM_ID:
+			// ask the user to confirm the import requested by another app
+			if (pendingImport == null) {
+				return null;
+			}
+			builder = new AlertDialog.Builder(this);
+			builder
+				.setMessage(getString(R.string.import_accounts_conf, pendingImport.size()))
+				.setCancelable(true)
+
+				.setPositiveButton(R.string.import_accounts, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int id) {
+						importAccounts(pendingImport);
+						pendingImport = null;
+					}
+				})
+
+				.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int id) {
+						pendingImport = null;
+						dialog.cancel();
+					}
+				});
+			return builder.create();
+
+		case DIALOG_EXPORT_CONFIRM_ID:
+			// warn that the passwords are passed to the app the user picks
+			builder = new AlertDialog.Builder(this);
+			builder
+				.setMessage(R.string.export_accounts_conf)
+				.setCancelable(true)
+
+				.setPositiveButton(R.string.export_accounts, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int id) {
+						exportAccounts();
+					}
+				})
+
+				.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int id) {
+						dialog.cancel();
+					}
+				});
+			return builder.create();
 		}
 		return null;
 	}
@@ -205,45 +307,204 @@ public final class CabbageConnectorPreferenceActivity extends ConnectorPreferenc
 		finish();
 	}
 
+	/**
+	 * Imports accounts from the file.
+	 */
+	private void importFromFile(final File file) {
+		if (!file.exists()) {
+			showToast(getString(R.string.import_accounts_no_file, file.getPath()));
+			return;
+		}
+		try {
+			final InputStream in = new FileInputStream(file);
+			try {
+				final List<AccountStore.Account> accounts = parseAccounts(AccountTransfer.read(in));
+				if (accounts != null) {
+					importAccounts(accounts);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "cannot read " + file, e);
+			showToast(getString(R.string.import_accounts_failed, e.getMessage()));
+		}
+	}
+
+	/**
+	 * Reads accounts document passed in the import intent. Returns null if it cannot be read.
+	 */
+	private String readImportIntent(final Intent intent) {
+		final Uri uri = intent.getData();
+		if (uri == null) {
+			return intent.getStringExtra(EXTRA_ACCOUNTS);
+		}
+		try {
+			final InputStream in = getContentResolver().openInputStream(uri);
+			try {
+				return AccountTransfer.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "cannot read " + uri, e);
+			showToast(getString(R.string.import_accounts_failed, e.getMessage()));
+			return null;
+		}
+	}
+
+	/**
+	 * Parses accounts document. Returns null (and tells the user why) if it is invalid.
+	 */
+	private List<AccountStore.Account> parseAccounts(final String document) {
+		if (document == null) {
+			return null;
+		}
+		try {
+			return AccountTransfer.parse(getApplicationContext(), document);
+		} catch (JSONException e) {
+			Log.w(TAG, "invalid accounts document", e);
+			showToast(getString(R.string.import_accounts_failed, e.getMessage()));
+			return null;
+		}
+	}
+
+	/**
+	 * Imports the accounts and refreshes the list.
+	 */
+	private void importAccounts(final List<AccountStore.Account> accounts) {
+		final int count = AccountTransfer.importAccounts(getApplicationContext(), accounts);
+		showToast(getString(R.string.import_accounts_done, count));
+		populateAccountList();
+	}
+
+	/**
+	 * Passes all accounts to an app chosen by the user.
+	 */
+	private void exportAccounts() {
+		try {
+			final Intent intent = new Intent(Intent.ACTION_SEND);
+			intent.setType("text/plain");
+			intent.putExtra(Intent.EXTRA_TEXT, AccountTransfer.export());
+			startActivity(Intent.createChooser(intent, getString(R.string.export_accounts_title)));
+		} catch (JSONException e) {
+			Log.w(TAG, "cannot export accounts", e);
+		}
+	}
+
+	private void showToast(final String text) {
+		Toast.makeText(getApplicationContext(), text, Toast.LENGTH_LONG).show();
+	}
+
 	/**
 	 * Populates list of known accounts on the preferences screen.
+	 * Accounts are loaded in the background and only the changed rows are updated.
 	 */
 	private void populateAccountList() {
-		SharedPreferences sharedPrefs = getPreferenceManager().getSharedPreferences();
-		PreferenceCategory accPrefCategory = (PreferenceCategory) findPreference(CabbageConnectorPreferences.PREFS_ACCOUNTS_CATEGORY);
-
-		accPrefCategory.removeAll();
-
-		List<String> accountIds = AccountPreferences.getAccountIds(sharedPrefs);
-		for (String accId : accountIds) {
-			Preference pref = new Preference(getApplicationContext());
-
-			pref.setKey(accId.toString());
-			pref.setTitle(AccountPreferences.getLabel(sharedPrefs, accId));
-
-			pref.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
-				public boolean onPreferenceClick(final Preference preference) {
-					// launch activity to edit account preferences
-					Intent intent = new Intent(CabbageConnectorPreferenceActivity.this, AccountPreferenceActivity.class);
-					intent.putExtra(AccountPreferences.ACCOUNT_BUNDLE, 
-							AccountPreferences.extractToBundle(
-									CabbageConnectorPreferenceActivity.this.getPreferenceManager().getSharedPreferences(), 
-									preference.getKey()));
-					startActivityForResult(intent, 0);
-					return true;
-				}
-			});
+		if (accountListLoader != null) {
+			accountListLoader.cancel(false);
+		}
+		accountListLoader = new AccountListLoader(getApplicationContext());
+		accountListLoader.execute();
+	}
 
-			accPrefCategory.addPreference(pref);
+	/**
+	 * Brings the rows of the account list in line with the loaded accounts.
+	 */
+	private void showAccountList(final AccountList accountList) {
+		final PreferenceCategory accPrefCategory = (PreferenceCategory) findPreference(CabbageConnectorPreferences.PREFS_ACCOUNTS_CATEGORY);
+
+		// drop rows of deleted accounts
+		for (int idx = accPrefCategory.getPreferenceCount() - 1; idx >= 0; idx--) {
+			final Preference pref = accPrefCategory.getPreference(idx);
+			if (!accountList.labels.containsKey(pref.getKey())) {
+				accPrefCategory.removePreference(pref);
+			}
+		}
 
-			pref.setDependency(CabbageConnectorPreferences.PREFS_ENABLED);
+		// add rows of new accounts and retitle renamed ones
+		for (Map.Entry<String, String> account : accountList.labels.entrySet()) {
+			final String accId = account.getKey();
+			Preference pref = accPrefCategory.findPreference(accId);
+			if (pref == null) {
+				pref = createAccountPreference(accId);
+				pref.setTitle(account.getValue());
+				accPrefCategory.addPreference(pref);
+				pref.setDependency(CabbageConnectorPreferences.PREFS_ENABLED);
+
+			} else if (!TextUtils.equals(pref.getTitle(), account.getValue())) {
+				pref.setTitle(account.getValue());
+			}
 		}
 
 		// special treatment for "captcha" preferences
 		final Preference captchaPref = getPreferenceScreen().findPreference(CabbageConnectorPreferences.PREFS_CAPTCHA_USE_SOLVER);
-		captchaPref.setEnabled(
-				CaptcherSolverClient.isInstalled(getApplicationContext()) && 
-				AccountPreferences.isProviderConfigured(sharedPrefs, AccountPreferences.PROVIDER_VODAFONE));
+		captchaPref.setEnabled(accountList.canUseSolver);
+	}
+
+	/**
+	 * Creates a row for the account that opens the account preferences when clicked.
+	 */
+	private Preference createAccountPreference(final String accId) {
+		final Preference pref = new Preference(getApplicationContext());
+
+		pref.setKey(accId);
+		// rows are ordered by account id
+		pref.setOrder(Integer.parseInt(accId));
+
+		pref.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+			public boolean onPreferenceClick(final Preference preference) {
+				// launch activity to edit account preferences
+				Intent intent = new Intent(CabbageConnectorPreferenceActivity.this, AccountPreferenceActivity.class);
+				intent.putExtra(AccountPreferences.ACCOUNT_BUNDLE, 
+						AccountPreferences.extractToBundle(
+								CabbageConnectorPreferenceActivity.this.getPreferenceManager().getSharedPreferences(), 
+								preference.getKey()));
+				startActivityForResult(intent, 0);
+				return true;
+			}
+		});
+		return pref;
+	}
+
+	/**
+	 * Accounts as shown on the preferences screen.
+	 */
+	private static class AccountList {
+		// Labels by account id, in the numerically ascending order of ids
+		private final Map<String, String> labels = new LinkedHashMap<String, String>();
+		// Whether the captcha solver app can be used
+		private boolean canUseSolver;
+	}
+
+	/**
+	 * Loads the accounts off the UI thread.
+	 */
+	private class AccountListLoader extends AsyncTask<Void, Void, AccountList> {
+		private final Context context;
+
+		public AccountListLoader(final Context context) {
+			this.context = context;
+		}
+
+		@Override
+		protected AccountList doInBackground(final Void... params) {
+			final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+			final AccountList accountList = new AccountList();
+			for (String accId : AccountPreferences.getAccountIds(prefs)) {
+				accountList.labels.put(accId, AccountPreferences.getLabel(prefs, accId));
+			}
+			accountList.canUseSolver = AccountPreferences.isProviderConfigured(prefs, AccountPreferences.PROVIDER_VODAFONE)
+					&& CaptcherSolverClient.isInstalled(context);
+			return accountList;
+		}
+
+		@Override
+		protected void onPostExecute(final AccountList accountList) {
+			if (!isCancelled()) {
+				showAccountList(accountList);
+			}
+		}
 	}
 
 }
@@ -33,8 +33,16 @@ public class CabbageConnectorPreferences {
 	public static final String PREFS_CABBAGE_URL_DEFAULT = "cabbage_url_default";
 	public static final String PREFS_CABBAGE_URL_CUSTOM = "cabbage_url_custom";
 	public static final String PREFS_CAPTCHA_USE_SOLVER = "capcha_use_solver";
+	public static final String PREFS_CAPTCHA_USE_OCR = "capcha_use_ocr";
+	public static final String PREFS_CAPTCHA_PREFETCH = "capcha_prefetch";
 	public static final String PREFS_CAPTCHA_SOLVER_REMINDED = "capcha_solver_reminded";
 	public static final String PREFS_ACCOUNTS_CATEGORY = "accounts";
+	public static final String PREFS_SEND_BATCH_WINDOW = "send_batch_window";
+	public static final String PREFS_BROADCAST_MODE = "broadcast_mode";
+	public static final String PREFS_ACCOUNT_POOLS = "account_pools";
+	public static final String PREFS_RATE_LIMIT_PREFIX = "rate_limit_";
+	public static final String PREFS_RATE_LIMIT_ACCOUNT = "rate_limit_account";
+	public static final String PREFS_REFRESH_WINDOW = "refresh_window";
 
 	/**
 	 * Returns if the connector is enabled.
@@ -65,6 +73,22 @@ public class CabbageConnectorPreferences {
 		return prefs.getBoolean(PREFS_CAPTCHA_USE_SOLVER, true);
 	}
 
+	/**
+	 * Returns if the built-in captcha recognizer is allowed to be used.
+	 * Off by default: no templates trained on real captchas are bundled, and a confident wrong answer
+	 * costs a round trip before the solver app or the user is asked.
+	 */
+	public static boolean canUseCaptchaOcr(SharedPreferences prefs) {
+		return prefs.getBoolean(PREFS_CAPTCHA_USE_OCR, false);
+	}
+
+	/**
+	 * Returns if the next captcha should be fetched while an answer is checked.
+	 */
+	public static boolean isCaptchaPrefetch(SharedPreferences prefs) {
+		return prefs.getBoolean(PREFS_CAPTCHA_PREFETCH, false);
+	}
+
 	/**
 	 * Returns how many times the user was reminded about the captcha solver app.
 	 */
@@ -81,6 +105,55 @@ public class CabbageConnectorPreferences {
 		editor.commit();
 	}
 
+	/**
+	 * Returns the window (in milliseconds) during which sends of the same text from the same account
+	 * are merged into one request. Zero means that sends are not merged.
+	 */
+	public static long getSendBatchWindow(SharedPreferences prefs) {
+		try {
+			long window = Long.parseLong(prefs.getString(PREFS_SEND_BATCH_WINDOW, "0").trim());
+			return window > 0 ? window : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns if messages to many recipients should be split into chunks sent in parallel.
+	 */
+	public static boolean isBroadcastMode(SharedPreferences prefs) {
+		return prefs.getBoolean(PREFS_BROADCAST_MODE, false);
+	}
+
+	/**
+	 * Returns if a pool subconnector should be offered for each provider with several accounts.
+	 */
+	public static boolean isAccountPoolsEnabled(SharedPreferences prefs) {
+		return prefs.getBoolean(PREFS_ACCOUNT_POOLS, false);
+	}
+
+	/**
+	 * Returns the max number of requests per minute to the gateway for the provider (0 means unlimited).
+	 */
+	public static int getProviderRateLimit(SharedPreferences prefs, String provider) {
+		return getIntString(prefs, PREFS_RATE_LIMIT_PREFIX + provider, ProviderLimits.DEFAULT_PROVIDER_RATE_LIMIT);
+	}
+
+	/**
+	 * Returns the max number of requests per minute to the gateway for a single account (0 means unlimited).
+	 */
+	public static int getAccountRateLimit(SharedPreferences prefs) {
+		return getIntString(prefs, PREFS_RATE_LIMIT_ACCOUNT, ProviderLimits.DEFAULT_ACCOUNT_RATE_LIMIT);
+	}
+
+	/**
+	 * Returns the time (in milliseconds) a balance refresh may be put off until the network is in use anyway.
+	 * Zero means that balances are refreshed at once.
+	 */
+	public static long getRefreshWindow(SharedPreferences prefs) {
+		return getIntString(prefs, PREFS_REFRESH_WINDOW, 0) * 60 * 1000L;
+	}
+
 	/**
 	 * Checks if the preference values are valid.
 	 */
@@ -104,4 +177,16 @@ public class CabbageConnectorPreferences {
 		}
 	}
 
+	/**
+	 * Returns a non-negative number stored as a string (as edited by EditTextPreference).
+	 */
+	private static int getIntString(SharedPreferences prefs, String key, int defValue) {
+		try {
+			int value = Integer.parseInt(prefs.getString(key, Integer.toString(defValue)).trim());
+			return value > 0 ? value : 0;
+		} catch (NumberFormatException e) {
+			return defValue;
+		}
+	}
+
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Turns a raw answer guessed by the captcha solver app into the most likely captcha answers.
+ * 
+ * Captcha answers consist of {@link CaptchaOcr#ANSWER_LENGTH} lowercase letters, but the solver app
+ * may read them as capitals, digits or symbols. A confusion table, indexed directly by the raw character,
+ * gives the letters each raw character may stand for with their probabilities.
+ * Answers are ranked by the product of the probabilities of their letters.
+ */
+public class CaptchaAnswerFixer {
+
+	// Size of the table (raw characters outside of it are dropped)
+	private static final int TABLE_SIZE = 128;
+
+	// Candidate letters and their probabilities by raw character
+	private static final char[][] CANDIDATE_CHARS = new char[TABLE_SIZE][];
+	private static final double[][] CANDIDATE_PROBS = new double[TABLE_SIZE][];
+
+	static {
+		// letters stand for themselves, capitals for their lowercase
+		for (char ch = 'a'; ch <= 'z'; ch++) {
+			put(ch, String.valueOf(ch), 1.0);
+			put(Character.toUpperCase(ch), String.valueOf(ch), 1.0);
+		}
+
+		// letters that are often misread
+		put('c', "ce", 0.9, 0.1);
+		put('e', "ec", 0.9, 0.1);
+		put('h', "hn", 0.9, 0.1);
+		put('n', "nh", 0.9, 0.1);
+		put('i', "il", 0.85, 0.15);
+		put('l', "li", 0.8, 0.2);
+		put('g', "gq", 0.9, 0.1);
+		put('q', "qg", 0.85, 0.15);
+		put('u', "uv", 0.9, 0.1);
+		put('v', "vuy", 0.9, 0.05, 0.05);
+		put('I', "il", 0.5, 0.5);
+
+		// digits and symbols
+		put('0', "oa", 0.9, 0.1);
+		put('1', "li", 0.6, 0.4);
+		put('2', "z", 1.0);
+		put('5', "s", 1.0);
+		put('6', "bg", 0.7, 0.3);
+		put('9', "gq", 0.6, 0.4);
+		put('/', "li", 0.7, 0.3);
+		put('\\', "fl", 0.6, 0.4);
+		put('|', "li", 0.6, 0.4);
+		put('!', "il", 0.8, 0.2);
+	}
+
+
+	/**
+	 * Returns up to the given number of the most likely answers, most likely first.
+	 * Returns an empty list if the raw answer does not have the right number of usable characters.
+	 */
+	public static List<Candidate> rank(final String rawAnswer, final int maxCandidates) {
+		// candidate letters for each usable raw character
+		final List<char[]> chars = new ArrayList<char[]>();
+		final List<double[]> probs = new ArrayList<double[]>();
+		for (int idx = 0; idx < rawAnswer.length(); idx++) {
+			final char raw = rawAnswer.charAt(idx);
+			if (raw < TABLE_SIZE && CANDIDATE_CHARS[raw] != null) {
+				chars.add(CANDIDATE_CHARS[raw]);
+				probs.add(CANDIDATE_PROBS[raw]);
+			}
+		}
+		if (chars.size() != CaptchaOcr.ANSWER_LENGTH) {
+			return Collections.emptyList();
+		}
+
+		// enumerate all combinations (at most a few dozen)
+		final List<Candidate> candidates = new ArrayList<Candidate>();
+		enumerate(chars, probs, 0, new char[chars.size()], 1.0, candidates);
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			public int compare(Candidate c1, Candidate c2) {
+				return Double.compare(c2.probability, c1.probability);
+			}
+		});
+		return candidates.size() > maxCandidates ? candidates.subList(0, maxCandidates) : candidates;
+	}
+
+
+	private static void enumerate(final List<char[]> chars, final List<double[]> probs, final int pos,
+			final char[] text, final double probability, final List<Candidate> candidates) {
+		if (pos == text.length) {
+			candidates.add(new Candidate(new String(text), probability));
+			return;
+		}
+		for (int idx = 0; idx < chars.get(pos).length; idx++) {
+			text[pos] = chars.get(pos)[idx];
+			enumerate(chars, probs, pos + 1, text, probability * probs.get(pos)[idx], candidates);
+		}
+	}
+
+	private static void put(final char raw, final String candidates, final double... probabilities) {
+		CANDIDATE_CHARS[raw] = candidates.toCharArray();
+		CANDIDATE_PROBS[raw] = probabilities;
+	}
+
+	/**
+	 * A possible answer with its probability.
+	 */
+	public static class Candidate {
+		private final String text;
+		private final double probability;
+
+		public Candidate(final String text, final double probability) {
+			this.text = text;
+			this.probability = probability;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		public double getProbability() {
+			return probability;
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.ByteArrayOutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Captcha image as downloaded from the gateway, together with its decoded bitmap.
+ * 
+ * Captchas are decoded as RGB_565, half the memory of ARGB_8888 (the decoder keeps ARGB_8888
+ * for images with transparency), and downsampled if they are unexpectedly large, so the bitmap stays small in memory and
+ * when it is put into a broadcast. The downloaded bytes are kept, so the image can be passed on
+ * already compressed. The bitmap should be recycled as soon as the captcha is answered.
+ */
+public class CaptchaImage {
+
+	// Max width or height of the decoded bitmap (captchas are much smaller)
+	private static final int MAX_DIMENSION = 320;
+
+	// Scratch buffer for the decoder, reused by all decodes
+	private static final byte[] DECODE_TEMP_STORAGE = new byte[16 * 1024];
+
+	private final byte[] data;
+	private final Bitmap bitmap;
+	// whether the bitmap was downsampled
+	private final boolean isScaled;
+
+
+	private CaptchaImage(final byte[] data, final Bitmap bitmap, final boolean isScaled) {
+		this.data = data;
+		this.bitmap = bitmap;
+		this.isScaled = isScaled;
+	}
+
+	/**
+	 * Decodes the image. Returns null if the image cannot be decoded.
+	 */
+	public static CaptchaImage decode(final byte[] data) {
+		synchronized (DECODE_TEMP_STORAGE) {
+			// read the size first to pick the sample size
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			options.inTempStorage = DECODE_TEMP_STORAGE;
+			BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			if (options.outWidth <= 0 || options.outHeight <= 0) {
+				return null;
+			}
+
+			int sampleSize = 1;
+			while (options.outWidth / sampleSize > MAX_DIMENSION || options.outHeight / sampleSize > MAX_DIMENSION) {
+				sampleSize *= 2;
+			}
+
+			options.inJustDecodeBounds = false;
+			options.inSampleSize = sampleSize;
+			options.inPreferredConfig = Bitmap.Config.RGB_565;
+			options.inDither = false;
+			final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+			return bitmap != null ? new CaptchaImage(data, bitmap, sampleSize > 1) : null;
+		}
+	}
+
+	/**
+	 * Returns the decoded bitmap.
+	 */
+	public Bitmap getBitmap() {
+		return bitmap;
+	}
+
+	/**
+	 * Returns the image compressed: as downloaded, or as PNG if it was downsampled.
+	 */
+	public byte[] getCompressed() {
+		if (!isScaled) {
+			return data;
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Frees the memory of the bitmap. The image cannot be used afterwards.
+	 */
+	public void recycle() {
+		bitmap.recycle();
+	}
+
+}
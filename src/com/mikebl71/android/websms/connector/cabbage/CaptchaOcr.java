@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recognizes captchas made of a few lowercase characters.
+ * 
+ * The image is binarized with Otsu's threshold, specks are removed, and the remaining ink is split
+ * into glyphs by its vertical projection. Each glyph is scaled to a small density grid and matched
+ * against {@link GlyphTemplates}. Scores of the templates are turned into per-glyph probabilities;
+ * the confidence of the answer is the product of the probabilities of its characters.
+ * 
+ * Works on plain ARGB pixel arrays and does not depend on Android, so it can be trained and benchmarked
+ * on a desktop JVM (see tools/captcha-ocr).
+ */
+public class CaptchaOcr {
+
+	// Number of characters in a captcha
+	public static final int ANSWER_LENGTH = 4;
+
+	// Size of the density grid a glyph is scaled to
+	private static final int GRID_WIDTH = 8;
+	private static final int GRID_HEIGHT = 12;
+
+	// Length of the feature vector: density grid plus aspect ratio
+	public static final int FEATURE_LENGTH = GRID_WIDTH * GRID_HEIGHT + 1;
+
+	// Weight of the aspect ratio in the feature vector
+	private static final float ASPECT_WEIGHT = 2f;
+
+	// Ink components smaller than this fraction of the whole ink are specks
+	private static final float SPECK_FRACTION = 0.01f;
+	// Column runs with less ink than this fraction of an average glyph are noise
+	private static final float NOISE_SEGMENT_FRACTION = 0.15f;
+
+	// Temperature used to turn template scores into probabilities
+	private static final double SCORE_TEMPERATURE = 0.02;
+
+	// Number of candidates kept per glyph
+	public static final int CANDIDATES_PER_GLYPH = 3;
+	// Probability assumed for a character that is not among the candidates of a glyph
+	private static final double UNLISTED_PROBABILITY = 0.001;
+
+	private final GlyphTemplates templates;
+
+
+	public CaptchaOcr(final GlyphTemplates templates) {
+		this.templates = templates;
+	}
+
+	/**
+	 * Recognizes the captcha.
+	 * Returns null if the image cannot be split into {@link #ANSWER_LENGTH} glyphs.
+	 */
+	public Result solve(final int[] argb, final int width, final int height) {
+		final List<float[]> glyphs = extractGlyphs(argb, width, height, ANSWER_LENGTH);
+		if (glyphs == null || templates.size() == 0) {
+			return null;
+		}
+
+		final char[][] candidates = new char[glyphs.size()][];
+		final double[][] probabilities = new double[glyphs.size()][];
+		for (int glyphIdx = 0; glyphIdx < glyphs.size(); glyphIdx++) {
+			classify(glyphs.get(glyphIdx), glyphIdx, candidates, probabilities);
+		}
+		return new Result(candidates, probabilities);
+	}
+
+	/**
+	 * Splits the image into the expected number of glyphs and returns their feature vectors.
+	 * Returns null if the image has no ink or cannot be split.
+	 */
+	public static List<float[]> extractGlyphs(final int[] argb, final int width, final int height,
+			final int expectedCount) {
+		final boolean[] ink = binarize(argb, width, height);
+		if (removeSpecks(ink, width, height) == 0) {
+			return null;
+		}
+
+		final int[] columnInk = new int[width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (ink[y * width + x]) {
+					columnInk[x]++;
+				}
+			}
+		}
+
+		final List<int[]> segments = segment(columnInk, expectedCount);
+		if (segments == null) {
+			return null;
+		}
+
+		final List<float[]> glyphs = new ArrayList<float[]>(segments.size());
+		for (int[] segment : segments) {
+			final float[] glyph = features(ink, width, height, segment[0], segment[1]);
+			if (glyph == null) {
+				return null;
+			}
+			glyphs.add(glyph);
+		}
+		return glyphs;
+	}
+
+
+	/**
+	 * Ranks the templates for the glyph and stores the best candidates with their probabilities.
+	 */
+	private void classify(final float[] glyph, final int glyphIdx,
+			final char[][] candidates, final double[][] probabilities) {
+		// best score per character (several templates may exist for one character)
+		final double[] scores = new double[26];
+		for (int tplIdx = 0; tplIdx < templates.size(); tplIdx++) {
+			final int chIdx = templates.getChar(tplIdx) - 'a';
+			if (chIdx >= 0 && chIdx < 26) {
+				scores[chIdx] = Math.max(scores[chIdx], similarity(glyph, templates.getFeatures(tplIdx)));
+			}
+		}
+
+		// softmax over the characters, relative to the best score to avoid overflow
+		double best = 0;
+		for (double score : scores) {
+			best = Math.max(best, score);
+		}
+		final double[] weights = new double[26];
+		double total = 0;
+		for (int chIdx = 0; chIdx < 26; chIdx++) {
+			weights[chIdx] = scores[chIdx] > 0 ? Math.exp((scores[chIdx] - best) / SCORE_TEMPERATURE) : 0;
+			total += weights[chIdx];
+		}
+
+		candidates[glyphIdx] = new char[CANDIDATES_PER_GLYPH];
+		probabilities[glyphIdx] = new double[CANDIDATES_PER_GLYPH];
+		for (int rank = 0; rank < CANDIDATES_PER_GLYPH; rank++) {
+			int bestIdx = -1;
+			for (int chIdx = 0; chIdx < 26; chIdx++) {
+				if (weights[chIdx] > 0 && (bestIdx < 0 || weights[chIdx] > weights[bestIdx])) {
+					bestIdx = chIdx;
+				}
+			}
+			if (bestIdx < 0) {
+				break;
+			}
+			candidates[glyphIdx][rank] = (char) ('a' + bestIdx);
+			probabilities[glyphIdx][rank] = weights[bestIdx] / total;
+			weights[bestIdx] = 0;
+		}
+	}
+
+	/**
+	 * Similarity of two non-negative feature vectors, from 0 (nothing in common) to 1 (equal).
+	 */
+	private static double similarity(final float[] a, final float[] b) {
+		double diff = 0;
+		double norm = 0;
+		for (int idx = 0; idx < a.length; idx++) {
+			final double delta = a[idx] - b[idx];
+			diff += delta * delta;
+			norm += a[idx] * a[idx] + b[idx] * b[idx];
+		}
+		return norm > 0 ? 1 - diff / norm : 0;
+	}
+
+	/**
+	 * Converts the image to ink (true) and background (false) using Otsu's threshold.
+	 * The image is inverted if most of it is dark (light text on dark background).
+	 */
+	private static boolean[] binarize(final int[] argb, final int width, final int height) {
+		final int count = width * height;
+		final int[] gray = new int[count];
+		final int[] histogram = new int[256];
+		for (int idx = 0; idx < count; idx++) {
+			final int pixel = argb[idx];
+			final int alpha = pixel >>> 24;
+			// transparent pixels are background
+			final int lum = alpha == 0 ? 255
+					: (((pixel >> 16) & 0xff) * 299 + ((pixel >> 8) & 0xff) * 587 + (pixel & 0xff) * 114) / 1000;
+			gray[idx] = lum;
+			histogram[lum]++;
+		}
+
+		long sumAll = 0;
+		for (int lum = 0; lum < 256; lum++) {
+			sumAll += (long) lum * histogram[lum];
+		}
+		long sumBelow = 0;
+		int countBelow = 0;
+		double bestVariance = -1;
+		int threshold = 127;
+		for (int lum = 0; lum < 256; lum++) {
+			countBelow += histogram[lum];
+			if (countBelow == 0) {
+				continue;
+			}
+			final int countAbove = count - countBelow;
+			if (countAbove == 0) {
+				break;
+			}
+			sumBelow += (long) lum * histogram[lum];
+			final double meanBelow = (double) sumBelow / countBelow;
+			final double meanAbove = (double) (sumAll - sumBelow) / countAbove;
+			final double variance = (double) countBelow * countAbove * (meanBelow - meanAbove) * (meanBelow - meanAbove);
+			if (variance > bestVariance) {
+				bestVariance = variance;
+				threshold = lum;
+			}
+		}
+
+		final boolean[] ink = new boolean[count];
+		int inkCount = 0;
+		for (int idx = 0; idx < count; idx++) {
+			ink[idx] = gray[idx] <= threshold;
+			if (ink[idx]) {
+				inkCount++;
+			}
+		}
+		if (inkCount > count / 2) {
+			for (int idx = 0; idx < count; idx++) {
+				ink[idx] = !ink[idx];
+			}
+		}
+		return ink;
+	}
+
+	/**
+	 * Removes small 8-connected components of ink. Returns the number of remaining ink pixels.
+	 */
+	private static int removeSpecks(final boolean[] ink, final int width, final int height) {
+		final int count = width * height;
+		int inkCount = 0;
+		for (boolean pixel : ink) {
+			if (pixel) {
+				inkCount++;
+			}
+		}
+		final int minSize = Math.max(2, (int) (inkCount * SPECK_FRACTION));
+
+		final boolean[] visited = new boolean[count];
+		final int[] stack = new int[count];
+		final int[] component = new int[count];
+		int remaining = 0;
+		for (int start = 0; start < count; start++) {
+			if (!ink[start] || visited[start]) {
+				continue;
+			}
+			// flood fill
+			int stackSize = 0;
+			int size = 0;
+			stack[stackSize++] = start;
+			visited[start] = true;
+			while (stackSize > 0) {
+				final int idx = stack[--stackSize];
+				component[size++] = idx;
+				final int x = idx % width;
+				final int y = idx / width;
+				for (int dy = -1; dy <= 1; dy++) {
+					for (int dx = -1; dx <= 1; dx++) {
+						final int nx = x + dx;
+						final int ny = y + dy;
+						if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
+							final int nidx = ny * width + nx;
+							if (ink[nidx] && !visited[nidx]) {
+								visited[nidx] = true;
+								stack[stackSize++] = nidx;
+							}
+						}
+					}
+				}
+			}
+			if (size < minSize) {
+				for (int idx = 0; idx < size; idx++) {
+					ink[component[idx]] = false;
+				}
+			} else {
+				remaining += size;
+			}
+		}
+		return remaining;
+	}
+
+	/**
+	 * Splits the columns into the expected number of [start, end) segments by the vertical projection of ink.
+	 * Noise runs are dropped, then the closest runs are merged while there are too many,
+	 * and the widest run is cut at its thinnest column while there are too few.
+	 */
+	private static List<int[]> segment(final int[] columnInk, final int expectedCount) {
+		final List<int[]> segments = new ArrayList<int[]>();
+		int totalInk = 0;
+		int start = -1;
+		for (int x = 0; x <= columnInk.length; x++) {
+			final boolean hasInk = x < columnInk.length && columnInk[x] > 0;
+			if (hasInk) {
+				totalInk += columnInk[x];
+				if (start < 0) {
+					start = x;
+				}
+			} else if (start >= 0) {
+				segments.add(new int[] { start, x });
+				start = -1;
+			}
+		}
+		if (segments.isEmpty()) {
+			return null;
+		}
+
+		// drop noise
+		final int minInk = (int) (totalInk / expectedCount * NOISE_SEGMENT_FRACTION);
+		for (int idx = segments.size() - 1; idx >= 0 && segments.size() > 1; idx--) {
+			if (inkOf(columnInk, segments.get(idx)) < minInk) {
+				segments.remove(idx);
+			}
+		}
+
+		// merge the closest neighbours
+		while (segments.size() > expectedCount) {
+			int bestIdx = 0;
+			int bestGap = Integer.MAX_VALUE;
+			for (int idx = 0; idx + 1 < segments.size(); idx++) {
+				final int gap = segments.get(idx + 1)[0] - segments.get(idx)[1];
+				if (gap < bestGap) {
+					bestGap = gap;
+					bestIdx = idx;
+				}
+			}
+			segments.get(bestIdx)[1] = segments.remove(bestIdx + 1)[1];
+		}
+
+		// split the widest
+		while (segments.size() < expectedCount) {
+			int widestIdx = 0;
+			for (int idx = 1; idx < segments.size(); idx++) {
+				if (widthOf(segments.get(idx)) > widthOf(segments.get(widestIdx))) {
+					widestIdx = idx;
+				}
+			}
+			final int[] widest = segments.get(widestIdx);
+			final int width = widthOf(widest);
+			if (width < 4) {
+				return null;
+			}
+			// number of glyphs the segment likely holds, judging by the narrowest segment
+			final int missing = expectedCount - segments.size();
+			final int parts = Math.min(missing + 1, Math.max(2, width / Math.max(1, minWidth(segments))));
+			// cut off the first glyph at the thinnest column around its expected end
+			final int target = widest[0] + width / parts;
+			int cut = target;
+			final int from = Math.max(widest[0] + 1, target - width / (2 * parts));
+			final int to = Math.min(widest[1] - 1, target + width / (2 * parts));
+			for (int x = from; x <= to; x++) {
+				if (columnInk[x] < columnInk[cut]) {
+					cut = x;
+				}
+			}
+			segments.add(widestIdx + 1, new int[] { cut, widest[1] });
+			widest[1] = cut;
+		}
+		return segments;
+	}
+
+	private static int inkOf(final int[] columnInk, final int[] segment) {
+		int sum = 0;
+		for (int x = segment[0]; x < segment[1]; x++) {
+			sum += columnInk[x];
+		}
+		return sum;
+	}
+
+	private static int widthOf(final int[] segment) {
+		return segment[1] - segment[0];
+	}
+
+	private static int minWidth(final List<int[]> segments) {
+		int min = Integer.MAX_VALUE;
+		for (int[] segment : segments) {
+			min = Math.min(min, widthOf(segment));
+		}
+		return min;
+	}
+
+	/**
+	 * Scales the ink between the columns to the density grid.
+	 * Returns null if there is no ink.
+	 */
+	private static float[] features(final boolean[] ink, final int width, final int height,
+			final int x0, final int x1) {
+		int y0 = -1;
+		int y1 = -1;
+		for (int y = 0; y < height; y++) {
+			for (int x = x0; x < x1; x++) {
+				if (ink[y * width + x]) {
+					if (y0 < 0) {
+						y0 = y;
+					}
+					y1 = y + 1;
+					break;
+				}
+			}
+		}
+		if (y0 < 0) {
+			return null;
+		}
+
+		final int glyphWidth = x1 - x0;
+		final int glyphHeight = y1 - y0;
+		final float[] inkSums = new float[GRID_WIDTH * GRID_HEIGHT];
+		final float[] pixelCounts = new float[GRID_WIDTH * GRID_HEIGHT];
+		for (int y = y0; y < y1; y++) {
+			final int cellY = (y - y0) * GRID_HEIGHT / glyphHeight;
+			for (int x = x0; x < x1; x++) {
+				final int cell = cellY * GRID_WIDTH + (x - x0) * GRID_WIDTH / glyphWidth;
+				pixelCounts[cell]++;
+				if (ink[y * width + x]) {
+					inkSums[cell]++;
+				}
+			}
+		}
+
+		final float[] result = new float[FEATURE_LENGTH];
+		for (int cell = 0; cell < inkSums.length; cell++) {
+			// cells without pixels (glyph smaller than the grid) take the value of a neighbour
+			final int source = pixelCounts[cell] > 0 ? cell : nearestFilledCell(pixelCounts, cell);
+			result[cell] = inkSums[source] / pixelCounts[source];
+		}
+		result[FEATURE_LENGTH - 1] = ASPECT_WEIGHT * glyphWidth / (glyphWidth + glyphHeight);
+		return result;
+	}
+
+	private static int nearestFilledCell(final float[] pixelCounts, final int cell) {
+		final int cellX = cell % GRID_WIDTH;
+		final int cellY = cell / GRID_WIDTH;
+		for (int x = cellX; x >= 0; x--) {
+			for (int y = cellY; y >= 0; y--) {
+				if (pixelCounts[y * GRID_WIDTH + x] > 0) {
+					return y * GRID_WIDTH + x;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Recognition result: the ranked candidates of each glyph with their probabilities.
+	 */
+	public static class Result {
+		private final char[][] candidates;
+		private final double[][] probabilities;
+
+		Result(final char[][] candidates, final double[][] probabilities) {
+			this.candidates = candidates;
+			this.probabilities = probabilities;
+		}
+
+		/**
+		 * Returns the most likely answer.
+		 */
+		public String getText() {
+			final StringBuilder text = new StringBuilder(candidates.length);
+			for (char[] glyphCandidates : candidates) {
+				text.append(glyphCandidates[0]);
+			}
+			return text.toString();
+		}
+
+		/**
+		 * Returns the estimated probability (0..1) of the most likely answer being right.
+		 */
+		public double getConfidence() {
+			double confidence = 1;
+			for (double[] glyphProbabilities : probabilities) {
+				confidence *= glyphProbabilities[0];
+			}
+			return confidence;
+		}
+
+		/**
+		 * Returns the estimated probability (0..1) of the given answer being right.
+		 */
+		public double getProbability(final String text) {
+			if (text.length() != candidates.length) {
+				return 0;
+			}
+			double probability = 1;
+			for (int glyphIdx = 0; glyphIdx < candidates.length; glyphIdx++) {
+				double glyphProbability = UNLISTED_PROBABILITY;
+				for (int rank = 0; rank < candidates[glyphIdx].length; rank++) {
+					if (candidates[glyphIdx][rank] == text.charAt(glyphIdx)) {
+						glyphProbability = Math.max(probabilities[glyphIdx][rank], UNLISTED_PROBABILITY);
+						break;
+					}
+				}
+				probability *= glyphProbability;
+			}
+			return probability;
+		}
+
+		/**
+		 * Returns the number of glyphs.
+		 */
+		public int getLength() {
+			return candidates.length;
+		}
+
+		/**
+		 * Returns the candidates of the glyph, most likely first.
+		 * Unused trailing slots are zero characters.
+		 */
+		public char[] getCandidates(final int glyphIdx) {
+			return candidates[glyphIdx];
+		}
+
+		/**
+		 * Returns the probabilities of the candidates of the glyph.
+		 */
+		public double[] getProbabilities(final int glyphIdx) {
+			return probabilities[glyphIdx];
+		}
+	}
+
+}
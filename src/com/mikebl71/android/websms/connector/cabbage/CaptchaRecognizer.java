@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.preference.PreferenceManager;
+
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Built-in captcha solver. Runs {@link CaptchaOcr} on the captcha image before falling back
+ * to the solver app or to the user.
+ * 
+ * Uses templates trained from real captchas (assets/captcha_templates.bin) if they are bundled,
+ * otherwise templates rendered from the system fonts.
+ */
+public class CaptchaRecognizer {
+
+	private static final String TAG = "cabbage";
+
+	// Asset with trained templates
+	private static final String TEMPLATES_ASSET = "captcha_templates.bin";
+
+	// Answers with lower confidence are not submitted
+	private static final double MIN_CONFIDENCE = 0.6;
+
+	// Max number of recognized answers submitted for a single message
+	private static final int MAX_ATTEMPTS = 2;
+
+	// Size of the bitmap a template glyph is rendered to
+	private static final int TEMPLATE_BITMAP_WIDTH = 48;
+	private static final int TEMPLATE_BITMAP_HEIGHT = 64;
+	private static final float TEMPLATE_TEXT_SIZE = 40;
+
+	// The engine, created on first use
+	private static CaptchaOcr ocr;
+
+	// Pixel buffer reused by recognitions (guarded by the class)
+	private static int[] pixelBuffer;
+
+
+	/**
+	 * Checks if the built-in solver can be used.
+	 */
+	public static boolean canUse(final Context context) {
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return CabbageConnectorPreferences.canUseCaptchaOcr(prefs);
+	}
+
+	/**
+	 * Returns the maximum number of recognized answers submitted for a single message.
+	 */
+	public static int getMaxAttempts() {
+		return MAX_ATTEMPTS;
+	}
+
+	/**
+	 * Recognizes the captcha. Must not be called on the UI thread.
+	 * Returns null if the captcha cannot be split into characters.
+	 */
+	public static CaptchaOcr.Result recognize(final Context context, final Bitmap captcha) {
+		final long startNanos = System.nanoTime();
+		final int width = captcha.getWidth();
+		final int height = captcha.getHeight();
+		final CaptchaOcr.Result result;
+		synchronized (CaptchaRecognizer.class) {
+			if (pixelBuffer == null || pixelBuffer.length < width * height) {
+				pixelBuffer = new int[width * height];
+			}
+			captcha.getPixels(pixelBuffer, 0, width, 0, 0, width, height);
+			result = getOcr(context).solve(pixelBuffer, width, height);
+		}
+		final long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+		ConnectorStats.record(ConnectorStats.CAPTCHA_OCR_MS, elapsedMs);
+
+		if (result == null) {
+			Log.d(TAG, "captcha not recognized in " + elapsedMs + "ms");
+		} else {
+			Log.d(TAG, "captcha recognized as " + result.getText() + " with confidence " + result.getConfidence()
+					+ " in " + elapsedMs + "ms");
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the recognized answer if it is confident enough to be submitted, otherwise null.
+	 */
+	public static String getConfidentAnswer(final CaptchaOcr.Result result) {
+		return result != null && result.getConfidence() >= MIN_CONFIDENCE ? result.getText() : null;
+	}
+
+	/**
+	 * Picks the answer to submit out of the candidates guessed by the solver app.
+	 * Candidates are reranked by how well they agree with the recognized captcha, if any.
+	 * Returns null if there are no candidates.
+	 */
+	public static String pickAnswer(final List<CaptchaAnswerFixer.Candidate> candidates,
+			final CaptchaOcr.Result result) {
+		String best = null;
+		double bestScore = -1;
+		for (CaptchaAnswerFixer.Candidate candidate : candidates) {
+			double score = candidate.getProbability();
+			if (result != null) {
+				score *= result.getProbability(candidate.getText());
+			}
+			if (score > bestScore) {
+				bestScore = score;
+				best = candidate.getText();
+			}
+		}
+		return best;
+	}
+
+
+	private static synchronized CaptchaOcr getOcr(final Context context) {
+		if (ocr == null) {
+			ocr = new CaptchaOcr(loadTemplates(context));
+		}
+		return ocr;
+	}
+
+	/**
+	 * Loads the bundled trained templates, or renders templates from the system fonts if there are none.
+	 */
+	private static GlyphTemplates loadTemplates(final Context context) {
+		InputStream in = null;
+		try {
+			in = context.getAssets().open(TEMPLATES_ASSET);
+			final GlyphTemplates templates = GlyphTemplates.read(in);
+			if (templates.getFeatureLength() == CaptchaOcr.FEATURE_LENGTH) {
+				return templates;
+			}
+			Log.w(TAG, "captcha templates do not match the recognizer, rendering them instead");
+		} catch (IOException e) {
+			Log.d(TAG, "no trained captcha templates, rendering them");
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		return renderTemplates();
+	}
+
+	/**
+	 * Renders a template for each lowercase character in each of the system fonts.
+	 */
+	private static GlyphTemplates renderTemplates() {
+		final GlyphTemplates templates = new GlyphTemplates(CaptchaOcr.FEATURE_LENGTH);
+		final Typeface[] typefaces = { Typeface.SANS_SERIF, Typeface.SERIF, Typeface.MONOSPACE };
+
+		final Bitmap bitmap = Bitmap.createBitmap(TEMPLATE_BITMAP_WIDTH, TEMPLATE_BITMAP_HEIGHT,
+				Bitmap.Config.ARGB_8888);
+		final Canvas canvas = new Canvas(bitmap);
+		final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		paint.setColor(Color.BLACK);
+		paint.setTextSize(TEMPLATE_TEXT_SIZE);
+		final int[] pixels = new int[TEMPLATE_BITMAP_WIDTH * TEMPLATE_BITMAP_HEIGHT];
+
+		for (Typeface typeface : typefaces) {
+			paint.setTypeface(typeface);
+			for (char ch = 'a'; ch <= 'z'; ch++) {
+				canvas.drawColor(Color.WHITE);
+				canvas.drawText(String.valueOf(ch), TEMPLATE_BITMAP_WIDTH / 4, TEMPLATE_BITMAP_HEIGHT * 3 / 4, paint);
+				bitmap.getPixels(pixels, 0, TEMPLATE_BITMAP_WIDTH, 0, 0, TEMPLATE_BITMAP_WIDTH, TEMPLATE_BITMAP_HEIGHT);
+
+				final List<float[]> glyphs = CaptchaOcr.extractGlyphs(pixels,
+						TEMPLATE_BITMAP_WIDTH, TEMPLATE_BITMAP_HEIGHT, 1);
+				if (glyphs != null) {
+					templates.add(ch, glyphs.get(0));
+				}
+			}
+		}
+		bitmap.recycle();
+		return templates;
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captchas waiting for an answer from one source (the user or the solver app).
+ * 
+ * Each captcha gets its own waiter, completed either by the answer broadcast or by a shared timer
+ * when the captcha times out. Answers do not say which captcha they are for, so they go to the
+ * captchas in the order the captchas were asked. A waiter is registered before its captcha is
+ * broadcast, so an early answer is not lost, and it only completes with its own answer,
+ * so a spurious wakeup cannot pass for an unanswered captcha.
+ */
+public class CaptchaWaits<T> {
+
+	// Shared timer that times out waiting captchas
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "cabbage-captcha-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// Waiting captchas, oldest first
+	private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+
+	/**
+	 * Registers a captcha that waits for an answer for at most the given time.
+	 */
+	public Waiter register(final long timeoutMs) {
+		final Waiter waiter = new Waiter();
+		synchronized (waiters) {
+			waiters.addLast(waiter);
+		}
+		waiter.timeout = TIMER.schedule(new Runnable() {
+			public void run() {
+				remove(waiter);
+				waiter.complete(null);
+			}
+		}, timeoutMs, TimeUnit.MILLISECONDS);
+		return waiter;
+	}
+
+	/**
+	 * Passes the answer to the oldest waiting captcha.
+	 * Returns false if no captcha is waiting.
+	 */
+	public boolean answer(final T answer) {
+		final Waiter waiter;
+		synchronized (waiters) {
+			waiter = waiters.poll();
+		}
+		if (waiter == null) {
+			return false;
+		}
+		waiter.complete(answer);
+		return true;
+	}
+
+
+	private void remove(final Waiter waiter) {
+		synchronized (waiters) {
+			waiters.remove(waiter);
+		}
+	}
+
+	/**
+	 * A captcha waiting for an answer.
+	 */
+	public class Waiter {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile T answer;
+		private volatile ScheduledFuture<?> timeout;
+
+		/**
+		 * Waits for the answer. Returns null if the captcha timed out.
+		 */
+		public T await() throws InterruptedIOException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				// nobody waits for the answer any more
+				remove(this);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for captcha answer");
+			}
+			return answer;
+		}
+
+		private void complete(final T value) {
+			synchronized (this) {
+				if (done.getCount() == 0) {
+					return;
+				}
+				answer = value;
+				done.countDown();
+			}
+			final ScheduledFuture<?> pendingTimeout = timeout;
+			if (pendingTimeout != null) {
+				pendingTimeout.cancel(false);
+			}
+		}
+	}
+
+}
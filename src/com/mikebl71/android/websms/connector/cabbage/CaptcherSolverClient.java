@@ -16,14 +16,13 @@
  */
 package com.mikebl71.android.websms.connector.cabbage;
 
-import java.io.ByteArrayOutputStream;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.PackageInfo;
-import android.graphics.Bitmap;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
@@ -48,23 +47,20 @@ public class CaptcherSolverClient {
     // Max number of attempts to remind user about installing Cabbage Captcha app
 	private static final int MAX_REMINDERS = 4;
 
-    private static final char[] CAPTCHA_FIX_FROM = new char[] {
-		'C','F','I','K','M','O','P','S','U','V','W','X','Y','Z', '0','1','5','/','\\'};					
-	private static final char[] CAPTCHA_FIX_TO = new char[] {
-		'c','f','i','k','m','o','p','s','u','v','w','x','y','z', 'o','l','s','l','f'};					
-	static { Arrays.sort(CAPTCHA_FIX_FROM); Arrays.sort(CAPTCHA_FIX_TO); }
+    // Max number of candidate answers taken from a single raw answer
+	private static final int MAX_CANDIDATES = 5;
 
 
 	/**
 	 * Checks if the solver app is installed.
 	 */
 	public static boolean isInstalled(final Context context) {
-        for (PackageInfo pkgInfo : context.getPackageManager().getInstalledPackages(0)) {
-        	if (pkgInfo.packageName != null && pkgInfo.packageName.equals(CAPTCHA_AUTO_SOLVER_PKG)) {
-        		return true;
-        	}
-        }
-        return false;
+		// look the package up directly instead of listing all installed packages
+		try {
+			return context.getPackageManager().getPackageInfo(CAPTCHA_AUTO_SOLVER_PKG, 0) != null;
+		} catch (PackageManager.NameNotFoundException e) {
+			return false;
+		}
 	}
 
 	/**
@@ -83,14 +79,12 @@ public class CaptcherSolverClient {
 	}
 
 	/**
-	 * Creates an intent with the captcha image for sending to the solver app.
+	 * Creates an intent with the compressed captcha image for sending to the solver app.
 	 */
-	public static Intent createRequestIntent(final Bitmap captcha) {
+	public static Intent createRequestIntent(final byte[] captcha) {
 		final Intent intent = new Intent(CAPTCHA_AUTO_SOLVER_REQUEST);
 	    intent.putExtra(CAPTCHA_AUTO_SOLVER_REPLYTO, CAPTCHA_AUTO_SOLVER_RESPONSE);
-	    ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
-	    captcha.compress(Bitmap.CompressFormat.PNG, 100, byteArrayStream);
-	    intent.putExtra(CAPTCHA_AUTO_SOLVER_BITMAP, byteArrayStream.toByteArray());
+	    intent.putExtra(CAPTCHA_AUTO_SOLVER_BITMAP, captcha);
 	    return intent;
 	}
 
@@ -103,44 +97,23 @@ public class CaptcherSolverClient {
 	}
 
 	/**
-	 * Extracts the captcha answer from the response from the solver app.
+	 * Extracts the candidate captcha answers from the response from the solver app, most likely first.
+	 * Returns an empty list if there is no usable answer.
 	 */
-    public static String parseResponseIntent(final Context context, final Intent intent) {
-    	String answer = null;
+    public static List<CaptchaAnswerFixer.Candidate> parseResponseIntent(final Context context, final Intent intent) {
 		final Bundle extras = intent.getExtras();
 		if (extras != null) {
 			String fixedAnswer = extras.getString(CAPTCHA_AUTO_SOLVER_ANSWER);
 			String nonfixedAnswer = extras.getString(CAPTCHA_AUTO_SOLVER_NONFIXED_ANSWER);
 
-			if (TextUtils.isEmpty(fixedAnswer) && !TextUtils.isEmpty(nonfixedAnswer)) {
-				// try to fix ourselves
-				fixedAnswer = fixCaptchaAnswer(nonfixedAnswer);
-			}
-
 			if (!TextUtils.isEmpty(fixedAnswer)) {
-				answer = fixedAnswer;
-			}
-		}
-		return answer;
-	}
-
-	/**
-	 * Attempts to fix the raw guessed answer.
-	 */
-	private static String fixCaptchaAnswer(final String answer) {
-		StringBuilder fixed = new StringBuilder(answer.length());
-		for (int idx = 0; idx < answer.length(); idx++) {
-			char ch = answer.charAt(idx);
-			if (ch >= 'a' && ch <= 'z') {
-				fixed.append(ch);
-			} else {
-				int mapIdx = Arrays.binarySearch(CAPTCHA_FIX_FROM, ch);
-				if (mapIdx >= 0) {
-					fixed.append(CAPTCHA_FIX_TO[mapIdx]);
-				}
+				return Collections.singletonList(new CaptchaAnswerFixer.Candidate(fixedAnswer, 1.0));
+			} else if (!TextUtils.isEmpty(nonfixedAnswer)) {
+				// try to fix ourselves
+				return CaptchaAnswerFixer.rank(nonfixedAnswer, MAX_CANDIDATES);
 			}
 		}
-		return fixed.length() == 4 ? fixed.toString() : null;
+		return Collections.emptyList();
 	}
 
 	/**
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Named counters for monitoring the connector.
+ * Each metric keeps the number of recorded values, their total and their maximum.
+ */
+public class ConnectorStats {
+
+	// Metric names
+	public static final String THROTTLE_WAIT_MS = "throttle_wait_ms";
+	public static final String CAPTCHA_OCR_MS = "captcha_ocr_ms";
+	public static final String CAPTCHA_PREFETCH_WAIT_MS = "captcha_prefetch_wait_ms";
+	public static final String BACKGROUND_WAIT_MS = "background_wait_ms";
+	public static final String CONCURRENCY_LIMIT = "concurrency_limit";
+	public static final String DEFERRED_REFRESHES = "deferred_refreshes";
+	public static final String NETWORK_PROFILE = "network_profile";
+	public static final String BYTES_SENT = "bytes_sent";
+	public static final String BYTES_RECEIVED = "bytes_received";
+
+	// Metrics by name (sorted for readable dumps)
+	private static final Map<String, Metric> METRICS = new TreeMap<String, Metric>();
+
+
+	/**
+	 * Records a value of the metric.
+	 */
+	public static void record(final String name, final long value) {
+		synchronized (METRICS) {
+			Metric metric = METRICS.get(name);
+			if (metric == null) {
+				metric = new Metric();
+				METRICS.put(name, metric);
+			}
+			metric.count++;
+			metric.total += value;
+			metric.max = Math.max(metric.max, value);
+		}
+	}
+
+	/**
+	 * Records a value of the metric for the given subject (e.g. provider or account).
+	 */
+	public static void record(final String name, final String subject, final long value) {
+		record(name, value);
+		record(name + "." + subject, value);
+	}
+
+	/**
+	 * Returns the total of all values recorded for the metric.
+	 */
+	public static long getTotal(final String name) {
+		synchronized (METRICS) {
+			final Metric metric = METRICS.get(name);
+			return metric != null ? metric.total : 0;
+		}
+	}
+
+	/**
+	 * Writes all metrics to the log.
+	 */
+	public static void dump(final String tag) {
+		synchronized (METRICS) {
+			for (Map.Entry<String, Metric> entry : METRICS.entrySet()) {
+				final Metric metric = entry.getValue();
+				Log.d(tag, "stats: " + entry.getKey()
+						+ " count=" + metric.count + " total=" + metric.total + " max=" + metric.max);
+			}
+		}
+	}
+
+
+	/**
+	 * Recorded values of one metric.
+	 */
+	private static class Metric {
+		private long count;
+		private long total;
+		private long max;
+	}
+
+}
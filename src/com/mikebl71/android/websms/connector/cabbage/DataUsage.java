@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.TimeZone;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Bytes exchanged with the gateway, in daily totals kept for the last DAYS_KEPT days.
+ * 
+ * Each request is counted in the total of the day and in the totals of its account, provider and kind
+ * (send, balance or captcha), in both directions, headers included.
+ * The totals must be opened with {@link #open(Context)} before they are used.
+ */
+public class DataUsage extends SQLiteOpenHelper {
+
+	// Kinds of requests
+	public static final String KIND_SEND = "send";
+	public static final String KIND_BALANCE = "balance";
+	public static final String KIND_CAPTCHA = "captcha";
+
+	// Database name and version
+	private static final String DB_NAME = "data_usage.db";
+	private static final int DB_VERSION = 1;
+
+	// Table and columns
+	private static final String TABLE = "usage";
+	private static final String COL_DAY = "day";
+	private static final String COL_SUBJECT = "subject";
+	private static final String COL_REQUESTS = "requests";
+	private static final String COL_SENT = "sent";
+	private static final String COL_RECEIVED = "received";
+
+	// Subject of the total of all requests, and prefixes of the other subjects
+	private static final String SUBJECT_TOTAL = "total";
+	private static final String SUBJECT_ACCOUNT = "account.";
+	private static final String SUBJECT_PROVIDER = "provider.";
+	private static final String SUBJECT_KIND = "kind.";
+
+	// Number of days the totals are kept for
+	private static final int DAYS_KEPT = 30;
+
+	private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+	// The totals, opened on first use
+	private static DataUsage instance;
+
+	// Last day requests were recorded for, to drop old totals once a day
+	private long lastDay = -1;
+
+
+	private DataUsage(final Context context) {
+		super(context, DB_NAME, null, DB_VERSION);
+	}
+
+	/**
+	 * Opens the totals. Does nothing if they are already open.
+	 */
+	public static synchronized DataUsage open(final Context context) {
+		if (instance == null) {
+			instance = new DataUsage(context.getApplicationContext());
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the opened totals.
+	 */
+	public static synchronized DataUsage get() {
+		if (instance == null) {
+			throw new IllegalStateException("data usage is not open");
+		}
+		return instance;
+	}
+
+	@Override
+	public void onCreate(final SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE + " ("
+				+ COL_DAY + " INTEGER, "
+				+ COL_SUBJECT + " TEXT, "
+				+ COL_REQUESTS + " INTEGER, "
+				+ COL_SENT + " INTEGER, "
+				+ COL_RECEIVED + " INTEGER, "
+				+ "PRIMARY KEY (" + COL_DAY + ", " + COL_SUBJECT + "))");
+	}
+
+	@Override
+	public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+		// no older versions of the table yet
+	}
+
+	/**
+	 * Records a request of the kind made for the account, with the bytes sent and received.
+	 */
+	public synchronized void record(final String accId, final String provider, final String kind,
+			final long sent, final long received) {
+		final long day = getDay(System.currentTimeMillis());
+		final SQLiteDatabase db = getWritableDatabase();
+		if (day != lastDay) {
+			db.delete(TABLE, COL_DAY + "<=?", new String[] { Long.toString(day - DAYS_KEPT) });
+			lastDay = day;
+		}
+
+		db.beginTransaction();
+		try {
+			add(db, day, SUBJECT_TOTAL, sent, received);
+			add(db, day, SUBJECT_ACCOUNT + accId, sent, received);
+			add(db, day, SUBJECT_PROVIDER + provider, sent, received);
+			add(db, day, SUBJECT_KIND + kind, sent, received);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		ConnectorStats.record(ConnectorStats.BYTES_SENT, kind, sent);
+		ConnectorStats.record(ConnectorStats.BYTES_RECEIVED, kind, received);
+	}
+
+	/**
+	 * Writes today's totals to the log.
+	 */
+	public synchronized void dump(final String tag) {
+		final Cursor cursor = getReadableDatabase().query(TABLE,
+				new String[] { COL_SUBJECT, COL_REQUESTS, COL_SENT, COL_RECEIVED },
+				COL_DAY + "=?", new String[] { Long.toString(getDay(System.currentTimeMillis())) },
+				null, null, COL_SUBJECT);
+		try {
+			while (cursor.moveToNext()) {
+				Log.d(tag, "data usage today: " + cursor.getString(0) + " requests=" + cursor.getLong(1)
+						+ " sent=" + cursor.getLong(2) + " received=" + cursor.getLong(3));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+
+	/**
+	 * Adds the request to the totals of the subject for the day.
+	 */
+	private static void add(final SQLiteDatabase db, final long day, final String subject,
+			final long sent, final long received) {
+		final String[] key = new String[] { Long.toString(day), subject };
+		final Cursor cursor = db.query(TABLE, new String[] { COL_REQUESTS, COL_SENT, COL_RECEIVED },
+				COL_DAY + "=? AND " + COL_SUBJECT + "=?", key, null, null, null);
+		final ContentValues values = new ContentValues();
+		try {
+			if (cursor.moveToFirst()) {
+				values.put(COL_REQUESTS, cursor.getLong(0) + 1);
+				values.put(COL_SENT, cursor.getLong(1) + sent);
+				values.put(COL_RECEIVED, cursor.getLong(2) + received);
+				db.update(TABLE, values, COL_DAY + "=? AND " + COL_SUBJECT + "=?", key);
+				return;
+			}
+		} finally {
+			cursor.close();
+		}
+		values.put(COL_DAY, day);
+		values.put(COL_SUBJECT, subject);
+		values.put(COL_REQUESTS, 1L);
+		values.put(COL_SENT, sent);
+		values.put(COL_RECEIVED, received);
+		db.insert(TABLE, null, values);
+	}
+
+	/**
+	 * Returns the number of the local day of the time.
+	 */
+	private static long getDay(final long time) {
+		return (time + TimeZone.getDefault().getOffset(time)) / DAY_MS;
+	}
+
+}
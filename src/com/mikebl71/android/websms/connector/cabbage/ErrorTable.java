@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageProtocol;
+
+/**
+ * Table of error codes returned by Cabbage Gateway.
+ * Maps each code to its message; the class of each code, which tells whether a request may be retried,
+ * is defined by {@link CabbageProtocol#getErrorClass(int)}.
+ * The table is built once, so looking up an error does not need any resource lookups by name.
+ */
+public class ErrorTable {
+
+	// The table, built on first use
+	private static Map<Integer, String> table;
+	// Message template for unknown codes
+	private static String unknownCodeTemplate;
+
+
+	/**
+	 * Builds the table. Does nothing if the table is already built.
+	 */
+	public static synchronized void init(final Context context) {
+		if (table != null) {
+			return;
+		}
+		final Map<Integer, String> newTable = new HashMap<Integer, String>();
+		put(newTable, context, CabbageProtocol.ERR_LOGIN_FAILED, R.string.cabbage_err_1);
+		put(newTable, context, CabbageProtocol.ERR_GENERIC, R.string.cabbage_err_2);
+		put(newTable, context, CabbageProtocol.ERR_UNEXPECTED_PROVIDER_RESPONSE, R.string.cabbage_err_5);
+		put(newTable, context, CabbageProtocol.ERR_MESSAGE_TOO_BIG, R.string.cabbage_err_10);
+		put(newTable, context, CabbageProtocol.ERR_TEXTS_EXCEEDED, R.string.cabbage_err_21);
+		put(newTable, context, CabbageProtocol.ERR_EMPTY_USERNAME, R.string.cabbage_err_30);
+		put(newTable, context, CabbageProtocol.ERR_EMPTY_PASSWORD, R.string.cabbage_err_31);
+		put(newTable, context, CabbageProtocol.ERR_EMPTY_PROVIDER, R.string.cabbage_err_32);
+		unknownCodeTemplate = context.getString(R.string.cabbage_err_N);
+		table = newTable;
+	}
+
+	/**
+	 * Returns the message for the (negative) code returned by the gateway.
+	 */
+	public static String getMessage(final Context context, final int retNumCode) {
+		init(context);
+		final String message = table.get(-retNumCode);
+		return message != null ? message : MessageFormat.format(unknownCodeTemplate, retNumCode);
+	}
+
+
+	private static void put(final Map<Integer, String> newTable, final Context context,
+			final int code, final int msgId) {
+		newTable.put(code, context.getString(msgId));
+	}
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import com.mikebl71.android.websms.connector.cabbage.core.ErrorClass;
+
+import de.ub0r.android.websms.connector.common.WebSMSException;
+
+/**
+ * Error reported by Cabbage Gateway (either an error code or an HTTP error).
+ */
+public class GatewayException extends WebSMSException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int code;
+	private final ErrorClass errorClass;
+
+	public GatewayException(final String message, final int code, final ErrorClass errorClass) {
+		super(message);
+		this.code = code;
+		this.errorClass = errorClass;
+	}
+
+	/**
+	 * Returns the gateway error code (negative) or the HTTP status code (positive).
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Returns the class of the error.
+	 */
+	public ErrorClass getErrorClass() {
+		return errorClass;
+	}
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feature templates of captcha characters used by {@link CaptchaOcr}.
+ * 
+ * Templates are either trained from a corpus of solved captchas (by averaging the features of all samples
+ * of each character) or rendered from a font. They are stored in a small binary file:
+ * magic, version, feature length, number of templates, then each template as a char followed by its features.
+ */
+public class GlyphTemplates {
+
+	// File format markers
+	private static final int MAGIC = 0x43435431;   // "CCT1"
+	private static final int VERSION = 1;
+
+	// Length of the feature vectors
+	private final int featureLength;
+
+	// Template characters and their features
+	private final List<Character> chars = new ArrayList<Character>();
+	private final List<float[]> features = new ArrayList<float[]>();
+
+	// Training sums per character (index = ch - 'a')
+	private float[][] trainSums;
+	private int[] trainCounts;
+
+
+	public GlyphTemplates(final int featureLength) {
+		this.featureLength = featureLength;
+	}
+
+	/**
+	 * Returns the length of the feature vectors.
+	 */
+	public int getFeatureLength() {
+		return featureLength;
+	}
+
+	/**
+	 * Returns the number of templates.
+	 */
+	public int size() {
+		return chars.size();
+	}
+
+	public char getChar(final int idx) {
+		return chars.get(idx);
+	}
+
+	public float[] getFeatures(final int idx) {
+		return features.get(idx);
+	}
+
+	/**
+	 * Adds a template.
+	 */
+	public void add(final char ch, final float[] glyphFeatures) {
+		if (glyphFeatures.length != featureLength) {
+			throw new IllegalArgumentException("feature length " + glyphFeatures.length + " != " + featureLength);
+		}
+		chars.add(ch);
+		features.add(glyphFeatures);
+	}
+
+	/**
+	 * Adds a training sample of a lowercase character.
+	 * Samples are averaged into templates by {@link #finishTraining()}.
+	 */
+	public void addSample(final char ch, final float[] glyphFeatures) {
+		if (ch < 'a' || ch > 'z') {
+			return;
+		}
+		if (trainSums == null) {
+			trainSums = new float[26][featureLength];
+			trainCounts = new int[26];
+		}
+		final float[] sum = trainSums[ch - 'a'];
+		for (int idx = 0; idx < featureLength; idx++) {
+			sum[idx] += glyphFeatures[idx];
+		}
+		trainCounts[ch - 'a']++;
+	}
+
+	/**
+	 * Turns the training samples into one template per character.
+	 */
+	public void finishTraining() {
+		if (trainSums == null) {
+			return;
+		}
+		for (int chIdx = 0; chIdx < 26; chIdx++) {
+			if (trainCounts[chIdx] > 0) {
+				final float[] avg = new float[featureLength];
+				for (int idx = 0; idx < featureLength; idx++) {
+					avg[idx] = trainSums[chIdx][idx] / trainCounts[chIdx];
+				}
+				add((char) ('a' + chIdx), avg);
+			}
+		}
+		trainSums = null;
+		trainCounts = null;
+	}
+
+	/**
+	 * Reads templates from the stream.
+	 */
+	public static GlyphTemplates read(final InputStream in) throws IOException {
+		final DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+			throw new IOException("not a glyph templates file");
+		}
+		final GlyphTemplates templates = new GlyphTemplates(data.readInt());
+		final int count = data.readInt();
+		for (int tplIdx = 0; tplIdx < count; tplIdx++) {
+			final char ch = data.readChar();
+			final float[] glyphFeatures = new float[templates.featureLength];
+			for (int idx = 0; idx < glyphFeatures.length; idx++) {
+				glyphFeatures[idx] = data.readFloat();
+			}
+			templates.add(ch, glyphFeatures);
+		}
+		return templates;
+	}
+
+	/**
+	 * Writes templates to the stream.
+	 */
+	public void write(final OutputStream out) throws IOException {
+		final DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(featureLength);
+		data.writeInt(chars.size());
+		for (int tplIdx = 0; tplIdx < chars.size(); tplIdx++) {
+			data.writeChar(chars.get(tplIdx));
+			for (float value : features.get(tplIdx)) {
+				data.writeFloat(value);
+			}
+		}
+		data.flush();
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import com.mikebl71.android.websms.connector.cabbage.core.ErrorClass;
+
+/**
+ * Recent requests of an account: their outcomes and latencies, and the quarantine of the account.
+ * 
+ * Each request counts once, however many times it was retried. Only failures that say something about
+ * the account count: authentication failures, transient gateway errors and I/O errors. Errors of the request
+ * itself (such as a message that is too big) and quota errors are ignored.
+ * After three failed requests in a row the account is quarantined for a while, and for twice as long each time
+ * it is quarantined again without a successful request in between. An authentication failure quarantines
+ * the account at once, as it does not go away by itself. A successful request ends the quarantine.
+ * 
+ * Not thread-safe, guarded by the caller.
+ */
+public class HealthRecord {
+
+	// Number of recent requests the score is computed from
+	private static final int WINDOW = 10;
+
+	// Latency (in ms) above which the score is reduced proportionally
+	private static final long SLOW_LATENCY_MS = 5000;
+
+	// Smoothing factor for the latency average
+	private static final double LATENCY_SMOOTHING = 0.3;
+
+	// Number of failed requests in a row after which the account is quarantined
+	static final int QUARANTINE_AFTER_FAILURES = 3;
+
+	// First and max quarantine time (in ms)
+	static final long QUARANTINE_BASE_MS = 5 * 60 * 1000;
+	static final long QUARANTINE_MAX_MS = 6 * 60 * 60 * 1000;
+
+	// outcomes of the recent requests (true for success), as a ring buffer
+	private final boolean[] outcomes = new boolean[WINDOW];
+	private int count;
+	private int next;
+	// smoothed latency of successful requests or -1 if none
+	private long avgLatencyMs = -1;
+	// number of failed requests since the last success or quarantine
+	private int failuresInRow;
+	// number of quarantines since the last success
+	private int quarantines;
+	// end of the current quarantine or 0
+	private long quarantineEnd;
+
+
+	/**
+	 * Accounts for a successful request with the given latency.
+	 */
+	public void recordSuccess(final long latencyMs) {
+		add(true);
+		avgLatencyMs = avgLatencyMs < 0
+				? latencyMs
+				: (long) (LATENCY_SMOOTHING * latencyMs + (1 - LATENCY_SMOOTHING) * avgLatencyMs);
+		failuresInRow = 0;
+		quarantines = 0;
+		quarantineEnd = 0;
+	}
+
+	/**
+	 * Accounts for a request that failed at the given time, with the class of the gateway error
+	 * (null for I/O errors).
+	 */
+	public void recordFailure(final ErrorClass errorClass, final long now) {
+		if (errorClass == ErrorClass.FATAL || errorClass == ErrorClass.QUOTA) {
+			return;
+		}
+		add(false);
+		failuresInRow++;
+		if (errorClass == ErrorClass.AUTH || failuresInRow >= QUARANTINE_AFTER_FAILURES) {
+			quarantineEnd = now + Math.min(QUARANTINE_MAX_MS, QUARANTINE_BASE_MS << Math.min(quarantines, 16));
+			quarantines++;
+			failuresInRow = 0;
+		}
+	}
+
+	/**
+	 * Checks if the account is quarantined at the given time.
+	 */
+	public boolean isQuarantined(final long now) {
+		return now < quarantineEnd;
+	}
+
+	/**
+	 * Returns the smoothed latency (in ms) of successful requests, or -1 if not known.
+	 */
+	public long getAvgLatency() {
+		return avgLatencyMs;
+	}
+
+	/**
+	 * Returns the health score (0-100): the share of successful recent requests, reduced for slow accounts.
+	 * Returns -1 if there have been no requests yet.
+	 */
+	public int getScore() {
+		if (count == 0) {
+			return -1;
+		}
+		int successes = 0;
+		for (int idx = 0; idx < count; idx++) {
+			if (outcomes[idx]) {
+				successes++;
+			}
+		}
+		double score = 100.0 * successes / count;
+		if (avgLatencyMs > SLOW_LATENCY_MS) {
+			score = score * SLOW_LATENCY_MS / avgLatencyMs;
+		}
+		return (int) Math.round(score);
+	}
+
+
+	private void add(final boolean outcome) {
+		outcomes[next] = outcome;
+		next = (next + 1) % WINDOW;
+		count = Math.min(count + 1, WINDOW);
+	}
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageProtocol;
+import com.mikebl71.android.websms.connector.cabbage.core.ContentCodings;
+import com.mikebl71.android.websms.connector.cabbage.core.GatewayTransport;
+
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Gateway transport over a pooled HTTP client shared by all accounts.
+ * 
+ * Responses are requested compressed (gzip or deflate) and decoded while they are read.
+ * Text responses are only read up to MAX_TEXT_RESPONSE_SIZE, as the gateway's answer is at the start
+ * and the rest is hosting trailers; the connection of a longer response is dropped rather than drained.
+ * Counts the bytes of each request and response of the account in {@link DataUsage}, as sent over the network.
+ */
+public class HttpGatewayTransport implements GatewayTransport {
+
+	private static final String TAG = "cabbage";
+
+	// Size of the buffer for reading responses
+	private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+	// Max size of text (non-captcha) responses that is read
+	private static final int MAX_TEXT_RESPONSE_SIZE = 8 * 1024;
+
+	// Size of the request headers added by the HTTP client (Host, User-Agent, Connection), estimated
+	private static final int CLIENT_HEADERS_SIZE = 120;
+
+	// The client, created on first use
+	private static HttpClient client;
+
+	// Max number of connections in the shared connection pool
+	private final int maxConnections;
+	// Timeout for connecting to and reading from the gateway
+	private final int timeoutMs;
+	// Account and provider the requests are made for
+	private final String accId;
+	private final String provider;
+
+
+	public HttpGatewayTransport(final int maxConnections, final int timeoutMs,
+			final String accId, final String provider) {
+		this.maxConnections = maxConnections;
+		this.timeoutMs = timeoutMs;
+		this.accId = accId;
+		this.provider = provider;
+	}
+
+	public Response post(final String url, final Map<String, String> params) throws IOException {
+		final ArrayList<BasicNameValuePair> d = new ArrayList<BasicNameValuePair>(params.size());
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			d.add(new BasicNameValuePair(param.getKey(), param.getValue()));
+		}
+		final UrlEncodedFormEntity form = new UrlEncodedFormEntity(d, CabbageProtocol.ENCODING);
+
+		final HttpPost request = new HttpPost(url);
+		request.setEntity(form);
+		request.setHeader(ContentCodings.HEADER_ACCEPT_ENCODING, ContentCodings.ACCEPT_ENCODING);
+		HttpConnectionParams.setConnectionTimeout(request.getParams(), timeoutMs);
+		HttpConnectionParams.setSoTimeout(request.getParams(), timeoutMs);
+
+		final long sent = getRequestSize(url, request, form);
+		long received = 0;
+		CountingInputStream content = null;
+		try {
+			// send web request to the server and read the response
+			final HttpResponse response = getClient(maxConnections).execute(request);
+			received = getHeadSize(response);
+			final int status = response.getStatusLine().getStatusCode();
+
+			final HttpEntity entity = response.getEntity();
+			final byte[] body;
+			if (entity != null) {
+				content = new CountingInputStream(entity.getContent());
+				final int maxSize = params.containsKey(CabbageProtocol.PARAM_PRINT) ? Integer.MAX_VALUE
+						: MAX_TEXT_RESPONSE_SIZE;
+				body = read(request, entity, content, maxSize);
+			} else {
+				body = new byte[0];
+			}
+
+			if (status != HttpURLConnection.HTTP_OK) {
+				logError(response, body);
+			}
+			return new Response(status, body);
+
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		} catch (RuntimeException e) {
+			request.abort();
+			throw e;
+		} finally {
+			if (content != null) {
+				received += content.count;
+			}
+			DataUsage.get().record(accId, provider, getKind(params), sent, received);
+		}
+	}
+
+
+	/**
+	 * Returns the client, creating it on first use with a pool of the given size.
+	 */
+	private static synchronized HttpClient getClient(final int maxConnections) {
+		if (client == null) {
+			final HttpParams params = new BasicHttpParams();
+			ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+			ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+
+			final SchemeRegistry schemes = new SchemeRegistry();
+			schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+			client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
+		}
+		return client;
+	}
+
+	/**
+	 * Reads the body of the entity from its content, decoding it as it arrives, up to the given size.
+	 * If the body is longer, the request is aborted, so the rest is not downloaded.
+	 * The decoder is closed in any case, so its native memory is freed at once.
+	 */
+	private static byte[] read(final HttpPost request, final HttpEntity entity, final InputStream content,
+			final int maxSize) throws IOException {
+		final Header contentEncoding = entity.getContentEncoding();
+		final InputStream in = ContentCodings.decode(content,
+				contentEncoding != null ? contentEncoding.getValue() : null);
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(READ_BUFFER_SIZE);
+			final byte[] buffer = new byte[READ_BUFFER_SIZE];
+			while (out.size() < maxSize) {
+				final int count = in.read(buffer, 0, Math.min(buffer.length, maxSize - out.size()));
+				if (count < 0) {
+					break;
+				}
+				out.write(buffer, 0, count);
+			}
+
+			if (out.size() >= maxSize && in.read() >= 0) {
+				// drop the connection instead of downloading the rest
+				Log.d(TAG, "response longer than " + maxSize + " bytes, not reading the rest");
+				request.abort();
+			} else {
+				in.close();
+				entity.consumeContent();
+			}
+			return out.toByteArray();
+
+		} catch (IOException e) {
+			// drop the connection first, so closing the decoder does not drain it
+			request.abort();
+			throw e;
+		} catch (RuntimeException e) {
+			request.abort();
+			throw e;
+		} finally {
+			closeDecoder(in);
+		}
+	}
+
+	/**
+	 * Closes the decoder of a response whose connection may have been dropped already.
+	 */
+	private static void closeDecoder(final InputStream in) {
+		try {
+			in.close();
+		} catch (IOException e) {
+			// the decoder is freed anyway, the connection is gone
+		}
+	}
+
+	/**
+	 * Returns the size of the request, headers included.
+	 * The headers that the HTTP client adds by itself are estimated.
+	 */
+	private static long getRequestSize(final String url, final HttpPost request, final HttpEntity form) {
+		// the URL is split between the request line and the Host header
+		long size = ("POST " + url + " HTTP/1.1\r\n" + "Host: \r\n").length() + CLIENT_HEADERS_SIZE;
+		for (Header h : request.getAllHeaders()) {
+			size += h.getName().length() + 2 + h.getValue().length() + 2;
+		}
+		final Header contentType = form.getContentType();
+		if (contentType != null) {
+			size += contentType.getName().length() + 2 + contentType.getValue().length() + 2;
+		}
+		size += ("Content-Length: " + form.getContentLength() + "\r\n").length();
+		return size + 2 + form.getContentLength();
+	}
+
+	/**
+	 * Returns the size of the status line and the headers of the response.
+	 */
+	private static long getHeadSize(final HttpResponse response) {
+		long size = response.getStatusLine().toString().length() + 2;
+		for (Header h : response.getAllHeaders()) {
+			size += h.getName().length() + 2 + h.getValue().length() + 2;
+		}
+		return size + 2;
+	}
+
+	/**
+	 * Returns the kind of the request with the parameters, see {@link DataUsage}.
+	 */
+	private static String getKind(final Map<String, String> params) {
+		if (params.containsKey(CabbageProtocol.PARAM_PRINT)) {
+			return DataUsage.KIND_CAPTCHA;
+		} else if (params.containsKey(CabbageProtocol.PARAM_TEXT)) {
+			return DataUsage.KIND_SEND;
+		} else {
+			return DataUsage.KIND_BALANCE;
+		}
+	}
+
+	private static void logError(final HttpResponse response, final byte[] body) {
+		Log.e(TAG, "HTTP Status Line: " + response.getStatusLine().toString());
+		Log.e(TAG, "HTTP Headers:");
+		for (Header h : response.getAllHeaders()) {
+			Log.e(TAG, h.getName() + ": " + h.getValue());
+		}
+		Log.e(TAG, "HTTP Body:");
+		for (String l : new String(body).trim().split("\n")) {
+			Log.e(TAG, l);
+		}
+	}
+
+	/**
+	 * Stream that counts the bytes read through it.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		CountingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+			final int n = super.read(buffer, offset, length);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			final long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+}
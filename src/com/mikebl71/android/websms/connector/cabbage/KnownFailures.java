@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+
+/**
+ * Remembers gateway errors that cannot go away by themselves,
+ * so that requests bound to fail again are rejected without a round trip.
+ * 
+ * An authentication failure blocks background requests of the account for a while, or until its credentials
+ * change. Requests of user sends still go through, as the gateway also reports a login failure when
+ * the provider web site is flaky.
+ * A quota failure blocks sends of the account for a while, or until a balance check succeeds.
+ */
+public class KnownFailures {
+
+	// Time (in ms) background requests are blocked after an authentication failure
+	private static final long AUTH_BLOCK_MS = 30 * 60 * 1000;
+
+	// Time (in ms) sends are blocked after a quota failure
+	private static final long QUOTA_BLOCK_MS = 60 * 60 * 1000;
+
+	// Known failures by account id
+	private static final Map<String, Failure> FAILURES = new HashMap<String, Failure>();
+
+
+	/**
+	 * Throws the remembered failure if the request for the account is bound to fail again.
+	 * Urgent requests are those of user sends.
+	 */
+	public static void check(final SharedPreferences prefs, final String accId, final boolean isSend,
+			final boolean urgent) {
+		final Failure failure;
+		synchronized (FAILURES) {
+			failure = FAILURES.get(accId);
+		}
+		if (failure == null) {
+			return;
+		}
+
+		switch (failure.error.getErrorClass()) {
+		case AUTH:
+			if (!urgent && System.currentTimeMillis() - failure.time < AUTH_BLOCK_MS
+					&& failure.credentials.equals(getCredentials(prefs, accId))) {
+				throw failure.error;
+			}
+			break;
+		case QUOTA:
+			if (isSend && System.currentTimeMillis() - failure.time < QUOTA_BLOCK_MS) {
+				throw failure.error;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Remembers the failure of a request for the account if it cannot go away by itself.
+	 */
+	public static void record(final SharedPreferences prefs, final String accId, final GatewayException error) {
+		switch (error.getErrorClass()) {
+		case AUTH:
+		case QUOTA:
+			synchronized (FAILURES) {
+				FAILURES.put(accId, new Failure(error, getCredentials(prefs, accId)));
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Forgets failures of the account after a successful request.
+	 */
+	public static void clear(final String accId) {
+		synchronized (FAILURES) {
+			FAILURES.remove(accId);
+		}
+	}
+
+
+	private static String getCredentials(final SharedPreferences prefs, final String accId) {
+		return AccountPreferences.getUsername(prefs, accId) + "\n" + AccountPreferences.getPassword(prefs, accId);
+	}
+
+	/**
+	 * A remembered failure.
+	 */
+	private static class Failure {
+		private final GatewayException error;
+		// credentials the failure happened with
+		private final String credentials;
+		private final long time;
+
+		Failure(final GatewayException error, final String credentials) {
+			this.error = error;
+			this.credentials = credentials;
+			this.time = System.currentTimeMillis();
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.lang.reflect.Method;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Performance settings for the type of the active network.
+ * 
+ * Fast unmetered networks (Wi-Fi, Ethernet) allow more concurrent requests.
+ * Slow mobile networks (2G) get fewer concurrent requests, longer timeouts, no prefetching
+ * and less frequent balance refreshes. Other networks keep the defaults.
+ * A profile may turn off captcha prefetching, but never turns it on against the user's preference.
+ * Immutable.
+ */
+public class NetworkProfile {
+
+	private static final String TAG = "cabbage";
+
+	// ConnectivityManager.TYPE_ETHERNET (API 13)
+	private static final int TYPE_ETHERNET = 9;
+
+	// Prefetch behaviours
+	public static final int PREFETCH_NEVER = 0;
+	public static final int PREFETCH_PREFERENCE = 1;
+
+	/** Profiles. */
+	public static final NetworkProfile UNMETERED = new NetworkProfile("unmetered",
+			AimdLimit.MAX_LIMIT, 30000, 0, PREFETCH_PREFERENCE);
+	public static final NetworkProfile MOBILE = new NetworkProfile("mobile",
+			AimdLimit.MAX_LIMIT / 2, 60000, 0, PREFETCH_PREFERENCE);
+	public static final NetworkProfile SLOW_MOBILE = new NetworkProfile("slow_mobile",
+			1, 120000, 15 * 60 * 1000, PREFETCH_NEVER);
+
+	// Profile chosen last time, for logging and counting changes
+	private static NetworkProfile lastProfile;
+
+	private final String name;
+	private final int maxConcurrency;
+	private final int timeoutMs;
+	private final long minRefreshIntervalMs;
+	private final int prefetch;
+
+
+	private NetworkProfile(final String name, final int maxConcurrency, final int timeoutMs,
+			final long minRefreshIntervalMs, final int prefetch) {
+		this.name = name;
+		this.maxConcurrency = maxConcurrency;
+		this.timeoutMs = timeoutMs;
+		this.minRefreshIntervalMs = minRefreshIntervalMs;
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Returns the profile for the currently active network.
+	 * Each change of the profile is counted in the connector stats.
+	 */
+	public static NetworkProfile get(final Context context) {
+		final NetworkProfile profile = choose(context);
+		synchronized (NetworkProfile.class) {
+			if (profile != lastProfile) {
+				Log.d(TAG, "network profile: " + profile.name);
+				ConnectorStats.record(ConnectorStats.NETWORK_PROFILE, profile.name, 1);
+				lastProfile = profile;
+			}
+		}
+		return profile;
+	}
+
+	/**
+	 * Returns the max number of concurrent background requests and broadcast chunks.
+	 */
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * Returns the timeout (in ms) for connecting to and reading from the gateway.
+	 */
+	public int getTimeoutMs() {
+		return timeoutMs;
+	}
+
+	/**
+	 * Returns the min time (in ms) between balance refreshes, see {@link NetworkWindow}.
+	 */
+	public long getMinRefreshInterval() {
+		return minRefreshIntervalMs;
+	}
+
+	/**
+	 * Returns if the next captcha should be fetched while an answer is checked, given the user's preference.
+	 */
+	public boolean isCaptchaPrefetch(final boolean preference) {
+		return prefetch == PREFETCH_PREFERENCE && preference;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+
+	private static NetworkProfile choose(final Context context) {
+		final ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		final NetworkInfo info = cm != null ? cm.getActiveNetworkInfo() : null;
+		if (info == null) {
+			return MOBILE;
+		}
+		if (info.getType() == ConnectivityManager.TYPE_MOBILE && isSlowMobile(info.getSubtype())) {
+			return SLOW_MOBILE;
+		}
+		return isMetered(cm, info) ? MOBILE : UNMETERED;
+	}
+
+	private static boolean isSlowMobile(final int subtype) {
+		switch (subtype) {
+		case TelephonyManager.NETWORK_TYPE_GPRS:
+		case TelephonyManager.NETWORK_TYPE_EDGE:
+		case TelephonyManager.NETWORK_TYPE_CDMA:
+		case TelephonyManager.NETWORK_TYPE_1xRTT:
+		case TelephonyManager.NETWORK_TYPE_IDEN:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if the active network is metered.
+	 * Uses ConnectivityManager.isActiveNetworkMetered where available (API 16),
+	 * otherwise treats all but Wi-Fi and Ethernet as metered.
+	 */
+	private static boolean isMetered(final ConnectivityManager cm, final NetworkInfo info) {
+		try {
+			final Method isActiveNetworkMetered = ConnectivityManager.class.getMethod("isActiveNetworkMetered");
+			return (Boolean) isActiveNetworkMetered.invoke(cm);
+		} catch (Exception e) {
+			return info.getType() != ConnectivityManager.TYPE_WIFI && info.getType() != TYPE_ETHERNET;
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import android.content.SharedPreferences;
+
+/**
+ * Groups background network work into windows, so the cellular radio is woken up less often.
+ * 
+ * Every wake-up of the radio keeps it in a high-power state for several seconds after the last request.
+ * Balance refreshes are therefore put off (the last known balances are shown meanwhile) unless
+ * the radio is still up from a recent request, or the refresh window configured by the user
+ * (or the one of the network profile, if longer) has passed since the last refresh.
+ * A refresh that was put off runs in the background right after the next user send, while the radio is up anyway.
+ * See {@link RefreshWindow} for the rules.
+ */
+public class NetworkWindow {
+
+	// The window, guarded by itself
+	private static final RefreshWindow WINDOW = new RefreshWindow();
+
+
+	/**
+	 * Records that a request to the network has just ended.
+	 */
+	public static void recordActivity() {
+		synchronized (WINDOW) {
+			WINDOW.recordActivity(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Checks if a balance refresh should be put off till the next window, and remembers it if so.
+	 * The window is the one configured by the user, or longer if the network profile asks for it.
+	 * Otherwise the refresh is expected to run at once and opens a new window.
+	 */
+	public static boolean deferRefresh(final SharedPreferences prefs, final NetworkProfile profile) {
+		final long refreshWindow = Math.max(CabbageConnectorPreferences.getRefreshWindow(prefs),
+				profile.getMinRefreshInterval());
+		final boolean deferred;
+		synchronized (WINDOW) {
+			deferred = WINDOW.deferRefresh(refreshWindow, System.currentTimeMillis());
+		}
+		if (deferred) {
+			ConnectorStats.record(ConnectorStats.DEFERRED_REFRESHES, 1);
+		}
+		return deferred;
+	}
+
+	/**
+	 * Returns true (once) if a balance refresh has been put off, and opens a new window for it.
+	 * To be called while the radio is up anyway.
+	 */
+	public static boolean takePendingRefresh() {
+		synchronized (WINDOW) {
+			return WINDOW.takePendingRefresh(System.currentTimeMillis());
+		}
+	}
+
+}
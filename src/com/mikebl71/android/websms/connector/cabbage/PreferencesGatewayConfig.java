@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import android.content.SharedPreferences;
+
+import com.mikebl71.android.websms.connector.cabbage.core.GatewayConfig;
+
+/**
+ * Gateway configuration taken from the connector preferences and the account store.
+ */
+public class PreferencesGatewayConfig implements GatewayConfig {
+
+	private final SharedPreferences prefs;
+
+
+	public PreferencesGatewayConfig(final SharedPreferences prefs) {
+		this.prefs = prefs;
+	}
+
+	public String getGatewayUrl(final String provider) {
+		return CabbageConnectorPreferences.getCabbageUrl(prefs, provider);
+	}
+
+	public String getProvider(final String accId) {
+		return AccountPreferences.getProvider(prefs, accId);
+	}
+
+	public String getUsername(final String accId) {
+		return AccountPreferences.getUsername(prefs, accId);
+	}
+
+	public String getPassword(final String accId) {
+		return AccountPreferences.getPassword(prefs, accId);
+	}
+
+	public String getCookies(final String accId) {
+		return AccountPreferences.getCookies(prefs, accId);
+	}
+
+	public void setCookies(final String accId, final String cookies) {
+		AccountPreferences.setCookies(prefs, accId, cookies);
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+/**
+ * Known limits of the mobile provider web sites.
+ */
+public class ProviderLimits {
+
+	/** Max number of chunks of one message sent concurrently (for any provider). */
+	public static final int MAX_PARALLEL_CHUNKS = 3;
+
+	// Max number of recipients sent to in a single request in broadcast mode
+	// (conservative, the actual limits of the provider web sites are not published)
+	private static final int DEFAULT_MAX_RECIPIENTS = 5;
+	private static final int VODAFONE_MAX_RECIPIENTS = 5;
+	private static final int METEOR_MAX_RECIPIENTS = 5;
+	private static final int THREE_MAX_RECIPIENTS = 10;
+
+	/**
+	 * Default max number of requests per minute to the gateway for a provider and for a single account.
+	 * No limits of the provider web sites are known, so requests are not limited unless the user sets a limit.
+	 */
+	public static final int DEFAULT_PROVIDER_RATE_LIMIT = 0;
+	public static final int DEFAULT_ACCOUNT_RATE_LIMIT = 0;
+
+
+	/**
+	 * Returns the max number of recipients that can be sent to in a single request.
+	 */
+	public static int getMaxRecipients(final String provider) {
+		if (AccountPreferences.PROVIDER_VODAFONE.equals(provider)) {
+			return VODAFONE_MAX_RECIPIENTS;
+		} else if (AccountPreferences.PROVIDER_METEOR.equals(provider)) {
+			return METEOR_MAX_RECIPIENTS;
+		} else if (AccountPreferences.PROVIDER_THREE.equals(provider)) {
+			return THREE_MAX_RECIPIENTS;
+		} else {
+			return DEFAULT_MAX_RECIPIENTS;
+		}
+	}
+
+	/**
+	 * Returns the max number of chunks of one message that can be sent concurrently.
+	 * Vodafone chunks go one by one as each of them may need a captcha solved within the same web session.
+	 */
+	public static int getMaxParallelChunks(final String provider) {
+		if (AccountPreferences.PROVIDER_VODAFONE.equals(provider)) {
+			return 1;
+		} else {
+			return MAX_PARALLEL_CHUNKS;
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+
+/**
+ * Shapes requests to the Cabbage Gateway with a token bucket for each provider and for each account.
+ * A request has to get a token from its provider's bucket and then from its account's bucket.
+ * Urgent requests (user sends) are granted tokens ahead of the others.
+ */
+public class RateLimiter {
+
+	// Max number of requests in a burst
+	private static final int PROVIDER_BURST = 3;
+	private static final int ACCOUNT_BURST = 2;
+
+	// Buckets by provider ("p:" prefix) and by account id ("a:" prefix)
+	private static final Map<String, TokenBucket> BUCKETS = new HashMap<String, TokenBucket>();
+
+
+	/**
+	 * Waits until the request for the account is allowed by both the provider and the account limits.
+	 * Returns the time waited (in ms).
+	 */
+	public static long acquire(final SharedPreferences prefs, final String provider, final String accId,
+			final boolean urgent) throws InterruptedIOException {
+		final long startTime = System.currentTimeMillis();
+
+		final TokenBucket providerBucket = getBucket("p:" + provider,
+				CabbageConnectorPreferences.getProviderRateLimit(prefs, provider), PROVIDER_BURST);
+		final TokenBucket accountBucket = getBucket("a:" + accId,
+				CabbageConnectorPreferences.getAccountRateLimit(prefs), ACCOUNT_BURST);
+
+		try {
+			// an interrupted request gives its tokens back, so it does not use up the limits of others
+			TokenBucket.acquire(providerBucket, accountBucket, urgent);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the rate limiter");
+		}
+
+		final long waited = System.currentTimeMillis() - startTime;
+		ConnectorStats.record(ConnectorStats.THROTTLE_WAIT_MS, provider, waited);
+		return waited;
+	}
+
+
+	/**
+	 * Returns the bucket for the key with the given rate, or null if the rate is unlimited.
+	 */
+	private static TokenBucket getBucket(final String key, final int ratePerMinute, final int burst) {
+		if (ratePerMinute <= 0) {
+			return null;
+		}
+		synchronized (BUCKETS) {
+			TokenBucket bucket = BUCKETS.get(key);
+			if (bucket == null) {
+				bucket = new TokenBucket(ratePerMinute, burst);
+				BUCKETS.put(key, bucket);
+			} else if (!bucket.hasRate(ratePerMinute, burst)) {
+				bucket.setRate(ratePerMinute, burst);
+			}
+			return bucket;
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+/**
+ * Decides when balance refreshes run, so they share the radio's high-power state with other network work.
+ * 
+ * A refresh runs at once if the radio is still up from a recent request, or if the refresh window has passed
+ * since the last refresh. Otherwise it is put off, and runs when {@link #takePendingRefresh} is called
+ * while the radio is up anyway.
+ * 
+ * Not thread-safe, guarded by the caller.
+ */
+public class RefreshWindow {
+
+	// Time (in ms) the radio stays in the high-power state after a request
+	static final long RADIO_TAIL_MS = 10000;
+
+	// time of the end of the last request
+	private long lastActivityTime;
+	// time of the last refresh
+	private long lastRefreshTime;
+	// whether a refresh has been put off
+	private boolean refreshPending;
+
+
+	/**
+	 * Accounts for a request to the network that ended at the given time.
+	 */
+	public void recordActivity(final long now) {
+		lastActivityTime = now;
+	}
+
+	/**
+	 * Checks if a balance refresh asked for at the given time should be put off, given the refresh window
+	 * (in ms, 0 for none), and remembers it if so. Otherwise the refresh is expected to run at once
+	 * and opens a new window.
+	 */
+	public boolean deferRefresh(final long refreshWindow, final long now) {
+		if (refreshWindow > 0
+				&& now - lastActivityTime > RADIO_TAIL_MS
+				&& now - lastRefreshTime < refreshWindow) {
+			refreshPending = true;
+			return true;
+		}
+		refreshPending = false;
+		lastRefreshTime = now;
+		return false;
+	}
+
+	/**
+	 * Returns true (once) if a balance refresh has been put off, and opens a new window for it at the given time.
+	 */
+	public boolean takePendingRefresh(final long now) {
+		if (!refreshPending) {
+			return false;
+		}
+		refreshPending = false;
+		lastRefreshTime = now;
+		return true;
+	}
+
+}
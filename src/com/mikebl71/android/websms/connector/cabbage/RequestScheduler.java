@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gives user sends priority over background balance refreshes, and keeps the number of requests
+ * in flight to each gateway within what the gateway copes with.
+ * 
+ * Sends never wait here. Each refresh request has to get a slot first, which is only granted while
+ * no send is in progress, so refreshes pause at their next request while the user sends
+ * (requests already on the wire finish normally). Refreshes also wait while the gateway has as many
+ * requests in flight (sends included) as its adaptive limit, see {@link AimdLimit}.
+ */
+public class RequestScheduler {
+
+	// Outcomes of requests
+	public static final int OUTCOME_SUCCESS = 0;
+	public static final int OUTCOME_OVERLOAD = 1;
+	public static final int OUTCOME_FAILURE = 2;
+
+	private static final Object LOCK = new Object();
+
+	// Number of sends in progress, guarded by LOCK
+	private static int activeSends;
+	// Gateways by URL, guarded by LOCK
+	private static final Map<String, Gateway> GATEWAYS = new HashMap<String, Gateway>();
+
+
+	/**
+	 * Marks the start of a user send. Must be followed by {@link #endSend()}.
+	 */
+	public static void beginSend() {
+		synchronized (LOCK) {
+			activeSends++;
+		}
+	}
+
+	/**
+	 * Marks the end of a user send, letting paused refreshes go on if no other send is in progress.
+	 */
+	public static void endSend() {
+		synchronized (LOCK) {
+			activeSends--;
+			LOCK.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until a request to the gateway may go.
+	 * Sends go at once; refreshes wait while a send is in progress or the gateway is at its limit
+	 * (which is capped by the given max for the network, see {@link NetworkProfile}).
+	 * The request should be made as soon as this returns, as its latency is counted from here.
+	 * The returned permit must be passed to {@link #release} when the request is over.
+	 */
+	public static Permit acquire(final String gatewayUrl, final boolean isSend, final int maxInFlight)
+			throws InterruptedIOException {
+		final long startTime = System.currentTimeMillis();
+		final Gateway gateway;
+		synchronized (LOCK) {
+			gateway = getGateway(gatewayUrl);
+			try {
+				while (!isSend && (activeSends > 0 || gateway.inFlight >= Math.min(gateway.limit.get(), maxInFlight))) {
+					LOCK.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for the scheduler");
+			}
+			gateway.inFlight++;
+		}
+		if (!isSend) {
+			ConnectorStats.record(ConnectorStats.BACKGROUND_WAIT_MS, System.currentTimeMillis() - startTime);
+		}
+		return new Permit(gateway);
+	}
+
+	/**
+	 * Marks the end of a request to the gateway with the given outcome, which adapts the gateway's limit.
+	 */
+	public static void release(final Permit permit, final int outcome) {
+		final int limit;
+		synchronized (LOCK) {
+			final Gateway gateway = permit.gateway;
+			gateway.inFlight--;
+			if (outcome == OUTCOME_SUCCESS) {
+				gateway.limit.onSuccess((System.nanoTime() - permit.startNanos) / 1000000);
+			} else if (outcome == OUTCOME_OVERLOAD) {
+				gateway.limit.onOverload(permit.startNanos);
+			}
+			limit = gateway.limit.get();
+			LOCK.notifyAll();
+		}
+		ConnectorStats.record(ConnectorStats.CONCURRENCY_LIMIT, limit);
+	}
+
+
+	/**
+	 * Returns the state of the gateway. Must hold the lock.
+	 */
+	private static Gateway getGateway(final String gatewayUrl) {
+		Gateway gateway = GATEWAYS.get(gatewayUrl);
+		if (gateway == null) {
+			gateway = new Gateway();
+			GATEWAYS.put(gatewayUrl, gateway);
+		}
+		return gateway;
+	}
+
+	/**
+	 * Requests in flight to a gateway and its limit, guarded by LOCK.
+	 */
+	private static class Gateway {
+		final AimdLimit limit = new AimdLimit();
+		int inFlight;
+	}
+
+	/**
+	 * Permission to make a request.
+	 */
+	public static class Permit {
+		private final Gateway gateway;
+		private final long startNanos = System.nanoTime();
+
+		private Permit(final Gateway gateway) {
+			this.gateway = gateway;
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Merges sends of the same text from the same account that arrive within a short window
+ * into a single multi-recipient request.
+ * 
+ * The first send for an (account, text) pair opens a batch and waits for the window to pass.
+ * Sends arriving in the meantime add their recipients to the open batch and wait for its result.
+ * When the window closes, the batch is sent once and the result (success or the failure)
+ * is reported back to each of the original senders.
+ */
+public class SendCoalescer {
+
+	/**
+	 * Performs the actual send of a merged batch.
+	 */
+	public interface BatchSender {
+		void send(String accId, String text, String[] recipients) throws IOException;
+	}
+
+	// Open batches keyed by account id and text
+	private final Map<String, Batch> openBatches = new HashMap<String, Batch>();
+
+
+	/**
+	 * Sends the text to the recipients, merging it with other sends of the same text
+	 * from the same account that arrive within the given window.
+	 * Returns when the batch this send was merged into has been sent.
+	 */
+	public void send(final String accId, final String text, final String[] recipients,
+			final long windowMs, final BatchSender sender) throws IOException {
+
+		if (windowMs <= 0) {
+			sender.send(accId, text, recipients);
+			return;
+		}
+
+		final String key = accId + '\n' + text;
+		Batch batch;
+		boolean isLeader = false;
+
+		synchronized (openBatches) {
+			batch = openBatches.get(key);
+			if (batch == null) {
+				batch = new Batch();
+				openBatches.put(key, batch);
+				isLeader = true;
+			}
+			batch.addRecipients(recipients);
+		}
+
+		if (isLeader) {
+			// let other sends join the batch
+			try {
+				Thread.sleep(windowMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			String[] batchRecipients;
+			synchronized (openBatches) {
+				openBatches.remove(key);
+				batchRecipients = batch.getRecipients();
+			}
+
+			try {
+				sender.send(accId, text, batchRecipients);
+			} catch (IOException e) {
+				batch.failure = e;
+			} catch (RuntimeException e) {
+				batch.failure = e;
+			} finally {
+				batch.done.countDown();
+			}
+
+		} else {
+			// wait for the leader to send the batch
+			try {
+				batch.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while waiting for the batched send");
+			}
+		}
+
+		if (batch.failure instanceof IOException) {
+			throw (IOException) batch.failure;
+		} else if (batch.failure != null) {
+			throw (RuntimeException) batch.failure;
+		}
+	}
+
+
+	/**
+	 * Sends merged into one request.
+	 */
+	private static class Batch {
+		// recipients of all merged sends (duplicates removed, order preserved)
+		private final Set<String> recipients = new LinkedHashSet<String>();
+		// released once the batch has been sent
+		private final CountDownLatch done = new CountDownLatch(1);
+		// failure to report back to all merged sends
+		private volatile Exception failure;
+
+		void addRecipients(final String[] newRecipients) {
+			if (newRecipients != null) {
+				for (String recipient : newRecipients) {
+					recipients.add(recipient);
+				}
+			}
+		}
+
+		String[] getRecipients() {
+			final List<String> list = new ArrayList<String>(recipients);
+			return list.toArray(new String[list.size()]);
+		}
+	}
+
+}
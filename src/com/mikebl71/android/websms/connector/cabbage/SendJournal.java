@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.mikebl71.android.websms.connector.cabbage.core.RetryRules;
+
+/**
+ * Journal of send attempts, so that a retry of a send whose outcome is not known does not send the message twice.
+ * 
+ * Each attempt is recorded before the request with a key made of the account, the recipients and the text,
+ * and the balance of the account just before it (if known and recent). The attempt is marked sent when the
+ * gateway confirms it, and removed when it surely did not reach the gateway. An attempt that stays unknown
+ * (e.g. after a read timeout) can be reconciled by a retry within the attempt window: if the balance has
+ * dropped by at least the number of its recipients, and no other send of the account could explain the drop,
+ * the attempt has gone through (see {@link RetryRules}).
+ * 
+ * The journal must be opened with {@link #open(Context)} before it is used.
+ */
+public class SendJournal extends SQLiteOpenHelper {
+
+	// Database name and version
+	private static final String DB_NAME = "send_journal.db";
+	private static final int DB_VERSION = 1;
+
+	// Table and columns
+	private static final String TABLE = "attempts";
+	private static final String COL_ID = "id";
+	private static final String COL_ACC_ID = "acc_id";
+	private static final String COL_SEND_KEY = "send_key";
+	private static final String COL_RECIPIENTS = "recipients";
+	private static final String COL_STATE = "state";
+	private static final String COL_BALANCE_BEFORE = "balance_before";
+	private static final String COL_BALANCE_TIME = "balance_time";
+	private static final String COL_TIME = "time";
+
+	private static final String[] COLUMNS = new String[] {
+		COL_ID, COL_RECIPIENTS, COL_BALANCE_BEFORE, COL_BALANCE_TIME, COL_TIME };
+
+	// Attempt states
+	private static final int STATE_UNKNOWN = 0;
+	private static final int STATE_SENT = 1;
+
+	// Time (in ms) within which a retry is matched with an earlier attempt
+	private static final long ATTEMPT_WINDOW_MS = 60 * 60 * 1000;
+
+	// Max age (in ms) of a balance to be trusted as the balance before an attempt
+	private static final long BALANCE_MAX_AGE_MS = 30 * 60 * 1000;
+
+	// The journal, opened on first use
+	private static SendJournal instance;
+
+
+	/**
+	 * Creates a journal kept in the given database. Used directly only by tests, see {@link #open(Context)}.
+	 */
+	SendJournal(final Context context, final String dbName) {
+		super(context, dbName, null, DB_VERSION);
+	}
+
+	/**
+	 * Opens the journal. Does nothing if the journal is already open.
+	 */
+	public static synchronized SendJournal open(final Context context) {
+		if (instance == null) {
+			instance = new SendJournal(context.getApplicationContext(), DB_NAME);
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the opened journal.
+	 */
+	public static synchronized SendJournal get() {
+		if (instance == null) {
+			throw new IllegalStateException("send journal is not open");
+		}
+		return instance;
+	}
+
+	@Override
+	public void onCreate(final SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE + " ("
+				+ COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+				+ COL_ACC_ID + " TEXT, "
+				+ COL_SEND_KEY + " TEXT, "
+				+ COL_RECIPIENTS + " INTEGER, "
+				+ COL_STATE + " INTEGER, "
+				+ COL_BALANCE_BEFORE + " INTEGER, "
+				+ COL_BALANCE_TIME + " INTEGER, "
+				+ COL_TIME + " INTEGER)");
+		db.execSQL("CREATE INDEX " + TABLE + "_" + COL_SEND_KEY + " ON " + TABLE + " (" + COL_SEND_KEY + ")");
+		db.execSQL("CREATE INDEX " + TABLE + "_" + COL_ACC_ID + " ON " + TABLE + " (" + COL_ACC_ID + ")");
+	}
+
+	@Override
+	public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+		// no older versions of the table yet
+	}
+
+	/**
+	 * Records an attempt to send the text to the recipients through the account, before it is made.
+	 * Also drops attempts that are too old to be retried.
+	 * Returns the id of the attempt.
+	 */
+	public synchronized long begin(final String accId, final String[] recipients, final String text) {
+		final long now = System.currentTimeMillis();
+		final SQLiteDatabase db = getWritableDatabase();
+		db.delete(TABLE, COL_TIME + "<?", new String[] { Long.toString(now - ATTEMPT_WINDOW_MS) });
+
+		final ContentValues values = new ContentValues();
+		values.put(COL_ACC_ID, accId);
+		values.put(COL_SEND_KEY, RetryRules.getSendKey(accId, recipients, text));
+		values.put(COL_RECIPIENTS, recipients.length);
+		values.put(COL_STATE, STATE_UNKNOWN);
+
+		final BalanceState.Balance balance = BalanceState.get(accId);
+		final int balanceBefore = balance != null && now - balance.getTimestamp() < BALANCE_MAX_AGE_MS
+				? parseBalance(balance.getValue()) : -1;
+		values.put(COL_BALANCE_BEFORE, balanceBefore);
+		values.put(COL_BALANCE_TIME, balanceBefore >= 0 ? balance.getTimestamp() : 0L);
+		values.put(COL_TIME, now);
+		return db.insert(TABLE, null, values);
+	}
+
+	/**
+	 * Marks the attempt as sent.
+	 */
+	public synchronized void complete(final long attemptId) {
+		final ContentValues values = new ContentValues();
+		values.put(COL_STATE, STATE_SENT);
+		getWritableDatabase().update(TABLE, values, COL_ID + "=?", new String[] { Long.toString(attemptId) });
+	}
+
+	/**
+	 * Removes the attempt, which surely has not been sent.
+	 */
+	public synchronized void abandon(final long attemptId) {
+		getWritableDatabase().delete(TABLE, COL_ID + "=?", new String[] { Long.toString(attemptId) });
+	}
+
+	/**
+	 * Returns the latest attempt, within the attempt window, to send the text to the recipients through
+	 * the account whose outcome is not known, or null if there is none.
+	 */
+	public synchronized Attempt findUnknown(final String accId, final String[] recipients, final String text) {
+		final Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS,
+				COL_SEND_KEY + "=? AND " + COL_STATE + "=? AND " + COL_TIME + ">=?",
+				new String[] { RetryRules.getSendKey(accId, recipients, text), Integer.toString(STATE_UNKNOWN),
+						Long.toString(System.currentTimeMillis() - ATTEMPT_WINDOW_MS) },
+				null, null, COL_TIME + " DESC");
+		try {
+			if (!cursor.moveToFirst()) {
+				return null;
+			}
+			return new Attempt(cursor.getLong(0), cursor.getInt(1), cursor.getInt(2), cursor.getLong(3),
+					cursor.getLong(4));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Checks if the account has had other attempts since the balance before the given attempt was reported,
+	 * which could also have changed the balance.
+	 */
+	public synchronized boolean hasOtherAttempts(final String accId, final Attempt attempt) {
+		final Cursor cursor = getReadableDatabase().query(TABLE, new String[] { COL_ID },
+				COL_ACC_ID + "=? AND " + COL_ID + "<>? AND " + COL_TIME + ">=?",
+				new String[] { accId, Long.toString(attempt.getId()), Long.toString(attempt.getBalanceTime()) },
+				null, null, null);
+		try {
+			return cursor.getCount() > 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+
+	/**
+	 * Returns the balance as a number or -1 if it is not a number.
+	 */
+	static int parseBalance(final String balance) {
+		if (balance != null) {
+			try {
+				return Integer.parseInt(balance.trim());
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A recorded send attempt. Immutable.
+	 */
+	public static class Attempt {
+		private final long id;
+		private final int recipients;
+		private final int balanceBefore;
+		private final long balanceTime;
+		private final long time;
+
+		Attempt(final long id, final int recipients, final int balanceBefore, final long balanceTime,
+				final long time) {
+			this.id = id;
+			this.recipients = recipients;
+			this.balanceBefore = balanceBefore;
+			this.balanceTime = balanceTime;
+			this.time = time;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * Returns the number of recipients.
+		 */
+		public int getRecipients() {
+			return recipients;
+		}
+
+		/**
+		 * Returns the balance of the account before the attempt, or -1 if it was not known.
+		 */
+		public int getBalanceBefore() {
+			return balanceBefore;
+		}
+
+		/**
+		 * Returns the time the balance before the attempt was reported.
+		 */
+		public long getBalanceTime() {
+			return balanceTime;
+		}
+
+		public long getTime() {
+			return time;
+		}
+	}
+
+}
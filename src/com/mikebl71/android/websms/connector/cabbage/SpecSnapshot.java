@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import de.ub0r.android.websms.connector.common.ConnectorSpec;
+import de.ub0r.android.websms.connector.common.ConnectorSpec.SubConnectorSpec;
+import de.ub0r.android.websms.connector.common.Log;
+
+/**
+ * Snapshot of the subconnectors of the {@link ConnectorSpec} kept in a small binary file, so balances
+ * are known as soon as the connector starts, without waiting for an update from the gateway.
+ * 
+ * The snapshot records the id, label, features and the last balance of each subconnector together with
+ * the time the balance was received. It is read in one go at startup and matched by subconnector id;
+ * a balance is only restored if the subconnector still has the same label and features, i.e. it is the same account.
+ */
+public class SpecSnapshot {
+
+	private static final String TAG = "cabbage";
+
+	// Snapshot file in the private files dir
+	private static final String FILE_NAME = "spec_snapshot.bin";
+
+	// Format marker and version
+	private static final int MAGIC = 0x43535331; // "CSS1"
+
+	// Balances older than this are not restored
+	private static final long MAX_BALANCE_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+
+	/**
+	 * Reads the snapshot and restores the balances of the matching subconnectors.
+	 */
+	public static void restore(final Context context, final ConnectorSpec cs) {
+		final File file = context.getFileStreamPath(FILE_NAME);
+		if (!file.exists()) {
+			return;
+		}
+
+		final Map<String, Entry> entries;
+		try {
+			entries = read(file);
+		} catch (IOException e) {
+			Log.w(TAG, "cannot read spec snapshot, ignoring it", e);
+			return;
+		}
+
+		final long now = System.currentTimeMillis();
+		int restored = 0;
+		for (SubConnectorSpec sub : cs.getSubConnectors()) {
+			final Entry entry = entries.get(sub.getID());
+			if (entry != null && entry.balance != null && entry.label != null
+					&& entry.label.equals(sub.getName()) && entry.features == sub.getFeatures()
+					&& now - entry.balanceTime < MAX_BALANCE_AGE_MS) {
+				BalanceState.set(entry.id, entry.balance, entry.balanceTime, BalanceState.SOURCE_SNAPSHOT);
+				restored++;
+			}
+		}
+		BalanceState.publish(cs);
+		Log.d(TAG, "restored " + restored + " balances from spec snapshot");
+	}
+
+	/**
+	 * Writes the snapshot of all subconnectors of the spec.
+	 */
+	public static synchronized void save(final Context context, final ConnectorSpec cs) {
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try {
+			final DataOutputStream out = new DataOutputStream(buffer);
+			final SubConnectorSpec[] subs = cs.getSubConnectors();
+			out.writeInt(MAGIC);
+			out.writeInt(subs.length);
+			for (SubConnectorSpec sub : subs) {
+				final BalanceState.Balance balance = BalanceState.get(sub.getID());
+				out.writeUTF(sub.getID());
+				writeString(out, sub.getName());
+				out.writeInt(sub.getFeatures());
+				writeString(out, balance != null ? balance.getValue() : null);
+				out.writeLong(balance != null ? balance.getTimestamp() : 0);
+			}
+			out.flush();
+		} catch (IOException e) {
+			// cannot happen with an in-memory stream
+			throw new IllegalStateException(e);
+		}
+
+		// write a temporary file first so a crash does not leave a truncated snapshot
+		final File file = context.getFileStreamPath(FILE_NAME);
+		final File tmpFile = new File(file.getPath() + ".tmp");
+		try {
+			final FileOutputStream out = new FileOutputStream(tmpFile);
+			try {
+				buffer.writeTo(out);
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("cannot rename " + tmpFile);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "cannot write spec snapshot", e);
+		}
+	}
+
+
+	/**
+	 * Reads all entries of the snapshot file with a single read.
+	 */
+	private static Map<String, Entry> read(final File file) throws IOException {
+		final byte[] data = new byte[(int) file.length()];
+		final FileInputStream fileIn = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < data.length) {
+				final int count = fileIn.read(data, offset, data.length - offset);
+				if (count < 0) {
+					throw new IOException("snapshot truncated");
+				}
+				offset += count;
+			}
+		} finally {
+			fileIn.close();
+		}
+
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a spec snapshot");
+		}
+		final int count = in.readInt();
+		final Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+		for (int idx = 0; idx < count; idx++) {
+			final Entry entry = new Entry(in.readUTF());
+			entry.label = readString(in);
+			entry.features = in.readInt();
+			entry.balance = readString(in);
+			entry.balanceTime = in.readLong();
+			entries.put(entry.id, entry);
+		}
+		return entries;
+	}
+
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Snapshot of a single subconnector.
+	 */
+	private static class Entry {
+		private final String id;
+		private String label;
+		private int features;
+		private String balance;
+		private long balanceTime;
+
+		public Entry(final String id) {
+			this.id = id;
+		}
+	}
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket for shaping requests.
+ * 
+ * Tokens are added at a fixed rate up to the bucket capacity (the allowed burst).
+ * Each request takes one token. Requests that find the bucket empty are put in a FIFO queue
+ * and are granted by a shared timer as soon as tokens become available, so no thread
+ * has to sleep and poll the bucket. A queued request can be cancelled, and a token that ends up unused
+ * can be given back.
+ */
+public class TokenBucket {
+
+	// Shared timer that grants queued requests
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "cabbage-token-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Object lock = new Object();
+
+	// tokens added per nanosecond
+	private double ratePerNano;
+	// max number of tokens
+	private double capacity;
+	// currently available tokens
+	private double tokens;
+	// time of the last refill
+	private long lastRefillNanos;
+
+	// requests waiting for a token, urgent ones first
+	private final LinkedList<Runnable> waiters = new LinkedList<Runnable>();
+	// number of urgent requests at the head of the waiters
+	private int urgentWaiters;
+	// whether the timer is due to grant waiting requests
+	private boolean drainScheduled;
+
+
+	/**
+	 * Creates a full bucket.
+	 */
+	public TokenBucket(final double ratePerMinute, final int burst) {
+		setRate(ratePerMinute, burst);
+		this.tokens = this.capacity;
+		this.lastRefillNanos = System.nanoTime();
+	}
+
+	/**
+	 * Changes the rate and the burst of the bucket.
+	 */
+	public void setRate(final double ratePerMinute, final int burst) {
+		synchronized (lock) {
+			this.ratePerNano = ratePerMinute / TimeUnit.MINUTES.toNanos(1);
+			this.capacity = Math.max(1, burst);
+			this.tokens = Math.min(this.tokens, this.capacity);
+		}
+	}
+
+	/**
+	 * Checks if the bucket has the given rate and burst.
+	 */
+	public boolean hasRate(final double ratePerMinute, final int burst) {
+		synchronized (lock) {
+			return this.ratePerNano == ratePerMinute / TimeUnit.MINUTES.toNanos(1)
+					&& this.capacity == Math.max(1, burst);
+		}
+	}
+
+	/**
+	 * Takes a token and runs the callback.
+	 * The callback runs immediately on the calling thread if a token is available and nobody is waiting,
+	 * otherwise it is queued and later run on the timer thread, so it should be short.
+	 */
+	public void acquire(final Runnable onGranted) {
+		acquire(onGranted, false);
+	}
+
+	/**
+	 * Takes a token and runs the callback, like {@link #acquire(Runnable)}.
+	 * An urgent request only waits for earlier urgent requests, not for the others.
+	 */
+	public void acquire(final Runnable onGranted, final boolean urgent) {
+		synchronized (lock) {
+			refill();
+			final boolean ahead = urgent ? urgentWaiters > 0 : !waiters.isEmpty();
+			if (!ahead && tokens >= 1) {
+				tokens -= 1;
+			} else {
+				if (urgent) {
+					waiters.add(urgentWaiters++, onGranted);
+				} else {
+					waiters.addLast(onGranted);
+				}
+				scheduleDrain();
+				return;
+			}
+		}
+		onGranted.run();
+	}
+
+
+	/**
+	 * Removes the callback from the queue, unless it has already been granted.
+	 * Returns true if it has been removed (and will not run).
+	 */
+	public boolean cancel(final Runnable onGranted) {
+		synchronized (lock) {
+			final int idx = waiters.indexOf(onGranted);
+			if (idx < 0) {
+				return false;
+			}
+			waiters.remove(idx);
+			if (idx < urgentWaiters) {
+				urgentWaiters--;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Gives back a token that has been granted but not used.
+	 * Queued requests get it on the timer thread.
+	 */
+	public void release() {
+		synchronized (lock) {
+			refill();
+			tokens = Math.min(capacity, tokens + 1);
+			if (!waiters.isEmpty()) {
+				TIMER.execute(new Runnable() {
+					public void run() {
+						drain();
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Waits for a token from the first bucket and then from the second one (either may be null).
+	 * If the wait is interrupted, the request leaves the queues and the tokens it has got are given back.
+	 */
+	public static void acquire(final TokenBucket first, final TokenBucket second, final boolean urgent)
+			throws InterruptedException {
+		final ChainedRequest request = new ChainedRequest(first, second, urgent);
+		request.start();
+		try {
+			request.await();
+		} catch (InterruptedException e) {
+			request.cancel();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Grants queued requests for which tokens are available.
+	 */
+	private void drain() {
+		final List<Runnable> granted = new ArrayList<Runnable>();
+		synchronized (lock) {
+			drainScheduled = false;
+			refill();
+			while (!waiters.isEmpty() && tokens >= 1) {
+				tokens -= 1;
+				granted.add(waiters.removeFirst());
+				if (urgentWaiters > 0) {
+					urgentWaiters--;
+				}
+			}
+			if (!waiters.isEmpty()) {
+				scheduleDrain();
+			}
+		}
+		for (Runnable onGranted : granted) {
+			onGranted.run();
+		}
+	}
+
+	/**
+	 * Schedules the timer to run when the next token becomes available. Must hold the lock.
+	 */
+	private void scheduleDrain() {
+		if (!drainScheduled) {
+			drainScheduled = true;
+			final long delayNanos = (long) Math.ceil((1 - tokens) / ratePerNano);
+			TIMER.schedule(new Runnable() {
+				public void run() {
+					drain();
+				}
+			}, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Adds tokens accumulated since the last refill. Must hold the lock.
+	 */
+	private void refill() {
+		final long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * ratePerNano);
+		lastRefillNanos = now;
+	}
+
+	/**
+	 * Request for a token from each of two buckets, one after the other.
+	 */
+	private static class ChainedRequest {
+		private final TokenBucket first;
+		private final TokenBucket second;
+		private final boolean urgent;
+		private final CountDownLatch granted = new CountDownLatch(1);
+
+		// guarded by the request
+		private boolean cancelled;
+		private boolean hasFirst;
+		private boolean hasSecond;
+
+		private final Runnable onFirstGranted = new Runnable() {
+			public void run() {
+				synchronized (ChainedRequest.this) {
+					if (cancelled) {
+						release(first);
+						return;
+					}
+					hasFirst = true;
+					acquire(second, onSecondGranted);
+				}
+			}
+		};
+
+		private final Runnable onSecondGranted = new Runnable() {
+			public void run() {
+				synchronized (ChainedRequest.this) {
+					if (cancelled) {
+						release(second);
+						return;
+					}
+					hasSecond = true;
+				}
+				granted.countDown();
+			}
+		};
+
+		ChainedRequest(final TokenBucket first, final TokenBucket second, final boolean urgent) {
+			this.first = first;
+			this.second = second;
+			this.urgent = urgent;
+		}
+
+		void start() {
+			acquire(first, onFirstGranted);
+		}
+
+		void await() throws InterruptedException {
+			granted.await();
+		}
+
+		/**
+		 * Takes the request out of the queues and gives back the tokens it has got.
+		 * A callback that is about to run gives back its token itself.
+		 */
+		synchronized void cancel() {
+			cancelled = true;
+			if (first != null) {
+				first.cancel(onFirstGranted);
+			}
+			if (second != null) {
+				second.cancel(onSecondGranted);
+			}
+			if (hasFirst) {
+				release(first);
+			}
+			if (hasSecond) {
+				release(second);
+			}
+		}
+
+		private void acquire(final TokenBucket bucket, final Runnable onGranted) {
+			if (bucket != null) {
+				bucket.acquire(onGranted, urgent);
+			} else {
+				onGranted.run();
+			}
+		}
+
+		private static void release(final TokenBucket bucket) {
+			if (bucket != null) {
+				bucket.release();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Client of Cabbage gateway. Plain Java: the configuration and the transport are supplied by the caller,
+ * so the same code runs in the Android connector and on a desktop JVM.
+ */
+public class CabbageClient {
+
+	private final GatewayConfig config;
+	private final GatewayTransport transport;
+
+
+	public CabbageClient(final GatewayConfig config, final GatewayTransport transport) {
+		this.config = config;
+		this.transport = transport;
+	}
+
+	/**
+	 * Sends the message to the recipients (comma separated), or only asks for the balance if there is no message,
+	 * with the answer to the last captcha, if any.
+	 * Returns the balance reported by the gateway or null if a captcha needs to be solved.
+	 */
+	public String exchange(final String accId, final String text, final String recipients,
+			final String captchaAnswer) throws IOException {
+		final String provider = config.getProvider(accId);
+		final GatewayTransport.Response response = transport.post(config.getGatewayUrl(provider),
+				CabbageProtocol.buildSendParams(provider, config.getUsername(accId), config.getPassword(accId),
+						config.getCookies(accId), text, recipients, captchaAnswer));
+		checkStatus(response);
+
+		final String responseText = response.getText().trim();
+		if (CabbageProtocol.isSessionResponse(provider, responseText)) {
+			config.setCookies(accId, CabbageProtocol.parseSessionCookies(responseText));
+			return null;
+		}
+		return CabbageProtocol.parseBalance(responseText);
+	}
+
+	/**
+	 * Fetches the captcha image for the account.
+	 */
+	public byte[] fetchCaptcha(final String accId) throws IOException {
+		final String provider = config.getProvider(accId);
+		final GatewayTransport.Response response = transport.post(
+				CabbageProtocol.getCaptchaUrl(config.getGatewayUrl(provider)),
+				CabbageProtocol.buildCaptchaParams(provider, config.getUsername(accId), config.getPassword(accId),
+						config.getCookies(accId)));
+		checkStatus(response);
+		return response.getBody();
+	}
+
+	/**
+	 * Sends the message, solving captchas with the given solver until the gateway accepts an answer.
+	 * Returns the balance reported by the gateway.
+	 */
+	public String send(final String accId, final String text, final String recipients,
+			final CaptchaSolver solver) throws IOException {
+		String balance = exchange(accId, text, recipients, null);
+		while (balance == null) {
+			final String answer = solver.solve(accId, fetchCaptcha(accId));
+			balance = exchange(accId, text, recipients, answer);
+		}
+		return balance;
+	}
+
+
+	private static void checkStatus(final GatewayTransport.Response response) throws GatewayError {
+		final int status = response.getStatusCode();
+		if (status != HttpURLConnection.HTTP_OK) {
+			throw new GatewayError("HTTP status " + status, status, CabbageProtocol.getHttpErrorClass(status));
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Request and response formats of Cabbage gateway.
+ */
+public class CabbageProtocol {
+
+	// Encoding of requests and responses
+	public static final String ENCODING = "UTF-8";
+
+	// Provider that needs session cookies and captchas
+	public static final String PROVIDER_VODAFONE = "v";
+
+	// Known gateway error codes (as positive numbers)
+	public static final int ERR_LOGIN_FAILED = 1;
+	public static final int ERR_GENERIC = 2;
+	public static final int ERR_UNEXPECTED_PROVIDER_RESPONSE = 5;
+	public static final int ERR_MESSAGE_TOO_BIG = 10;
+	public static final int ERR_TEXTS_EXCEEDED = 21;
+	public static final int ERR_EMPTY_USERNAME = 30;
+	public static final int ERR_EMPTY_PASSWORD = 31;
+	public static final int ERR_EMPTY_PROVIDER = 32;
+
+	// Request parameters
+	public static final String PARAM_PROVIDER   = "s";
+	public static final String PARAM_USERNAME   = "u";
+	public static final String PARAM_PASSWORD   = "p";
+	public static final String PARAM_RECIPIENTS = "d";
+	public static final String PARAM_TEXT       = "m";
+	public static final String PARAM_BALANCE_ONLY = "c";
+	public static final String PARAM_CAPTCHA_ANSWER = "cap";
+	public static final String PARAM_PRINT = "print";
+
+	// All request parameters other than session cookies
+	private static final Set<String> REQUEST_PARAMS = new HashSet<String>(Arrays.asList(PARAM_PROVIDER,
+			PARAM_USERNAME, PARAM_PASSWORD, PARAM_RECIPIENTS, PARAM_TEXT, PARAM_BALANCE_ONLY, PARAM_CAPTCHA_ANSWER,
+			PARAM_PRINT));
+
+	// Session cookies returned for Vodafone
+	private static final String COOKIE_JSESSIONID = "JSESSIONID";
+	private static final String COOKIE_SUPERCOOKIE = "supercookie";
+
+	// First number in a response
+	private static final Pattern FIRST_NUMBER = Pattern.compile("^(-?\\d+)");
+
+
+	/**
+	 * Builds parameters of a request that sends the message to the recipients (comma separated),
+	 * or only asks for the balance if there is no message.
+	 */
+	public static Map<String, String> buildSendParams(final String provider, final String username,
+			final String password, final String cookies, final String text, final String recipients,
+			final String captchaAnswer) {
+		final Map<String, String> params = buildCommonParams(provider, username, password, cookies);
+		if (text != null && text.length() > 0) {
+			params.put(PARAM_RECIPIENTS, recipients);
+			params.put(PARAM_TEXT, text);
+		} else {
+			params.put(PARAM_BALANCE_ONLY, "1");
+		}
+		if (captchaAnswer != null) {
+			params.put(PARAM_CAPTCHA_ANSWER, captchaAnswer);
+		}
+		return params;
+	}
+
+	/**
+	 * Builds parameters of a request for the captcha image.
+	 */
+	public static Map<String, String> buildCaptchaParams(final String provider, final String username,
+			final String password, final String cookies) {
+		final Map<String, String> params = buildCommonParams(provider, username, password, cookies);
+		params.put(PARAM_PRINT, "cap");
+		return params;
+	}
+
+	/**
+	 * Returns the URL of the captcha script next to the given gateway script.
+	 */
+	public static String getCaptchaUrl(final String gatewayUrl) {
+		return gatewayUrl.replace("/send.php", "/voda.send.php");
+	}
+
+	/**
+	 * Checks if the response carries new session cookies rather than a balance.
+	 */
+	public static boolean isSessionResponse(final String provider, final String responseText) {
+		return PROVIDER_VODAFONE.equals(provider) && responseText.contains(COOKIE_JSESSIONID);
+	}
+
+	/**
+	 * Parses a regular response.
+	 * Should be a number: remaining balance if positive or error code if negative.
+	 * Returns the balance.
+	 * NOTE that some free php hosting sites add a trailer to all pages, so take the first number from the response.
+	 */
+	public static String parseBalance(final String responseText) throws GatewayError {
+		final Matcher m = FIRST_NUMBER.matcher(responseText);
+		if (!m.find()) {
+			throw new GatewayError("unexpected response", GatewayError.CODE_UNEXPECTED_RESPONSE, ErrorClass.FATAL);
+		}
+		final String retCode = m.group();
+		final int retNumCode = Integer.parseInt(retCode);
+
+		if (retNumCode < 0) {
+			throw new GatewayError("gateway error " + retNumCode, retNumCode, getErrorClass(retNumCode));
+		}
+		return retCode;
+	}
+
+	/**
+	 * Parses Vodafone cookies returned from the gateway in the form:
+	 *   JSESSIONID=m7m0Q4QC0qTfyyQQ42YL8S<br/>supercookie=6d376d3071347163201e<br/>
+	 * and returns them "&" separated.
+	 * NOTE that some free php hosting sites add a trailer to all pages, so need to ignore it.
+	 */
+	public static String parseSessionCookies(final String responseText) {
+		return COOKIE_JSESSIONID + "=" + encode(findCookie(responseText, COOKIE_JSESSIONID))
+				+ "&" + COOKIE_SUPERCOOKIE + "=" + encode(findCookie(responseText, COOKIE_SUPERCOOKIE));
+	}
+
+	/**
+	 * Formats session cookies ("&" separated, URL encoded values) the way the gateway returns them.
+	 * The reverse of {@link #parseSessionCookies}.
+	 */
+	public static String formatSessionCookies(final String cookies) {
+		final Map<String, String> values = parseCookies(cookies);
+		return COOKIE_JSESSIONID + "=" + nullToEmpty(values.get(COOKIE_JSESSIONID)) + "<br/>"
+				+ COOKIE_SUPERCOOKIE + "=" + nullToEmpty(values.get(COOKIE_SUPERCOOKIE)) + "<br/>";
+	}
+
+	/**
+	 * Returns the session cookies ("&" separated, URL encoded values) passed in request parameters, or null.
+	 * The reverse of the cookie part of {@link #buildSendParams}.
+	 */
+	public static String extractCookies(final Map<String, String> params) {
+		final StringBuilder cookies = new StringBuilder();
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			if (!REQUEST_PARAMS.contains(param.getKey())) {
+				if (cookies.length() > 0) {
+					cookies.append('&');
+				}
+				cookies.append(param.getKey()).append('=').append(encode(param.getValue()));
+			}
+		}
+		return cookies.length() > 0 ? cookies.toString() : null;
+	}
+
+	/**
+	 * Returns the class of the (negative) code returned by the gateway.
+	 * Unknown codes are deemed fatal.
+	 */
+	public static ErrorClass getErrorClass(final int retNumCode) {
+		switch (-retNumCode) {
+		case ERR_LOGIN_FAILED:
+		case ERR_EMPTY_USERNAME:
+		case ERR_EMPTY_PASSWORD:
+			return ErrorClass.AUTH;
+		case ERR_UNEXPECTED_PROVIDER_RESPONSE:
+			return ErrorClass.RETRYABLE;
+		case ERR_TEXTS_EXCEEDED:
+			return ErrorClass.QUOTA;
+		default:
+			return ErrorClass.FATAL;
+		}
+	}
+
+	/**
+	 * Returns the class of an HTTP error status.
+	 */
+	public static ErrorClass getHttpErrorClass(final int status) {
+		return status == HttpURLConnection.HTTP_BAD_GATEWAY || status == HttpURLConnection.HTTP_UNAVAILABLE
+				? ErrorClass.RETRYABLE : ErrorClass.FATAL;
+	}
+
+
+	private static Map<String, String> buildCommonParams(final String provider, final String username,
+			final String password, final String cookies) {
+		final Map<String, String> params = new LinkedHashMap<String, String>();
+		params.put(PARAM_PROVIDER, provider);
+		params.put(PARAM_USERNAME, username);
+		params.put(PARAM_PASSWORD, password);
+		params.putAll(parseCookies(cookies));
+		return params;
+	}
+
+	private static Map<String, String> parseCookies(final String cookies) {
+		final Map<String, String> values = new LinkedHashMap<String, String>();
+		if (cookies != null && cookies.length() > 0) {
+			for (String cookie : cookies.split("&")) {
+				final String[] cookieParts = cookie.split("=");
+				if (cookieParts[0].length() > 0) {
+					values.put(cookieParts[0], cookieParts.length > 1 ? decode(cookieParts[1]) : "");
+				}
+			}
+		}
+		return values;
+	}
+
+	private static String nullToEmpty(final String value) {
+		return value != null ? value : "";
+	}
+
+	private static String findCookie(final String responseText, final String name) {
+		final int startIdx = responseText.indexOf(name + "=");
+		if (startIdx >= 0) {
+			final int valueIdx = startIdx + name.length() + 1;
+			final int endIdx = responseText.indexOf("<br/>", valueIdx);
+			if (endIdx >= 0) {
+				return responseText.substring(valueIdx, endIdx);
+			}
+		}
+		return "";
+	}
+
+	private static String encode(final String value) {
+		try {
+			return URLEncoder.encode(value, ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(final String value) {
+		try {
+			return URLDecoder.decode(value, ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed transfer of gateway responses: gzip or deflate, decoded as the response is read,
+ * so a reader may stop early without decompressing (or downloading) the rest.
+ */
+public class ContentCodings {
+
+	/** Request header and the codings the gateway may use for responses. */
+	public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	/** Response header with the coding of the body. */
+	public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+	// Codings
+	private static final String GZIP = "gzip";
+	private static final String X_GZIP = "x-gzip";
+	private static final String DEFLATE = "deflate";
+
+	// First two bytes of gzip data
+	private static final int GZIP_MAGIC_0 = 0x1f;
+	private static final int GZIP_MAGIC_1 = 0x8b;
+
+	// Number of bytes looked at to check that a body is encoded as announced
+	private static final int PROBE_SIZE = 256;
+
+
+	/**
+	 * Returns a stream that reads the body from the given stream, decoding the given content coding
+	 * (null if none). A body that turns out not to be encoded as announced (the gateway, a mirror or a proxy
+	 * in between got the header wrong) is read as it is, as is a body with an unknown coding.
+	 * The returned stream must be closed, also if it is not read to the end, to free the decoder.
+	 */
+	public static InputStream decode(final InputStream in, final String contentEncoding) throws IOException {
+		if (contentEncoding == null) {
+			return in;
+		}
+		final String coding = contentEncoding.trim().toLowerCase(Locale.US);
+		if (!coding.equals(GZIP) && !coding.equals(X_GZIP) && !coding.equals(DEFLATE)) {
+			return in;
+		}
+
+		// look at the start of the body to check the coding
+		final PushbackInputStream pin = new PushbackInputStream(in, PROBE_SIZE);
+		final byte[] probe = new byte[PROBE_SIZE];
+		int probeLength = 0;
+		int count;
+		while (probeLength < PROBE_SIZE && (count = pin.read(probe, probeLength, PROBE_SIZE - probeLength)) >= 0) {
+			probeLength += count;
+		}
+		pin.unread(probe, 0, probeLength);
+		if (probeLength < 2) {
+			// too short to be compressed
+			return pin;
+		}
+
+		if (coding.equals(DEFLATE)) {
+			// "deflate" should be zlib-wrapped, but some servers send raw deflate data
+			final boolean isZlib = isZlibHeader(probe[0] & 0xff, probe[1] & 0xff);
+			return canInflate(probe, probeLength, isZlib) ? new InflatingInputStream(pin, new Inflater(!isZlib)) : pin;
+		} else if ((probe[0] & 0xff) == GZIP_MAGIC_0 && (probe[1] & 0xff) == GZIP_MAGIC_1) {
+			return new GZIPInputStream(pin);
+		} else {
+			return pin;
+		}
+	}
+
+
+	/**
+	 * Checks if the two bytes are a zlib header with the deflate method.
+	 */
+	private static boolean isZlibHeader(final int b0, final int b1) {
+		return (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+	}
+
+	/**
+	 * Checks if the data starts like deflate data (zlib-wrapped or raw), i.e. inflating it fails on nothing.
+	 */
+	private static boolean canInflate(final byte[] data, final int length, final boolean isZlib) {
+		final Inflater inflater = new Inflater(!isZlib);
+		try {
+			inflater.setInput(data, 0, length);
+			final byte[] buffer = new byte[PROBE_SIZE * 4];
+			while (!inflater.finished() && !inflater.needsInput() && !inflater.needsDictionary()) {
+				inflater.inflate(buffer);
+			}
+			return true;
+		} catch (DataFormatException e) {
+			return false;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Inflating stream that owns its inflater, and frees it (with its native memory) when closed.
+	 */
+	private static class InflatingInputStream extends InflaterInputStream {
+
+		InflatingInputStream(final InputStream in, final Inflater inflater) {
+			super(in, inflater);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				inf.end();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+/**
+ * Classes of gateway errors.
+ */
+public enum ErrorClass {
+	/** Transient failure, the same request may succeed later. */
+	RETRYABLE,
+	/** Credentials are wrong or missing, no request for the account can succeed until they change. */
+	AUTH,
+	/** No more texts allowed for the account for now. */
+	QUOTA,
+	/** The request itself is wrong, repeating it will not help. */
+	FATAL
+}
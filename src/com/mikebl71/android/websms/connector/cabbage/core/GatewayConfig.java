@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+/**
+ * Configuration of the gateway and of the accounts used with it.
+ */
+public interface GatewayConfig {
+
+	/**
+	 * Returns the URL of the gateway script for the provider.
+	 */
+	String getGatewayUrl(String provider);
+
+	/**
+	 * Returns the provider of the account.
+	 */
+	String getProvider(String accId);
+
+	/**
+	 * Returns the user name of the account.
+	 */
+	String getUsername(String accId);
+
+	/**
+	 * Returns the password of the account.
+	 */
+	String getPassword(String accId);
+
+	/**
+	 * Returns the session cookies of the account ("&" separated, URL encoded values) or null.
+	 */
+	String getCookies(String accId);
+
+	/**
+	 * Stores the session cookies of the account.
+	 */
+	void setCookies(String accId, String cookies);
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Failure reported by Cabbage gateway: an error code, an HTTP error status or a response that cannot be parsed.
+ * The message is not meant for the user; the Android connector maps errors to localized messages.
+ */
+public class GatewayError extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	// Code of a response that cannot be parsed
+	public static final int CODE_UNEXPECTED_RESPONSE = 0;
+
+	// HTTP status of throttling (not in HttpURLConnection)
+	public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private final int code;
+	private final ErrorClass errorClass;
+
+
+	public GatewayError(final String message, final int code, final ErrorClass errorClass) {
+		super(message);
+		this.code = code;
+		this.errorClass = errorClass;
+	}
+
+	/**
+	 * Returns the gateway error code (negative), the HTTP status code (positive)
+	 * or {@link #CODE_UNEXPECTED_RESPONSE}.
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Returns the class of the error.
+	 */
+	public ErrorClass getErrorClass() {
+		return errorClass;
+	}
+
+	/**
+	 * Checks if the error is an HTTP error status.
+	 */
+	public boolean isHttpError() {
+		return code > 0;
+	}
+
+	/**
+	 * Checks if the error is a sign that the gateway or its host is overloaded:
+	 * a server error (5xx), throttling (429) or a transient error reported by the gateway.
+	 */
+	public boolean isOverload() {
+		if (isHttpError()) {
+			return code >= HttpURLConnection.HTTP_INTERNAL_ERROR || code == HTTP_TOO_MANY_REQUESTS;
+		}
+		return errorClass == ErrorClass.RETRYABLE;
+	}
+
+}
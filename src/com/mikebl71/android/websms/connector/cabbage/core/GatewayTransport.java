@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+/**
+ * Transport that posts requests to the gateway.
+ */
+public interface GatewayTransport {
+
+	/**
+	 * Posts the form parameters to the URL and returns the response.
+	 */
+	Response post(String url, Map<String, String> params) throws IOException;
+
+	/**
+	 * Response of the gateway.
+	 */
+	public static class Response {
+		private final int statusCode;
+		private final byte[] body;
+
+		public Response(final int statusCode, final byte[] body) {
+			this.statusCode = statusCode;
+			this.body = body;
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * Returns the body as text.
+		 */
+		public String getText() {
+			try {
+				return new String(body, CabbageProtocol.ENCODING);
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Rules for automatic retries of failed gateway requests.
+ * 
+ * A send is only retried if the request surely has not reached the gateway. Once the gateway has got it,
+ * even a transient error (an unexpected response from the provider, a 502 or 503) may come after
+ * the message has been passed on, so a retry could send the message twice.
+ * A send retried by the user is matched with the earlier attempt by its send key, and is not sent again
+ * if the balance shows that the earlier attempt has gone through.
+ */
+public class RetryRules {
+
+	/**
+	 * Checks if a request that the gateway has answered with an error of the given class may be retried.
+	 */
+	public static boolean mayRetry(final ErrorClass errorClass, final boolean isSend) {
+		return errorClass == ErrorClass.RETRYABLE && !isSend;
+	}
+
+	/**
+	 * Checks if a request that failed with an I/O error (other than a gateway error) may be retried,
+	 * given if the request could not reach the gateway and if the thread has been interrupted.
+	 */
+	public static boolean mayRetry(final boolean isConnectFailure, final boolean isInterrupted,
+			final boolean isSend) {
+		if (isInterrupted) {
+			return false;
+		}
+		return isConnectFailure || !isSend;
+	}
+
+	/**
+	 * Checks if a send that the gateway has answered with the error has surely not gone through.
+	 * It has not if the error is about the account or the request (wrong credentials, no texts left, bad input);
+	 * after a transient error, a response that cannot be parsed or a timeout of a proxy or relay
+	 * in front of the gateway (504) the outcome is not known.
+	 */
+	public static boolean isRejected(final int code, final ErrorClass errorClass) {
+		return errorClass != ErrorClass.RETRYABLE && code != GatewayError.CODE_UNEXPECTED_RESPONSE
+				&& code != HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+	}
+
+	/**
+	 * Checks if an earlier send to the given number of recipients, whose outcome is not known, has gone through,
+	 * given the balances before and after it (negative if not known): it has if the balance has dropped by
+	 * at least the number of recipients. The caller must make sure no other send could have caused the drop.
+	 */
+	public static boolean isEarlierSendDone(final int balanceBefore, final int balanceAfter, final int recipients) {
+		return balanceBefore >= 0 && balanceAfter >= 0 && balanceAfter <= balanceBefore - recipients;
+	}
+
+	/**
+	 * Returns the key of a send: a digest of the account, the recipients (in any order) and the text.
+	 */
+	public static String getSendKey(final String accId, final String[] recipients, final String text) {
+		final String[] sortedRecipients = recipients.clone();
+		Arrays.sort(sortedRecipients);
+
+		final StringBuilder send = new StringBuilder(accId).append('\n');
+		for (String recipient : sortedRecipients) {
+			send.append(recipient).append(',');
+		}
+		send.append('\n').append(text);
+
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(send.toString().getBytes("UTF-8"));
+			final StringBuilder key = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+/**
+ * Moving accounts kept in the SharedPreferences by older versions into the account store.
+ */
+public class AccountStoreTest extends AndroidTestCase {
+
+	private static final String DB_NAME = "accounts_test.db";
+	private static final String PREFS_NAME = "accounts_test";
+
+	private Context context;
+	private SharedPreferences prefs;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		context = getContext();
+		context.deleteDatabase(DB_NAME);
+		prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		prefs.edit().clear().commit();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		context.deleteDatabase(DB_NAME);
+		prefs.edit().clear().commit();
+		super.tearDown();
+	}
+
+	public void testMovesLegacyAccountsIntoNewStore() {
+		putLegacyAccount("1", "user1", "pass1");
+		putLegacyAccount("2", "user2", "pass2");
+
+		final AccountStore store = AccountStore.create(context, DB_NAME, prefs);
+		try {
+			assertEquals(Arrays.asList("1", "2"), store.getAccountIds());
+			assertEquals("user1", store.getAccount("1").getUsername());
+			assertEquals("pass2", store.getAccount("2").getPassword());
+			assertEquals("v", store.getAccount("2").getProvider());
+			assertTrue(prefs.getAll().isEmpty());
+		} finally {
+			store.close();
+		}
+	}
+
+	public void testKeepsMovedAccountsWhenReopened() {
+		putLegacyAccount("1", "user1", "pass1");
+		AccountStore.create(context, DB_NAME, prefs).close();
+
+		final AccountStore store = AccountStore.create(context, DB_NAME, prefs);
+		try {
+			assertEquals("user1", store.getAccount("1").getUsername());
+		} finally {
+			store.close();
+		}
+	}
+
+	public void testRemovesKeysLeftByEarlierMove() {
+		// the account made it into the store, but the keys were not removed
+		final AccountStore first = AccountStore.create(context, DB_NAME, prefs);
+		first.putAccount(new AccountStore.Account("1", "Account 1", "v", null, null, "user1", "pass1", null));
+		first.close();
+		putLegacyAccount("1", "user1", "pass1");
+
+		final AccountStore store = AccountStore.create(context, DB_NAME, prefs);
+		try {
+			assertEquals("pass1", store.getAccount("1").getPassword());
+			assertTrue(prefs.getAll().isEmpty());
+		} finally {
+			store.close();
+		}
+	}
+
+	public void testKeepsKeysOfAccountsNotInStore() {
+		// keys that appear after the store has been created are not moved, so they are not removed either
+		AccountStore.create(context, DB_NAME, prefs).close();
+		putLegacyAccount("3", "user3", "pass3");
+
+		final AccountStore store = AccountStore.create(context, DB_NAME, prefs);
+		try {
+			assertNull(store.getAccount("3"));
+			assertEquals("user3", prefs.getString("account_3_username", null));
+		} finally {
+			store.close();
+		}
+	}
+
+
+	/**
+	 * Stores an account the way older versions did.
+	 */
+	private void putLegacyAccount(final String accId, final String username, final String password) {
+		prefs.edit()
+				.putString("account_" + accId + "_label", "Account " + accId)
+				.putString("account_" + accId + "_provider", "v")
+				.putString("account_" + accId + "_username", username)
+				.putString("account_" + accId + "_password", password)
+				.commit();
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Send attempts recorded in the journal and looked up before a send is retried.
+ */
+public class SendJournalTest extends AndroidTestCase {
+
+	private static final String DB_NAME = "send_journal_test.db";
+
+	// account ids not used by other tests, as balances are kept per process
+	private static final String ACC_ID = "101";
+	private static final String OTHER_ACC_ID = "102";
+	private static final String RECENT_BALANCE_ACC_ID = "103";
+	private static final String OLD_BALANCE_ACC_ID = "104";
+
+	private static final String[] RECIPIENTS = new String[] { "0871234567", "0877654321" };
+	private static final String TEXT = "hello";
+
+	private SendJournal journal;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		getContext().deleteDatabase(DB_NAME);
+		journal = new SendJournal(getContext(), DB_NAME);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		journal.close();
+		getContext().deleteDatabase(DB_NAME);
+		super.tearDown();
+	}
+
+	public void testFindsUnknownAttemptOfSameSend() {
+		final long attemptId = journal.begin(ACC_ID, RECIPIENTS, TEXT);
+
+		final SendJournal.Attempt attempt = journal.findUnknown(ACC_ID,
+				new String[] { RECIPIENTS[1], RECIPIENTS[0] }, TEXT);
+		assertNotNull(attempt);
+		assertEquals(attemptId, attempt.getId());
+		assertEquals(2, attempt.getRecipients());
+	}
+
+	public void testFindsNoAttemptOfOtherSend() {
+		journal.begin(ACC_ID, RECIPIENTS, TEXT);
+
+		assertNull(journal.findUnknown(OTHER_ACC_ID, RECIPIENTS, TEXT));
+		assertNull(journal.findUnknown(ACC_ID, new String[] { RECIPIENTS[0] }, TEXT));
+		assertNull(journal.findUnknown(ACC_ID, RECIPIENTS, TEXT + "!"));
+	}
+
+	public void testFindsNoCompletedOrAbandonedAttempt() {
+		journal.complete(journal.begin(ACC_ID, RECIPIENTS, TEXT));
+		assertNull(journal.findUnknown(ACC_ID, RECIPIENTS, TEXT));
+
+		journal.abandon(journal.begin(ACC_ID, RECIPIENTS, TEXT));
+		assertNull(journal.findUnknown(ACC_ID, RECIPIENTS, TEXT));
+	}
+
+	public void testKeepsRecentBalanceBeforeAttempt() {
+		final long balanceTime = System.currentTimeMillis() - 60 * 1000;
+		BalanceState.set(RECENT_BALANCE_ACC_ID, "12", balanceTime, BalanceState.SOURCE_REQUEST);
+		journal.begin(RECENT_BALANCE_ACC_ID, RECIPIENTS, TEXT);
+
+		final SendJournal.Attempt attempt = journal.findUnknown(RECENT_BALANCE_ACC_ID, RECIPIENTS, TEXT);
+		assertEquals(12, attempt.getBalanceBefore());
+		assertEquals(balanceTime, attempt.getBalanceTime());
+	}
+
+	public void testIgnoresOldBalanceBeforeAttempt() {
+		BalanceState.set(OLD_BALANCE_ACC_ID, "12", System.currentTimeMillis() - 31 * 60 * 1000,
+				BalanceState.SOURCE_REQUEST);
+		journal.begin(OLD_BALANCE_ACC_ID, RECIPIENTS, TEXT);
+
+		final SendJournal.Attempt attempt = journal.findUnknown(OLD_BALANCE_ACC_ID, RECIPIENTS, TEXT);
+		assertEquals(-1, attempt.getBalanceBefore());
+	}
+
+	public void testSeesOtherAttemptsOfAccount() {
+		journal.begin(ACC_ID, RECIPIENTS, TEXT);
+		final SendJournal.Attempt attempt = journal.findUnknown(ACC_ID, RECIPIENTS, TEXT);
+		assertFalse(journal.hasOtherAttempts(ACC_ID, attempt));
+
+		journal.begin(OTHER_ACC_ID, RECIPIENTS, TEXT);
+		assertFalse(journal.hasOtherAttempts(ACC_ID, attempt));
+
+		journal.begin(ACC_ID, new String[] { RECIPIENTS[0] }, TEXT);
+		assertTrue(journal.hasOtherAttempts(ACC_ID, attempt));
+	}
+
+}
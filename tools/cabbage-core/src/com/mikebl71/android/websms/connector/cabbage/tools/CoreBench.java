@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.tools;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mikebl71.android.websms.connector.cabbage.CaptchaAnswerFixer;
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageClient;
+import com.mikebl71.android.websms.connector.cabbage.core.CaptchaSolver;
+import com.mikebl71.android.websms.connector.cabbage.core.GatewayConfig;
+import com.mikebl71.android.websms.connector.cabbage.core.GatewayTransport;
+
+/**
+ * Benchmark of the gateway protocol core against an in-memory gateway, for profiling the request
+ * and response handling with standard JVM tools.
+ * 
+ * Runs three flows: balance updates, sends, and Vodafone sends that get a new session and a captcha first.
+ * 
+ * Usage:
+ *   [iterations]   - number of requests per flow (default 100000)
+ */
+public class CoreBench {
+
+	// Default number of requests per flow
+	private static final int DEFAULT_ITERATIONS = 100000;
+
+	// Number of passes before measuring, to let the JIT warm up
+	private static final int WARMUP_PASSES = 1;
+
+	// Accounts of the in-memory gateway
+	private static final String ACC_METEOR = "1";
+	private static final String ACC_VODAFONE = "2";
+
+	public static void main(final String[] args) throws IOException {
+		final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+		for (int pass = 0; pass <= WARMUP_PASSES; pass++) {
+			final boolean report = pass == WARMUP_PASSES;
+			run("balance", iterations, report, new Flow() {
+				public void run(final CabbageClient client) throws IOException {
+					client.exchange(ACC_METEOR, null, null, null);
+				}
+			});
+			run("send", iterations, report, new Flow() {
+				public void run(final CabbageClient client) throws IOException {
+					client.exchange(ACC_METEOR, "hello there", "0871234567,0861234567", null);
+				}
+			});
+			run("vodafone send with captcha", iterations, report, new Flow() {
+				public void run(final CabbageClient client) throws IOException {
+					client.send(ACC_VODAFONE, "hello there", "0871234567", SOLVER);
+				}
+			});
+		}
+	}
+
+
+	private static void run(final String name, final int iterations, final boolean report, final Flow flow)
+			throws IOException {
+		final FakeGateway gateway = new FakeGateway();
+		final CabbageClient client = new CabbageClient(gateway, gateway);
+
+		final long startNanos = System.nanoTime();
+		for (int idx = 0; idx < iterations; idx++) {
+			flow.run(client);
+		}
+		final long elapsedNanos = System.nanoTime() - startNanos;
+
+		if (report) {
+			System.out.println(String.format("%-28s %8d requests  %8.2f us/flow  %10.0f flows/s",
+					name, gateway.requests, elapsedNanos / 1000.0 / iterations, iterations * 1e9 / elapsedNanos));
+		}
+	}
+
+	/**
+	 * One run of a benchmarked flow.
+	 */
+	private interface Flow {
+		void run(CabbageClient client) throws IOException;
+	}
+
+	// Reads the captcha "image" (its answer as text) and picks the best ranked answer
+	private static final CaptchaSolver SOLVER = new CaptchaSolver() {
+		public String solve(final String accId, final byte[] image) throws IOException {
+			final List<CaptchaAnswerFixer.Candidate> candidates = CaptchaAnswerFixer.rank(new String(image, "UTF-8"), 5);
+			if (candidates.isEmpty()) {
+				throw new IOException("captcha not solved");
+			}
+			return candidates.get(0).getText();
+		}
+	};
+
+	/**
+	 * In-memory gateway and account configuration.
+	 * Vodafone requests without a session get new session cookies (so a captcha is needed),
+	 * and a send with a captcha answer uses up the session.
+	 */
+	private static class FakeGateway implements GatewayConfig, GatewayTransport {
+		private static final byte[] BALANCE = "123<br/><!-- hosting trailer -->".getBytes();
+		private static final byte[] SESSION = "JSESSIONID=m7m0Q4QC0qTfyyQQ42YL8S<br/>supercookie=6d376d3071347163201e<br/>".getBytes();
+		private static final byte[] CAPTCHA = "Ab0d".getBytes();
+
+		private final Map<String, String> cookies = new HashMap<String, String>();
+		private int requests;
+
+		public Response post(final String url, final Map<String, String> params) {
+			requests++;
+			if (url.endsWith("/voda.send.php")) {
+				return new Response(200, CAPTCHA);
+			}
+			if ("v".equals(params.get("s"))) {
+				if (!params.containsKey("JSESSIONID")) {
+					return new Response(200, SESSION);
+				}
+				// the session is used up by the send
+				cookies.remove(ACC_VODAFONE);
+			}
+			return new Response(200, BALANCE);
+		}
+
+		public String getGatewayUrl(final String provider) {
+			return "v".equals(provider) ? "http://localhost/vf/send.php" : "http://localhost/send.php";
+		}
+
+		public String getProvider(final String accId) {
+			return ACC_VODAFONE.equals(accId) ? "v" : "m";
+		}
+
+		public String getUsername(final String accId) {
+			return "0870000000";
+		}
+
+		public String getPassword(final String accId) {
+			return "secret";
+		}
+
+		public String getCookies(final String accId) {
+			return cookies.get(accId);
+		}
+
+		public void setCookies(final String accId, final String newCookies) {
+			cookies.put(accId, newCookies);
+		}
+	}
+
+}
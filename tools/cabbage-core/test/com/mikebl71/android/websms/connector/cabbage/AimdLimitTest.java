@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Adjustment of the limit on concurrent gateway requests.
+ */
+public class AimdLimitTest {
+
+	@Test
+	public void startsBetweenBounds() {
+		final int limit = new AimdLimit().get();
+		assertTrue(limit > AimdLimit.MIN_LIMIT);
+		assertTrue(limit < AimdLimit.MAX_LIMIT);
+	}
+
+	@Test
+	public void growsWithSteadyLatencyUpToMax() {
+		final AimdLimit limit = new AimdLimit();
+		for (int i = 0; i < 100; i++) {
+			limit.onSuccess(100);
+		}
+		assertEquals(AimdLimit.MAX_LIMIT, limit.get());
+	}
+
+	@Test
+	public void doesNotGrowWhileLatencyIsHigh() {
+		final AimdLimit limit = new AimdLimit();
+		limit.onSuccess(100);
+		final int before = limit.get();
+		for (int i = 0; i < 10; i++) {
+			limit.onSuccess(1000);
+		}
+		assertEquals(before, limit.get());
+	}
+
+	@Test
+	public void halvesOnOverloadDownToMin() {
+		final AimdLimit limit = new AimdLimit();
+		for (int i = 0; i < 100; i++) {
+			limit.onSuccess(100);
+		}
+		limit.onOverload(System.nanoTime());
+		assertEquals(AimdLimit.MAX_LIMIT / 2, limit.get());
+
+		for (int i = 0; i < 10; i++) {
+			limit.onOverload(System.nanoTime());
+		}
+		assertEquals(AimdLimit.MIN_LIMIT, limit.get());
+	}
+
+	@Test
+	public void countsOverloadOfConcurrentRequestsOnce() {
+		final AimdLimit limit = new AimdLimit();
+		for (int i = 0; i < 100; i++) {
+			limit.onSuccess(100);
+		}
+		final long startNanos = System.nanoTime();
+		limit.onOverload(startNanos);
+		limit.onOverload(startNanos);
+		limit.onOverload(startNanos - 1);
+		assertEquals(AimdLimit.MAX_LIMIT / 2, limit.get());
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.mikebl71.android.websms.connector.cabbage.core.ErrorClass;
+
+/**
+ * Health score and quarantine of an account.
+ */
+public class HealthRecordTest {
+
+	private static final long NOW = 1000000;
+
+	@Test
+	public void hasNoScoreBeforeRequests() {
+		final HealthRecord health = new HealthRecord();
+		assertEquals(-1, health.getScore());
+		assertEquals(-1, health.getAvgLatency());
+		assertFalse(health.isQuarantined(NOW));
+	}
+
+	@Test
+	public void scoresShareOfSuccessfulRequests() {
+		final HealthRecord health = new HealthRecord();
+		health.recordSuccess(100);
+		health.recordFailure(null, NOW);
+		assertEquals(50, health.getScore());
+	}
+
+	@Test
+	public void reducesScoreOfSlowAccount() {
+		final HealthRecord health = new HealthRecord();
+		health.recordSuccess(10000);
+		assertEquals(50, health.getScore());
+	}
+
+	@Test
+	public void quarantinesAfterFailedRequestsInRow() {
+		final HealthRecord health = new HealthRecord();
+		for (int i = 1; i < HealthRecord.QUARANTINE_AFTER_FAILURES; i++) {
+			health.recordFailure(ErrorClass.RETRYABLE, NOW);
+			assertFalse(health.isQuarantined(NOW));
+		}
+		health.recordFailure(null, NOW);
+		assertTrue(health.isQuarantined(NOW));
+		assertTrue(health.isQuarantined(NOW + HealthRecord.QUARANTINE_BASE_MS - 1));
+		assertFalse(health.isQuarantined(NOW + HealthRecord.QUARANTINE_BASE_MS));
+	}
+
+	@Test
+	public void quarantinesAtOnceAfterAuthFailure() {
+		final HealthRecord health = new HealthRecord();
+		health.recordFailure(ErrorClass.AUTH, NOW);
+		assertTrue(health.isQuarantined(NOW));
+	}
+
+	@Test
+	public void ignoresRequestAndQuotaErrors() {
+		final HealthRecord health = new HealthRecord();
+		for (int i = 0; i < 2 * HealthRecord.QUARANTINE_AFTER_FAILURES; i++) {
+			health.recordFailure(ErrorClass.FATAL, NOW);
+			health.recordFailure(ErrorClass.QUOTA, NOW);
+		}
+		assertFalse(health.isQuarantined(NOW));
+		assertEquals(-1, health.getScore());
+	}
+
+	@Test
+	public void doublesQuarantineEachTimeUpToMax() {
+		final HealthRecord health = new HealthRecord();
+		long now = NOW;
+		long quarantineMs = HealthRecord.QUARANTINE_BASE_MS;
+		for (int i = 0; i < 10; i++) {
+			health.recordFailure(ErrorClass.AUTH, now);
+			assertTrue(health.isQuarantined(now + quarantineMs - 1));
+			assertFalse(health.isQuarantined(now + quarantineMs));
+			now += quarantineMs;
+			quarantineMs = Math.min(HealthRecord.QUARANTINE_MAX_MS, 2 * quarantineMs);
+		}
+	}
+
+	@Test
+	public void successEndsQuarantine() {
+		final HealthRecord health = new HealthRecord();
+		health.recordFailure(ErrorClass.AUTH, NOW);
+		health.recordSuccess(100);
+		assertFalse(health.isQuarantined(NOW));
+
+		health.recordFailure(ErrorClass.AUTH, NOW);
+		assertFalse(health.isQuarantined(NOW + HealthRecord.QUARANTINE_BASE_MS));
+	}
+
+	@Test
+	public void smoothesLatency() {
+		final HealthRecord health = new HealthRecord();
+		health.recordSuccess(1000);
+		assertEquals(1000, health.getAvgLatency());
+		health.recordSuccess(2000);
+		assertEquals(1300, health.getAvgLatency());
+	}
+
+}
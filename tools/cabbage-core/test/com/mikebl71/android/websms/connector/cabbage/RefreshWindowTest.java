@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Putting off balance refreshes until the radio is up anyway.
+ */
+public class RefreshWindowTest {
+
+	private static final long WINDOW_MS = 15 * 60 * 1000;
+	private static final long NOW = 100 * WINDOW_MS;
+
+	@Test
+	public void runsEveryRefreshWithoutWindow() {
+		final RefreshWindow window = new RefreshWindow();
+		assertFalse(window.deferRefresh(0, NOW));
+		assertFalse(window.deferRefresh(0, NOW + 1));
+		assertFalse(window.takePendingRefresh(NOW + 2));
+	}
+
+	@Test
+	public void runsFirstRefreshAndPutsOffNextWithinWindow() {
+		final RefreshWindow window = new RefreshWindow();
+		assertFalse(window.deferRefresh(WINDOW_MS, NOW));
+		assertTrue(window.deferRefresh(WINDOW_MS, NOW + RefreshWindow.RADIO_TAIL_MS + 1));
+	}
+
+	@Test
+	public void runsRefreshAfterWindow() {
+		final RefreshWindow window = new RefreshWindow();
+		assertFalse(window.deferRefresh(WINDOW_MS, NOW));
+		assertFalse(window.deferRefresh(WINDOW_MS, NOW + WINDOW_MS));
+	}
+
+	@Test
+	public void runsRefreshWhileRadioIsUp() {
+		final RefreshWindow window = new RefreshWindow();
+		assertFalse(window.deferRefresh(WINDOW_MS, NOW));
+		window.recordActivity(NOW + 60000);
+		assertFalse(window.deferRefresh(WINDOW_MS, NOW + 60000 + RefreshWindow.RADIO_TAIL_MS));
+		assertTrue(window.deferRefresh(WINDOW_MS, NOW + 60000 + 2 * RefreshWindow.RADIO_TAIL_MS));
+	}
+
+	@Test
+	public void handsOutPutOffRefreshOnce() {
+		final RefreshWindow window = new RefreshWindow();
+		assertFalse(window.deferRefresh(WINDOW_MS, NOW));
+		assertTrue(window.deferRefresh(WINDOW_MS, NOW + 60000));
+		assertTrue(window.takePendingRefresh(NOW + 120000));
+		assertFalse(window.takePendingRefresh(NOW + 120001));
+	}
+
+	@Test
+	public void pendingRefreshOpensNewWindow() {
+		final RefreshWindow window = new RefreshWindow();
+		assertFalse(window.deferRefresh(WINDOW_MS, NOW));
+		assertTrue(window.deferRefresh(WINDOW_MS, NOW + 60000));
+		assertTrue(window.takePendingRefresh(NOW + WINDOW_MS - 1));
+		assertTrue(window.deferRefresh(WINDOW_MS, NOW + WINDOW_MS + RefreshWindow.RADIO_TAIL_MS));
+	}
+
+	@Test
+	public void refreshRunAtOnceClearsPendingRefresh() {
+		final RefreshWindow window = new RefreshWindow();
+		assertFalse(window.deferRefresh(WINDOW_MS, NOW));
+		assertTrue(window.deferRefresh(WINDOW_MS, NOW + 60000));
+		assertFalse(window.deferRefresh(WINDOW_MS, NOW + WINDOW_MS));
+		assertFalse(window.takePendingRefresh(NOW + WINDOW_MS + 1));
+	}
+
+}
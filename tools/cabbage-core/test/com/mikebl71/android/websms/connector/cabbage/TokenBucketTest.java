@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Granting, queueing and giving back tokens.
+ */
+public class TokenBucketTest {
+
+	@Test
+	public void grantsBurstAtOnce() {
+		final TokenBucket bucket = new TokenBucket(1, 3);
+		final AtomicInteger granted = new AtomicInteger();
+		for (int i = 0; i < 4; i++) {
+			bucket.acquire(new Counter(granted));
+		}
+		assertEquals(3, granted.get());
+	}
+
+	@Test
+	public void grantsQueuedRequestLater() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(600, 1);
+		final CountDownLatch granted = new CountDownLatch(2);
+		bucket.acquire(new Latch(granted));
+		bucket.acquire(new Latch(granted));
+		assertEquals(1, granted.getCount());
+		assertTrue(granted.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void grantsUrgentRequestFirst() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(600, 1);
+		final StringBuffer order = new StringBuffer();
+		final CountDownLatch granted = new CountDownLatch(2);
+		bucket.acquire(new Latch(granted));
+		bucket.acquire(new Recorder(order, 'n', granted));
+		bucket.acquire(new Recorder(order, 'u', granted), true);
+		assertTrue(granted.await(1, TimeUnit.SECONDS));
+		assertEquals('u', order.charAt(0));
+	}
+
+	@Test
+	public void cancelledRequestIsNotGranted() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(600, 1);
+		final AtomicInteger granted = new AtomicInteger();
+		bucket.acquire(new Counter(granted));
+		final Runnable queued = new Counter(granted);
+		bucket.acquire(queued);
+		assertTrue(bucket.cancel(queued));
+		assertFalse(bucket.cancel(queued));
+		Thread.sleep(300);
+		assertEquals(1, granted.get());
+	}
+
+	@Test
+	public void releasedTokenCanBeTakenAgain() {
+		final TokenBucket bucket = new TokenBucket(1, 1);
+		final AtomicInteger granted = new AtomicInteger();
+		bucket.acquire(new Counter(granted));
+		bucket.release();
+		bucket.acquire(new Counter(granted));
+		assertEquals(2, granted.get());
+	}
+
+	@Test
+	public void interruptedWaitGivesTokensBack() throws InterruptedException {
+		final TokenBucket provider = new TokenBucket(1, 1);
+		final TokenBucket account = new TokenBucket(1, 1);
+		account.acquire(new Counter(new AtomicInteger()));
+
+		Thread.currentThread().interrupt();
+		try {
+			TokenBucket.acquire(provider, account, false);
+			fail("wait not interrupted");
+		} catch (InterruptedException e) {
+			// expected
+		}
+
+		final AtomicInteger granted = new AtomicInteger();
+		provider.acquire(new Counter(granted));
+		assertEquals(1, granted.get());
+	}
+
+
+	/**
+	 * Callback that counts grants.
+	 */
+	private static class Counter implements Runnable {
+		private final AtomicInteger count;
+
+		Counter(final AtomicInteger count) {
+			this.count = count;
+		}
+
+		public void run() {
+			count.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Callback that counts down a latch.
+	 */
+	private static class Latch implements Runnable {
+		private final CountDownLatch latch;
+
+		Latch(final CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		public void run() {
+			latch.countDown();
+		}
+	}
+
+	/**
+	 * Callback that records its mark in the order of grants.
+	 */
+	private static class Recorder extends Latch {
+		private final StringBuffer order;
+		private final char mark;
+
+		Recorder(final StringBuffer order, final char mark, final CountDownLatch latch) {
+			super(latch);
+			this.order = order;
+			this.mark = mark;
+		}
+
+		@Override
+		public void run() {
+			order.append(mark);
+			super.run();
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Exchanges of the client with a scripted gateway.
+ */
+public class CabbageClientTest {
+
+	private static final String ACC_ID = "1";
+
+	@Test
+	public void returnsBalance() throws IOException {
+		final Config config = new Config("o");
+		final CabbageClient client = new CabbageClient(config, new ScriptedTransport(HttpURLConnection.HTTP_OK, "12\n"));
+		assertEquals("12", client.exchange(ACC_ID, "hello", "0871234567", null));
+	}
+
+	@Test
+	public void keepsSessionCookiesAndAsksForCaptcha() throws IOException {
+		final Config config = new Config(CabbageProtocol.PROVIDER_VODAFONE);
+		final CabbageClient client = new CabbageClient(config, new ScriptedTransport(HttpURLConnection.HTTP_OK,
+				"JSESSIONID=abc<br/>supercookie=def<br/>"));
+		assertNull(client.exchange(ACC_ID, "hello", "0871234567", null));
+		assertEquals("JSESSIONID=abc&supercookie=def", config.cookies);
+	}
+
+	@Test
+	public void reportsHttpErrorWithItsClass() throws IOException {
+		assertHttpError(HttpURLConnection.HTTP_UNAVAILABLE, ErrorClass.RETRYABLE);
+		assertHttpError(HttpURLConnection.HTTP_GATEWAY_TIMEOUT, ErrorClass.FATAL);
+		assertHttpError(HttpURLConnection.HTTP_NOT_FOUND, ErrorClass.FATAL);
+	}
+
+	@Test
+	public void postsCaptchaRequestToCaptchaScript() throws IOException {
+		final ScriptedTransport transport = new ScriptedTransport(HttpURLConnection.HTTP_OK, "PNG");
+		new CabbageClient(new Config(CabbageProtocol.PROVIDER_VODAFONE), transport).fetchCaptcha(ACC_ID);
+		assertEquals("http://gateway/voda.send.php", transport.url);
+		assertEquals("cap", transport.params.get(CabbageProtocol.PARAM_PRINT));
+	}
+
+
+	private static void assertHttpError(final int status, final ErrorClass errorClass) throws IOException {
+		final CabbageClient client = new CabbageClient(new Config("o"), new ScriptedTransport(status, ""));
+		try {
+			client.exchange(ACC_ID, "hello", "0871234567", null);
+			fail("no error for " + status);
+		} catch (GatewayError e) {
+			assertTrue(e.isHttpError());
+			assertEquals(status, e.getCode());
+			assertEquals(errorClass, e.getErrorClass());
+		}
+	}
+
+	/**
+	 * Configuration of a single account.
+	 */
+	private static class Config implements GatewayConfig {
+		private final String provider;
+		private String cookies;
+
+		Config(final String provider) {
+			this.provider = provider;
+		}
+
+		public String getProvider(final String accId) {
+			return provider;
+		}
+
+		public String getUsername(final String accId) {
+			return "user";
+		}
+
+		public String getPassword(final String accId) {
+			return "pass";
+		}
+
+		public String getCookies(final String accId) {
+			return cookies;
+		}
+
+		public void setCookies(final String accId, final String cookies) {
+			this.cookies = cookies;
+		}
+
+		public String getGatewayUrl(final String provider) {
+			return "http://gateway/send.php";
+		}
+	}
+
+	/**
+	 * Transport that answers every request with the same response and remembers the last request.
+	 */
+	private static class ScriptedTransport implements GatewayTransport {
+		private final int status;
+		private final byte[] body;
+		private String url;
+		private Map<String, String> params;
+
+		ScriptedTransport(final int status, final String body) throws UnsupportedEncodingException {
+			this.status = status;
+			this.body = body.getBytes(CabbageProtocol.ENCODING);
+		}
+
+		public Response post(final String url, final Map<String, String> params) {
+			this.url = url;
+			this.params = params;
+			return new Response(status, body);
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Parsing of gateway responses and classification of gateway errors.
+ */
+public class CabbageProtocolTest {
+
+	@Test
+	public void parsesBalance() throws Exception {
+		assertEquals("42", CabbageProtocol.parseBalance("42"));
+	}
+
+	@Test
+	public void ignoresHostingTrailer() throws Exception {
+		assertEquals("7", CabbageProtocol.parseBalance("7<!-- hosting trailer 123 -->"));
+	}
+
+	@Test
+	public void reportsErrorCodeWithItsClass() {
+		assertGatewayError("-1", -1, ErrorClass.AUTH);
+		assertGatewayError("-5", -5, ErrorClass.RETRYABLE);
+		assertGatewayError("-10", -10, ErrorClass.FATAL);
+		assertGatewayError("-21", -21, ErrorClass.QUOTA);
+	}
+
+	@Test
+	public void reportsResponseWithoutNumberAsUnexpected() {
+		assertGatewayError("<html>error</html>", GatewayError.CODE_UNEXPECTED_RESPONSE, ErrorClass.FATAL);
+	}
+
+	@Test
+	public void classifiesErrorCodes() {
+		assertEquals(ErrorClass.AUTH, CabbageProtocol.getErrorClass(-CabbageProtocol.ERR_LOGIN_FAILED));
+		assertEquals(ErrorClass.AUTH, CabbageProtocol.getErrorClass(-CabbageProtocol.ERR_EMPTY_USERNAME));
+		assertEquals(ErrorClass.AUTH, CabbageProtocol.getErrorClass(-CabbageProtocol.ERR_EMPTY_PASSWORD));
+		assertEquals(ErrorClass.RETRYABLE,
+				CabbageProtocol.getErrorClass(-CabbageProtocol.ERR_UNEXPECTED_PROVIDER_RESPONSE));
+		assertEquals(ErrorClass.QUOTA, CabbageProtocol.getErrorClass(-CabbageProtocol.ERR_TEXTS_EXCEEDED));
+		assertEquals(ErrorClass.FATAL, CabbageProtocol.getErrorClass(-CabbageProtocol.ERR_GENERIC));
+		assertEquals(ErrorClass.FATAL, CabbageProtocol.getErrorClass(-CabbageProtocol.ERR_MESSAGE_TOO_BIG));
+		assertEquals(ErrorClass.FATAL, CabbageProtocol.getErrorClass(-99));
+	}
+
+	@Test
+	public void classifiesHttpErrors() {
+		assertEquals(ErrorClass.RETRYABLE, CabbageProtocol.getHttpErrorClass(HttpURLConnection.HTTP_BAD_GATEWAY));
+		assertEquals(ErrorClass.RETRYABLE, CabbageProtocol.getHttpErrorClass(HttpURLConnection.HTTP_UNAVAILABLE));
+		assertEquals(ErrorClass.FATAL, CabbageProtocol.getHttpErrorClass(HttpURLConnection.HTTP_GATEWAY_TIMEOUT));
+		assertEquals(ErrorClass.FATAL, CabbageProtocol.getHttpErrorClass(HttpURLConnection.HTTP_NOT_FOUND));
+		assertEquals(ErrorClass.FATAL, CabbageProtocol.getHttpErrorClass(HttpURLConnection.HTTP_INTERNAL_ERROR));
+	}
+
+	@Test
+	public void buildsSendAndBalanceParams() {
+		final Map<String, String> send = CabbageProtocol.buildSendParams("o", "user", "pass", null,
+				"hello", "0871234567", null);
+		assertEquals("hello", send.get(CabbageProtocol.PARAM_TEXT));
+		assertEquals("0871234567", send.get(CabbageProtocol.PARAM_RECIPIENTS));
+		assertFalse(send.containsKey(CabbageProtocol.PARAM_BALANCE_ONLY));
+
+		final Map<String, String> balance = CabbageProtocol.buildSendParams("o", "user", "pass", null,
+				null, null, null);
+		assertEquals("1", balance.get(CabbageProtocol.PARAM_BALANCE_ONLY));
+		assertFalse(balance.containsKey(CabbageProtocol.PARAM_TEXT));
+	}
+
+	@Test
+	public void recognizesSessionResponses() {
+		final String response = "JSESSIONID=m7m0Q4QC0qTfyyQQ42YL8S<br/>supercookie=6d376d3071347163201e<br/>";
+		assertTrue(CabbageProtocol.isSessionResponse(CabbageProtocol.PROVIDER_VODAFONE, response));
+		assertFalse(CabbageProtocol.isSessionResponse("o", response));
+		assertFalse(CabbageProtocol.isSessionResponse(CabbageProtocol.PROVIDER_VODAFONE, "12"));
+	}
+
+	@Test
+	public void sessionCookiesRoundTrip() {
+		final String response = "JSESSIONID=m7m0Q4QC0qTfyyQQ42YL8S<br/>supercookie=6d376d3071347163201e<br/>trailer";
+		final String cookies = CabbageProtocol.parseSessionCookies(response);
+		assertEquals("JSESSIONID=m7m0Q4QC0qTfyyQQ42YL8S&supercookie=6d376d3071347163201e", cookies);
+		assertEquals("JSESSIONID=m7m0Q4QC0qTfyyQQ42YL8S<br/>supercookie=6d376d3071347163201e<br/>",
+				CabbageProtocol.formatSessionCookies(cookies));
+
+		final Map<String, String> params = CabbageProtocol.buildSendParams(CabbageProtocol.PROVIDER_VODAFONE,
+				"user", "pass", cookies, "hello", "0871234567", "abcd");
+		assertEquals(cookies, CabbageProtocol.extractCookies(params));
+	}
+
+	@Test
+	public void extractsNoCookiesWithoutSession() {
+		assertNull(CabbageProtocol.extractCookies(
+				CabbageProtocol.buildSendParams("o", "user", "pass", null, "hello", "0871234567", null)));
+	}
+
+
+	private static void assertGatewayError(final String response, final int code, final ErrorClass errorClass) {
+		try {
+			CabbageProtocol.parseBalance(response);
+			fail("no error for " + response);
+		} catch (GatewayError e) {
+			assertEquals(code, e.getCode());
+			assertEquals(errorClass, e.getErrorClass());
+			assertFalse(e.isHttpError());
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Decoding of compressed gateway responses.
+ */
+public class ContentCodingsTest {
+
+	private static final byte[] BODY = ("17<div>hosting trailer, hosting trailer, hosting trailer, hosting trailer,"
+			+ " hosting trailer, hosting trailer</div>").getBytes();
+
+	@Test
+	public void decodesGzip() throws IOException {
+		assertArrayEquals(BODY, decode(gzip(BODY), "gzip"));
+		assertArrayEquals(BODY, decode(gzip(BODY), "x-gzip"));
+		assertArrayEquals(BODY, decode(gzip(BODY), " GZIP "));
+	}
+
+	@Test
+	public void decodesZlibDeflate() throws IOException {
+		assertArrayEquals(BODY, decode(deflate(BODY, false), "deflate"));
+	}
+
+	@Test
+	public void decodesRawDeflate() throws IOException {
+		assertArrayEquals(BODY, decode(deflate(BODY, true), "deflate"));
+	}
+
+	@Test
+	public void readsPlainBodyLabelledCompressed() throws IOException {
+		assertArrayEquals(BODY, decode(BODY, "gzip"));
+		assertArrayEquals(BODY, decode(BODY, "deflate"));
+	}
+
+	@Test
+	public void readsBodyWithoutOrWithUnknownCoding() throws IOException {
+		assertArrayEquals(BODY, decode(BODY, null));
+		assertArrayEquals(BODY, decode(BODY, "identity"));
+		assertArrayEquals(BODY, decode(BODY, "br"));
+	}
+
+	@Test
+	public void readsShortBodies() throws IOException {
+		assertArrayEquals(new byte[0], decode(new byte[0], "gzip"));
+		assertArrayEquals("7".getBytes(), decode("7".getBytes(), "deflate"));
+	}
+
+	@Test
+	public void stopsReadingEarly() throws IOException {
+		final InputStream in = ContentCodings.decode(new ByteArrayInputStream(gzip(BODY)), "gzip");
+		try {
+			final byte[] start = new byte[2];
+			assertEquals(2, in.read(start));
+			assertArrayEquals("17".getBytes(), start);
+		} finally {
+			in.close();
+		}
+	}
+
+
+	private static byte[] decode(final byte[] body, final String contentEncoding) throws IOException {
+		final InputStream in = ContentCodings.decode(new ByteArrayInputStream(body), contentEncoding);
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[16];
+			int count;
+			while ((count = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] gzip(final byte[] data) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(data);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] deflate(final byte[] data, final boolean raw) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+		final DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater);
+		deflate.write(data);
+		deflate.close();
+		deflater.end();
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpURLConnection;
+
+import org.junit.Test;
+
+/**
+ * Which gateway errors are signs of overload.
+ */
+public class GatewayErrorTest {
+
+	@Test
+	public void serverErrorsAndThrottlingAreOverload() {
+		assertTrue(httpError(HttpURLConnection.HTTP_INTERNAL_ERROR).isOverload());
+		assertTrue(httpError(HttpURLConnection.HTTP_BAD_GATEWAY).isOverload());
+		assertTrue(httpError(HttpURLConnection.HTTP_UNAVAILABLE).isOverload());
+		assertTrue(httpError(HttpURLConnection.HTTP_GATEWAY_TIMEOUT).isOverload());
+		assertTrue(httpError(508).isOverload());
+		assertTrue(httpError(GatewayError.HTTP_TOO_MANY_REQUESTS).isOverload());
+	}
+
+	@Test
+	public void clientErrorsAreNotOverload() {
+		assertFalse(httpError(HttpURLConnection.HTTP_NOT_FOUND).isOverload());
+		assertFalse(httpError(HttpURLConnection.HTTP_FORBIDDEN).isOverload());
+	}
+
+	@Test
+	public void transientGatewayErrorsAreOverload() {
+		assertTrue(gatewayError(-CabbageProtocol.ERR_UNEXPECTED_PROVIDER_RESPONSE).isOverload());
+	}
+
+	@Test
+	public void otherGatewayErrorsAreNotOverload() {
+		assertFalse(gatewayError(-CabbageProtocol.ERR_LOGIN_FAILED).isOverload());
+		assertFalse(gatewayError(-CabbageProtocol.ERR_MESSAGE_TOO_BIG).isOverload());
+		assertFalse(gatewayError(-CabbageProtocol.ERR_TEXTS_EXCEEDED).isOverload());
+		assertFalse(new GatewayError("unexpected response", GatewayError.CODE_UNEXPECTED_RESPONSE, ErrorClass.FATAL)
+				.isOverload());
+	}
+
+
+	private static GatewayError httpError(final int status) {
+		return new GatewayError("HTTP status " + status, status, CabbageProtocol.getHttpErrorClass(status));
+	}
+
+	private static GatewayError gatewayError(final int code) {
+		return new GatewayError("gateway error " + code, code, CabbageProtocol.getErrorClass(code));
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpURLConnection;
+
+import org.junit.Test;
+
+/**
+ * Rules that keep automatic and user retries from sending a message twice.
+ */
+public class RetryRulesTest {
+
+	@Test
+	public void sendIsNotRetriedAfterGatewayAnswered() {
+		for (ErrorClass errorClass : ErrorClass.values()) {
+			assertFalse(errorClass.name(), RetryRules.mayRetry(errorClass, true));
+		}
+	}
+
+	@Test
+	public void balanceRequestIsRetriedOnlyAfterTransientError() {
+		assertTrue(RetryRules.mayRetry(ErrorClass.RETRYABLE, false));
+		assertFalse(RetryRules.mayRetry(ErrorClass.AUTH, false));
+		assertFalse(RetryRules.mayRetry(ErrorClass.QUOTA, false));
+		assertFalse(RetryRules.mayRetry(ErrorClass.FATAL, false));
+	}
+
+	@Test
+	public void sendIsRetriedOnlyAfterConnectFailure() {
+		assertTrue(RetryRules.mayRetry(true, false, true));
+		assertFalse(RetryRules.mayRetry(false, false, true));
+	}
+
+	@Test
+	public void balanceRequestIsRetriedAfterAnyIoError() {
+		assertTrue(RetryRules.mayRetry(true, false, false));
+		assertTrue(RetryRules.mayRetry(false, false, false));
+	}
+
+	@Test
+	public void interruptedRequestIsNotRetried() {
+		assertFalse(RetryRules.mayRetry(true, true, true));
+		assertFalse(RetryRules.mayRetry(true, true, false));
+		assertFalse(RetryRules.mayRetry(false, true, false));
+	}
+
+	@Test
+	public void sendIsRejectedByAccountAndRequestErrors() {
+		assertTrue(RetryRules.isRejected(-1, ErrorClass.AUTH));
+		assertTrue(RetryRules.isRejected(-21, ErrorClass.QUOTA));
+		assertTrue(RetryRules.isRejected(-10, ErrorClass.FATAL));
+		assertTrue(RetryRules.isRejected(HttpURLConnection.HTTP_NOT_FOUND, ErrorClass.FATAL));
+	}
+
+	@Test
+	public void sendOutcomeIsUnknownAfterAmbiguousErrors() {
+		assertFalse(RetryRules.isRejected(-5, ErrorClass.RETRYABLE));
+		assertFalse(RetryRules.isRejected(HttpURLConnection.HTTP_BAD_GATEWAY, ErrorClass.RETRYABLE));
+		assertFalse(RetryRules.isRejected(HttpURLConnection.HTTP_UNAVAILABLE, ErrorClass.RETRYABLE));
+		assertFalse(RetryRules.isRejected(HttpURLConnection.HTTP_GATEWAY_TIMEOUT, ErrorClass.FATAL));
+		assertFalse(RetryRules.isRejected(GatewayError.CODE_UNEXPECTED_RESPONSE, ErrorClass.FATAL));
+	}
+
+	@Test
+	public void rulesAgreeWithProtocolClassification() {
+		assertFalse(RetryRules.isRejected(-CabbageProtocol.ERR_UNEXPECTED_PROVIDER_RESPONSE,
+				CabbageProtocol.getErrorClass(-CabbageProtocol.ERR_UNEXPECTED_PROVIDER_RESPONSE)));
+		assertFalse(RetryRules.isRejected(HttpURLConnection.HTTP_BAD_GATEWAY,
+				CabbageProtocol.getHttpErrorClass(HttpURLConnection.HTTP_BAD_GATEWAY)));
+		assertFalse(RetryRules.isRejected(HttpURLConnection.HTTP_GATEWAY_TIMEOUT,
+				CabbageProtocol.getHttpErrorClass(HttpURLConnection.HTTP_GATEWAY_TIMEOUT)));
+		assertTrue(RetryRules.isRejected(-CabbageProtocol.ERR_LOGIN_FAILED,
+				CabbageProtocol.getErrorClass(-CabbageProtocol.ERR_LOGIN_FAILED)));
+	}
+
+	@Test
+	public void earlierSendIsDoneIfBalanceDroppedByRecipients() {
+		assertTrue(RetryRules.isEarlierSendDone(10, 8, 2));
+		assertTrue(RetryRules.isEarlierSendDone(10, 7, 2));
+		assertFalse(RetryRules.isEarlierSendDone(10, 9, 2));
+		assertFalse(RetryRules.isEarlierSendDone(10, 10, 1));
+	}
+
+	@Test
+	public void earlierSendIsNotDoneWithoutKnownBalances() {
+		assertFalse(RetryRules.isEarlierSendDone(-1, 0, 1));
+		assertFalse(RetryRules.isEarlierSendDone(10, -1, 1));
+	}
+
+	@Test
+	public void sendKeyIgnoresOrderOfRecipients() {
+		assertEquals(RetryRules.getSendKey("1", new String[] { "0871", "0872" }, "hello"),
+				RetryRules.getSendKey("1", new String[] { "0872", "0871" }, "hello"));
+	}
+
+	@Test
+	public void sendKeyDependsOnAccountRecipientsAndText() {
+		final String key = RetryRules.getSendKey("1", new String[] { "0871" }, "hello");
+		assertFalse(key.equals(RetryRules.getSendKey("2", new String[] { "0871" }, "hello")));
+		assertFalse(key.equals(RetryRules.getSendKey("1", new String[] { "0872" }, "hello")));
+		assertFalse(key.equals(RetryRules.getSendKey("1", new String[] { "0871", "0872" }, "hello")));
+		assertFalse(key.equals(RetryRules.getSendKey("1", new String[] { "0871" }, "hello!")));
+	}
+
+	@Test
+	public void sendKeyKeepsRecipientsOfCaller() {
+		final String[] recipients = new String[] { "0872", "0871" };
+		RetryRules.getSendKey("1", recipients, "hello");
+		assertEquals("0872", recipients[0]);
+	}
+
+}
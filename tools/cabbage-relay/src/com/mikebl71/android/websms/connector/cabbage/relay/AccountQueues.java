@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.relay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mikebl71.android.websms.connector.cabbage.TokenBucket;
+
+/**
+ * Queues of relayed jobs, one per account (provider and user name).
+ * Jobs of an account run one at a time in arrival order, shaped by a token bucket for the account
+ * and one for its provider (shared by all accounts, as they all go to the same gateway).
+ * Jobs of different accounts run in parallel.
+ */
+public class AccountQueues {
+
+	// Max number of requests in a burst
+	private static final int PROVIDER_BURST = 3;
+	private static final int ACCOUNT_BURST = 2;
+
+	/**
+	 * Job run in an account queue.
+	 */
+	public interface Job {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Thrown when the queue of the account is full.
+	 */
+	public static class QueueFullException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public QueueFullException(final String message) {
+			super(message);
+		}
+	}
+
+	private final int maxQueued;
+	private final int accountRatePerMinute;
+	private final int providerRatePerMinute;
+
+	// Queues by provider and user name
+	private final Map<String, Queue> queues = new HashMap<String, Queue>();
+	// Buckets by provider
+	private final Map<String, TokenBucket> providerBuckets = new HashMap<String, TokenBucket>();
+
+
+	/**
+	 * Creates the queues.
+	 * Rates are max numbers of requests per minute (0 means unlimited).
+	 */
+	public AccountQueues(final int maxQueued, final int accountRatePerMinute, final int providerRatePerMinute) {
+		this.maxQueued = maxQueued;
+		this.accountRatePerMinute = accountRatePerMinute;
+		this.providerRatePerMinute = providerRatePerMinute;
+	}
+
+	/**
+	 * Runs the job in the queue of the account, waiting for the earlier jobs and for the rate limits.
+	 * Throws QueueFullException without running the job if too many jobs of the account are waiting.
+	 */
+	public void run(final String provider, final String username, final Job job) throws IOException {
+		final Queue queue = getQueue(provider + ":" + username);
+		synchronized (queue) {
+			if (queue.queued >= maxQueued) {
+				throw new QueueFullException("too many jobs queued for the account");
+			}
+			queue.queued++;
+		}
+		try {
+			queue.lock.lockInterruptibly();
+			try {
+				// an interrupted job gives its tokens back, so it does not use up the limits of others
+				TokenBucket.acquire(getProviderBucket(provider), queue.bucket, false);
+				job.run();
+			} finally {
+				queue.lock.unlock();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting in the account queue");
+		} finally {
+			synchronized (queue) {
+				queue.queued--;
+			}
+		}
+	}
+
+
+	private Queue getQueue(final String key) {
+		synchronized (queues) {
+			Queue queue = queues.get(key);
+			if (queue == null) {
+				queue = new Queue(accountRatePerMinute > 0 ? new TokenBucket(accountRatePerMinute, ACCOUNT_BURST) : null);
+				queues.put(key, queue);
+			}
+			return queue;
+		}
+	}
+
+	private TokenBucket getProviderBucket(final String provider) {
+		if (providerRatePerMinute <= 0) {
+			return null;
+		}
+		synchronized (providerBuckets) {
+			TokenBucket bucket = providerBuckets.get(provider);
+			if (bucket == null) {
+				bucket = new TokenBucket(providerRatePerMinute, PROVIDER_BURST);
+				providerBuckets.put(provider, bucket);
+			}
+			return bucket;
+		}
+	}
+
+	/**
+	 * Queue of one account. Kept for the life of the relay, so the account's rate limit survives idle periods.
+	 */
+	private static class Queue {
+		// fair, so jobs run in arrival order
+		final ReentrantLock lock = new ReentrantLock(true);
+		final TokenBucket bucket;
+		// number of jobs waiting or running, guarded by the queue
+		int queued;
+
+		Queue(final TokenBucket bucket) {
+			this.bucket = bucket;
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Relay service that runs the gateway exchanges of many phones, and a local stand-in gateway to test it with.
+ * 
+ * Usage:
+ *   relay <port> <gateway url> [<vodafone gateway url>]
+ *                                  - relays requests of the connector (set http://host:port/send.php
+ *                                    as the custom gateway URL) to the gateway
+ *   gateway <port> [latency ms]    - runs the stand-in gateway at http://localhost:port/send.php
+ * 
+ * Relay limits are set with system properties:
+ *   cabbage.relay.accountRate   - max requests per minute for an account (default unlimited)
+ *   cabbage.relay.providerRate  - max requests per minute for a provider, over all accounts (default unlimited)
+ *   cabbage.relay.maxQueued     - max jobs waiting for an account (default 20)
+ *   http.maxConnections         - max kept-alive connections to the gateway (default 32)
+ */
+public class CabbageRelay {
+
+	// Defaults of the relay limits
+	private static final int DEFAULT_ACCOUNT_RATE = 0;
+	private static final int DEFAULT_PROVIDER_RATE = 0;
+	private static final int DEFAULT_MAX_QUEUED = 20;
+	private static final String DEFAULT_MAX_CONNECTIONS = "32";
+
+	// Timeout for connecting to and reading from the gateway
+	private static final int CONN_TIMEOUT_MS = 60000;
+
+	// Max number of connections waiting to be accepted
+	private static final int BACKLOG = 128;
+
+	public static void main(final String[] args) throws IOException {
+		if ((args.length == 3 || args.length == 4) && args[0].equals("relay")) {
+			if (System.getProperty("http.maxConnections") == null) {
+				System.setProperty("http.maxConnections", DEFAULT_MAX_CONNECTIONS);
+			}
+			final AccountQueues queues = new AccountQueues(
+					Integer.getInteger("cabbage.relay.maxQueued", DEFAULT_MAX_QUEUED),
+					Integer.getInteger("cabbage.relay.accountRate", DEFAULT_ACCOUNT_RATE),
+					Integer.getInteger("cabbage.relay.providerRate", DEFAULT_PROVIDER_RATE));
+			serve(Integer.parseInt(args[1]), new RelayHandler(args[2], args.length == 4 ? args[3] : null,
+					new JdkGatewayTransport(CONN_TIMEOUT_MS), queues));
+			System.out.println("relaying to " + args[2] + " on port " + args[1]);
+
+		} else if ((args.length == 2 || args.length == 3) && args[0].equals("gateway")) {
+			serve(Integer.parseInt(args[1]), new StandInGateway(args.length == 3 ? Long.parseLong(args[2]) : 0));
+			System.out.println("stand-in gateway on port " + args[1]);
+
+		} else {
+			System.err.println("usage: relay <port> <gateway url> [<vodafone gateway url>]");
+			System.err.println("       gateway <port> [latency ms]");
+			System.exit(1);
+		}
+	}
+
+
+	private static void serve(final int port, final HttpHandler handler) throws IOException {
+		final HttpServer server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+		server.createContext("/", handler);
+		server.setExecutor(newExecutor());
+		server.start();
+	}
+
+	/**
+	 * Returns an executor with a thread per exchange, as exchanges mostly wait for the gateway or the queues.
+	 * Uses virtual threads when the JVM has them (Java 21 and later).
+	 */
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+}
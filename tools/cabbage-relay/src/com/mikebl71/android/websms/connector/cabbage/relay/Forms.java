@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageProtocol;
+import com.mikebl71.android.websms.connector.cabbage.core.ContentCodings;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Encoding of form posts (application/x-www-form-urlencoded), stream helpers and responses.
+ */
+public class Forms {
+
+	// Content type of form posts
+	public static final String CONTENT_TYPE = "application/x-www-form-urlencoded; charset=" + CabbageProtocol.ENCODING;
+
+	// Size of the buffer for reading streams
+	private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+	// Response coding used when the client accepts it
+	private static final String GZIP = "gzip";
+
+
+	/**
+	 * Encodes the parameters as a form post body.
+	 */
+	public static byte[] encode(final Map<String, String> params) throws IOException {
+		final StringBuilder body = new StringBuilder();
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			if (body.length() > 0) {
+				body.append('&');
+			}
+			body.append(URLEncoder.encode(param.getKey(), CabbageProtocol.ENCODING)).append('=');
+			if (param.getValue() != null) {
+				body.append(URLEncoder.encode(param.getValue(), CabbageProtocol.ENCODING));
+			}
+		}
+		return body.toString().getBytes(CabbageProtocol.ENCODING);
+	}
+
+	/**
+	 * Decodes a form post body (or a query string) into parameters, keeping their order.
+	 */
+	public static Map<String, String> decode(final String body) throws IOException {
+		final Map<String, String> params = new LinkedHashMap<String, String>();
+		if (body != null && body.length() > 0) {
+			for (String param : body.split("&")) {
+				final int eqIdx = param.indexOf('=');
+				final String name = eqIdx >= 0 ? param.substring(0, eqIdx) : param;
+				final String value = eqIdx >= 0 ? param.substring(eqIdx + 1) : "";
+				if (name.length() > 0) {
+					params.put(URLDecoder.decode(name, CabbageProtocol.ENCODING),
+							URLDecoder.decode(value, CabbageProtocol.ENCODING));
+				}
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Reads the stream to the end and closes it.
+	 */
+	public static byte[] read(final InputStream in) throws IOException {
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(READ_BUFFER_SIZE);
+			final byte[] buf = new byte[READ_BUFFER_SIZE];
+			int len;
+			while ((len = in.read(buf)) != -1) {
+				out.write(buf, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Sends the response and closes the exchange's output.
+	 * The body is gzip-compressed if the client accepts it and it gets smaller that way.
+	 */
+	public static void reply(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+		byte[] content = body;
+		final String acceptEncoding = exchange.getRequestHeaders().getFirst(ContentCodings.HEADER_ACCEPT_ENCODING);
+		if (body.length > 0 && acceptEncoding != null && acceptEncoding.contains(GZIP)) {
+			final ByteArrayOutputStream gzipped = new ByteArrayOutputStream(body.length);
+			final GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+			gzip.write(body);
+			gzip.close();
+			if (gzipped.size() < body.length) {
+				content = gzipped.toByteArray();
+				exchange.getResponseHeaders().set(ContentCodings.HEADER_CONTENT_ENCODING, GZIP);
+			}
+		}
+
+		exchange.sendResponseHeaders(status, content.length > 0 ? content.length : -1);
+		if (content.length > 0) {
+			final OutputStream out = exchange.getResponseBody();
+			out.write(content);
+			out.close();
+		}
+	}
+
+}
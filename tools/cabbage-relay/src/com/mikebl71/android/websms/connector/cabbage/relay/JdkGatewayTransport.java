@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.relay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+
+import com.mikebl71.android.websms.connector.cabbage.core.ContentCodings;
+import com.mikebl71.android.websms.connector.cabbage.core.GatewayTransport;
+
+/**
+ * Gateway transport over HttpURLConnection.
+ * Connections are not disconnected after a fully read response, so the JDK keeps them alive in its
+ * pool shared by all accounts (sized by the "http.maxConnections" system property).
+ * Responses are requested compressed and decoded while they are read.
+ * Failures to connect are thrown as ConnectException (or UnknownHostException), so they can be told
+ * from failures after the request may have reached the gateway.
+ */
+public class JdkGatewayTransport implements GatewayTransport {
+
+	private final int timeoutMs;
+
+
+	public JdkGatewayTransport(final int timeoutMs) {
+		this.timeoutMs = timeoutMs;
+	}
+
+	public Response post(final String url, final Map<String, String> params) throws IOException {
+		final byte[] request = Forms.encode(params);
+
+		final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setConnectTimeout(timeoutMs);
+		conn.setReadTimeout(timeoutMs);
+		conn.setDoOutput(true);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Content-Type", Forms.CONTENT_TYPE);
+		conn.setRequestProperty(ContentCodings.HEADER_ACCEPT_ENCODING, ContentCodings.ACCEPT_ENCODING);
+		conn.setFixedLengthStreamingMode(request.length);
+
+		try {
+			conn.connect();
+		} catch (SocketTimeoutException e) {
+			final ConnectException connectFailure = new ConnectException("connect timed out: " + url);
+			connectFailure.initCause(e);
+			throw connectFailure;
+		}
+
+		final OutputStream out = conn.getOutputStream();
+		try {
+			out.write(request);
+		} finally {
+			out.close();
+		}
+
+		final int status = conn.getResponseCode();
+		final InputStream in = status < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream()
+				: conn.getErrorStream();
+		return new Response(status, in != null ? Forms.read(ContentCodings.decode(in, conn.getContentEncoding()))
+				: new byte[0]);
+	}
+
+}
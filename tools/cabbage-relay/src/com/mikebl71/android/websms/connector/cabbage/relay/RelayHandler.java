@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.relay;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Map;
+
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageClient;
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageProtocol;
+import com.mikebl71.android.websms.connector.cabbage.core.GatewayError;
+import com.mikebl71.android.websms.connector.cabbage.core.GatewayTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Relays requests of the connector to the gateway.
+ * 
+ * Speaks the gateway protocol on both sides, so the phone only needs the relay set as its custom gateway URL.
+ * Each request is parsed and run with the same CabbageClient as on the phone, in the queue of its account,
+ * and the outcome is written back in the gateway format:
+ * the balance, a negative error code, new session cookies or a captcha image.
+ * A request that could not reach the gateway is answered with 502 (503 if the account's queue is full),
+ * which the phone may retry; any other failure leaves the outcome open and is answered with 504,
+ * which the phone does not retry, so a slow gateway cannot turn into messages sent twice.
+ */
+public class RelayHandler implements HttpHandler {
+
+	// Account id used with the per-request configuration
+	private static final String ACC_ID = "relayed";
+
+	// Response to a gateway response that cannot be parsed (the phone reports it as unexpected)
+	private static final String UNEXPECTED_RESPONSE = "unexpected response";
+
+	private final String gatewayUrl;
+	private final String vodafoneGatewayUrl;
+	private final GatewayTransport transport;
+	private final AccountQueues queues;
+
+
+	public RelayHandler(final String gatewayUrl, final String vodafoneGatewayUrl, final GatewayTransport transport,
+			final AccountQueues queues) {
+		this.gatewayUrl = gatewayUrl;
+		this.vodafoneGatewayUrl = vodafoneGatewayUrl;
+		this.transport = transport;
+		this.queues = queues;
+	}
+
+	public void handle(final HttpExchange exchange) throws IOException {
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				Forms.reply(exchange, HttpURLConnection.HTTP_BAD_METHOD, new byte[0]);
+				return;
+			}
+			final Map<String, String> params = Forms.decode(
+					new String(Forms.read(exchange.getRequestBody()), CabbageProtocol.ENCODING));
+			final String provider = params.get(CabbageProtocol.PARAM_PROVIDER);
+			final String username = params.get(CabbageProtocol.PARAM_USERNAME);
+			if (provider == null || username == null) {
+				Forms.reply(exchange, HttpURLConnection.HTTP_BAD_REQUEST, new byte[0]);
+				return;
+			}
+
+			final byte[][] result = new byte[1][];
+			queues.run(provider, username, new AccountQueues.Job() {
+				public void run() throws IOException {
+					result[0] = relay(params);
+				}
+			});
+			Forms.reply(exchange, HttpURLConnection.HTTP_OK, result[0]);
+
+		} catch (GatewayError e) {
+			if (e.isHttpError()) {
+				Forms.reply(exchange, e.getCode(), new byte[0]);
+			} else if (e.getCode() == GatewayError.CODE_UNEXPECTED_RESPONSE) {
+				Forms.reply(exchange, HttpURLConnection.HTTP_OK,
+						UNEXPECTED_RESPONSE.getBytes(CabbageProtocol.ENCODING));
+			} else {
+				Forms.reply(exchange, HttpURLConnection.HTTP_OK,
+						String.valueOf(e.getCode()).getBytes(CabbageProtocol.ENCODING));
+			}
+		} catch (AccountQueues.QueueFullException e) {
+			Forms.reply(exchange, HttpURLConnection.HTTP_UNAVAILABLE, new byte[0]);
+		} catch (IOException e) {
+			System.err.println("relay failed: " + e);
+			Forms.reply(exchange, isConnectFailure(e) ? HttpURLConnection.HTTP_BAD_GATEWAY
+					: HttpURLConnection.HTTP_GATEWAY_TIMEOUT, new byte[0]);
+		} finally {
+			exchange.close();
+		}
+	}
+
+
+	/**
+	 * Runs the request against the gateway and returns the response for the phone.
+	 */
+	private byte[] relay(final Map<String, String> params) throws IOException {
+		final RequestConfig config = new RequestConfig(gatewayUrl, vodafoneGatewayUrl, params);
+		final CabbageClient client = new CabbageClient(config, transport);
+
+		if (params.containsKey(CabbageProtocol.PARAM_PRINT)) {
+			return client.fetchCaptcha(ACC_ID);
+		}
+
+		final String balance = client.exchange(ACC_ID, params.get(CabbageProtocol.PARAM_TEXT),
+				params.get(CabbageProtocol.PARAM_RECIPIENTS), params.get(CabbageProtocol.PARAM_CAPTCHA_ANSWER));
+		final String response = balance != null ? balance
+				: CabbageProtocol.formatSessionCookies(config.getCookies(ACC_ID));
+		return response.getBytes(CabbageProtocol.ENCODING);
+	}
+
+	/**
+	 * Checks if the I/O error means that the request could not reach the gateway.
+	 */
+	private static boolean isConnectFailure(final IOException e) {
+		return e instanceof ConnectException || e instanceof UnknownHostException
+				|| e instanceof NoRouteToHostException;
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.relay;
+
+import java.util.Map;
+
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageProtocol;
+import com.mikebl71.android.websms.connector.cabbage.core.GatewayConfig;
+
+/**
+ * Gateway configuration of the single account whose credentials and session cookies come with a relayed request.
+ * The relay keeps no accounts: new session cookies go back to the phone in the response.
+ */
+public class RequestConfig implements GatewayConfig {
+
+	private final String gatewayUrl;
+	private final String vodafoneGatewayUrl;
+	private final Map<String, String> params;
+	private String cookies;
+
+
+	public RequestConfig(final String gatewayUrl, final String vodafoneGatewayUrl, final Map<String, String> params) {
+		this.gatewayUrl = gatewayUrl;
+		this.vodafoneGatewayUrl = vodafoneGatewayUrl;
+		this.params = params;
+		this.cookies = CabbageProtocol.extractCookies(params);
+	}
+
+	public String getGatewayUrl(final String provider) {
+		if (CabbageProtocol.PROVIDER_VODAFONE.equals(provider) && vodafoneGatewayUrl != null) {
+			return vodafoneGatewayUrl;
+		}
+		return gatewayUrl;
+	}
+
+	public String getProvider(final String accId) {
+		return params.get(CabbageProtocol.PARAM_PROVIDER);
+	}
+
+	public String getUsername(final String accId) {
+		return params.get(CabbageProtocol.PARAM_USERNAME);
+	}
+
+	public String getPassword(final String accId) {
+		return params.get(CabbageProtocol.PARAM_PASSWORD);
+	}
+
+	public String getCookies(final String accId) {
+		return cookies;
+	}
+
+	public void setCookies(final String accId, final String cookies) {
+		this.cookies = cookies;
+	}
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.relay;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+
+import com.mikebl71.android.websms.connector.cabbage.core.CabbageProtocol;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Local stand-in for Cabbage gateway, for testing the relay and the connector without provider web sites.
+ * 
+ * Any user name is accepted with any non-empty password except "wrong", and starts with a balance of
+ * INITIAL_BALANCE texts. Vodafone sends need a session and the answer to its captcha.
+ * Responses carry a hosting trailer, like the free php hosting sites do.
+ */
+public class StandInGateway implements HttpHandler {
+
+	// Balance of a new account
+	private static final int INITIAL_BALANCE = 300;
+
+	// Password rejected by the provider
+	private static final String WRONG_PASSWORD = "wrong";
+
+	// Trailer added to all pages
+	private static final String TRAILER = "<br/><!-- hosted by stand-in gateway -->";
+
+	// Characters of captcha answers
+	private static final String CAPTCHA_CHARS = "abcdefghijklmnopqrstuvwxyz";
+	private static final int CAPTCHA_LENGTH = 4;
+
+	// Session cookie that identifies the session
+	private static final String COOKIE_JSESSIONID = "JSESSIONID";
+
+	private final long latencyMs;
+	private final Random random = new Random();
+
+	// Balances by provider and user name
+	private final Map<String, Integer> balances = new ConcurrentHashMap<String, Integer>();
+	// Captcha answers by session id
+	private final Map<String, String> sessions = new ConcurrentHashMap<String, String>();
+
+
+	public StandInGateway(final long latencyMs) {
+		this.latencyMs = latencyMs;
+	}
+
+	public void handle(final HttpExchange exchange) throws IOException {
+		try {
+			final Map<String, String> params = Forms.decode(
+					new String(Forms.read(exchange.getRequestBody()), CabbageProtocol.ENCODING));
+			if (latencyMs > 0) {
+				Thread.sleep(latencyMs);
+			}
+			if (params.containsKey(CabbageProtocol.PARAM_PRINT)) {
+				final String answer = sessions.get(String.valueOf(params.get(COOKIE_JSESSIONID)));
+				if (answer == null) {
+					Forms.reply(exchange, HttpURLConnection.HTTP_NOT_FOUND, new byte[0]);
+				} else {
+					Forms.reply(exchange, HttpURLConnection.HTTP_OK, renderCaptcha(answer));
+				}
+			} else {
+				Forms.reply(exchange, HttpURLConnection.HTTP_OK,
+						(send(params) + TRAILER).getBytes(CabbageProtocol.ENCODING));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Forms.reply(exchange, HttpURLConnection.HTTP_UNAVAILABLE, new byte[0]);
+		} finally {
+			exchange.close();
+		}
+	}
+
+
+	/**
+	 * Handles a send or balance request and returns the response (without the trailer).
+	 */
+	private String send(final Map<String, String> params) {
+		final String provider = params.get(CabbageProtocol.PARAM_PROVIDER);
+		final String username = params.get(CabbageProtocol.PARAM_USERNAME);
+		final String password = params.get(CabbageProtocol.PARAM_PASSWORD);
+		if (provider == null || provider.length() == 0) {
+			return String.valueOf(-CabbageProtocol.ERR_EMPTY_PROVIDER);
+		} else if (username == null || username.length() == 0) {
+			return String.valueOf(-CabbageProtocol.ERR_EMPTY_USERNAME);
+		} else if (password == null || password.length() == 0) {
+			return String.valueOf(-CabbageProtocol.ERR_EMPTY_PASSWORD);
+		} else if (password.equals(WRONG_PASSWORD)) {
+			return String.valueOf(-CabbageProtocol.ERR_LOGIN_FAILED);
+		}
+
+		final String text = params.get(CabbageProtocol.PARAM_TEXT);
+		if (text != null && CabbageProtocol.PROVIDER_VODAFONE.equals(provider)) {
+			final String answer = sessions.remove(String.valueOf(params.get(COOKIE_JSESSIONID)));
+			if (answer == null || !answer.equals(params.get(CabbageProtocol.PARAM_CAPTCHA_ANSWER))) {
+				return newSession();
+			}
+		}
+
+		final String key = provider + ":" + username;
+		synchronized (balances) {
+			final Integer balance = balances.get(key);
+			int newBalance = balance != null ? balance : INITIAL_BALANCE;
+			if (text != null) {
+				final int texts = params.get(CabbageProtocol.PARAM_RECIPIENTS).split(",").length;
+				if (texts > newBalance) {
+					return String.valueOf(-CabbageProtocol.ERR_TEXTS_EXCEEDED);
+				}
+				newBalance -= texts;
+			}
+			balances.put(key, newBalance);
+			return String.valueOf(newBalance);
+		}
+	}
+
+	/**
+	 * Starts a new session with a new captcha and returns its cookies in the gateway format.
+	 */
+	private String newSession() {
+		final String sessionId = Long.toHexString(random.nextLong());
+		final StringBuilder answer = new StringBuilder();
+		for (int idx = 0; idx < CAPTCHA_LENGTH; idx++) {
+			answer.append(CAPTCHA_CHARS.charAt(random.nextInt(CAPTCHA_CHARS.length())));
+		}
+		sessions.put(sessionId, answer.toString());
+		return COOKIE_JSESSIONID + "=" + sessionId + "<br/>supercookie=" + Long.toHexString(random.nextLong()) + "<br/>";
+	}
+
+	private static byte[] renderCaptcha(final String answer) throws IOException {
+		final BufferedImage image = new BufferedImage(120, 40, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D graphics = image.createGraphics();
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+		graphics.setColor(Color.BLACK);
+		graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 28));
+		graphics.drawString(answer, 20, 30);
+		graphics.dispose();
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+
+}
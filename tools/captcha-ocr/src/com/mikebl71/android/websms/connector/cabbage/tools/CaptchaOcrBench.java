@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2013 Mikhail Blinov
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mikebl71.android.websms.connector.cabbage.tools;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import com.mikebl71.android.websms.connector.cabbage.CaptchaOcr;
+import com.mikebl71.android.websms.connector.cabbage.GlyphTemplates;
+
+/**
+ * Offline trainer and benchmark for the built-in captcha recognizer.
+ * 
+ * A corpus is a directory of saved captcha images named after their answers,
+ * e.g. "abcd.png" or "abcd_2.png" (anything after an underscore is ignored).
+ * 
+ * Usage:
+ *   train <corpus dir> <templates file>   - trains templates, to be bundled as assets/captcha_templates.bin
+ *   render <templates file>               - renders templates from desktop fonts, like the app does without assets
+ *   bench <corpus dir> <templates file> [min confidence]
+ *                                         - reports accuracy and latency of the recognizer on the corpus
+ */
+public class CaptchaOcrBench {
+
+	// Default confidence threshold, same as the app's
+	private static final double DEFAULT_MIN_CONFIDENCE = 0.6;
+
+	// Number of passes over the corpus before measuring, to let the JIT warm up
+	private static final int WARMUP_PASSES = 2;
+
+	public static void main(final String[] args) throws IOException {
+		if (args.length == 3 && args[0].equals("train")) {
+			train(new File(args[1]), new File(args[2]));
+		} else if (args.length == 2 && args[0].equals("render")) {
+			write(render(), new File(args[1]));
+		} else if ((args.length == 3 || args.length == 4) && args[0].equals("bench")) {
+			final double minConfidence = args.length == 4 ? Double.parseDouble(args[3]) : DEFAULT_MIN_CONFIDENCE;
+			bench(new File(args[1]), read(new File(args[2])), minConfidence);
+		} else {
+			System.err.println("usage: train <corpus dir> <templates file>");
+			System.err.println("       render <templates file>");
+			System.err.println("       bench <corpus dir> <templates file> [min confidence]");
+			System.exit(1);
+		}
+	}
+
+
+	private static void train(final File corpusDir, final File templatesFile) throws IOException {
+		final List<Sample> samples = loadCorpus(corpusDir);
+		final GlyphTemplates templates = new GlyphTemplates(CaptchaOcr.FEATURE_LENGTH);
+		int used = 0;
+		for (Sample sample : samples) {
+			final List<float[]> glyphs = CaptchaOcr.extractGlyphs(sample.pixels, sample.width, sample.height,
+					sample.answer.length());
+			if (glyphs != null) {
+				for (int idx = 0; idx < glyphs.size(); idx++) {
+					templates.addSample(sample.answer.charAt(idx), glyphs.get(idx));
+				}
+				used++;
+			}
+		}
+		templates.finishTraining();
+		write(templates, templatesFile);
+		System.out.println("trained " + templates.size() + " templates from " + used + " of " + samples.size()
+				+ " captchas");
+	}
+
+	private static GlyphTemplates render() {
+		final int width = 48;
+		final int height = 64;
+		final GlyphTemplates templates = new GlyphTemplates(CaptchaOcr.FEATURE_LENGTH);
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		final Graphics2D graphics = image.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		final int[] pixels = new int[width * height];
+		for (String family : new String[] { Font.SANS_SERIF, Font.SERIF, Font.MONOSPACED }) {
+			graphics.setFont(new Font(family, Font.PLAIN, 40));
+			for (char ch = 'a'; ch <= 'z'; ch++) {
+				graphics.setColor(Color.WHITE);
+				graphics.fillRect(0, 0, width, height);
+				graphics.setColor(Color.BLACK);
+				graphics.drawString(String.valueOf(ch), width / 4, height * 3 / 4);
+				image.getRGB(0, 0, width, height, pixels, 0, width);
+				final List<float[]> glyphs = CaptchaOcr.extractGlyphs(pixels, width, height, 1);
+				if (glyphs != null) {
+					templates.add(ch, glyphs.get(0));
+				}
+			}
+		}
+		graphics.dispose();
+		return templates;
+	}
+
+	private static void bench(final File corpusDir, final GlyphTemplates templates, final double minConfidence)
+			throws IOException {
+		final List<Sample> samples = loadCorpus(corpusDir);
+		final CaptchaOcr ocr = new CaptchaOcr(templates);
+
+		for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+			for (Sample sample : samples) {
+				ocr.solve(sample.pixels, sample.width, sample.height);
+			}
+		}
+
+		final long[] latencies = new long[samples.size()];
+		int segmented = 0;
+		int correct = 0;
+		int confident = 0;
+		int confidentCorrect = 0;
+		int chars = 0;
+		int correctChars = 0;
+		for (int idx = 0; idx < samples.size(); idx++) {
+			final Sample sample = samples.get(idx);
+			final long startNanos = System.nanoTime();
+			final CaptchaOcr.Result result = ocr.solve(sample.pixels, sample.width, sample.height);
+			latencies[idx] = System.nanoTime() - startNanos;
+
+			chars += sample.answer.length();
+			if (result == null) {
+				continue;
+			}
+			segmented++;
+			final String text = result.getText();
+			final boolean isCorrect = text.equals(sample.answer);
+			if (isCorrect) {
+				correct++;
+			}
+			if (result.getConfidence() >= minConfidence) {
+				confident++;
+				if (isCorrect) {
+					confidentCorrect++;
+				}
+			}
+			for (int pos = 0; pos < Math.min(text.length(), sample.answer.length()); pos++) {
+				if (text.charAt(pos) == sample.answer.charAt(pos)) {
+					correctChars++;
+				}
+			}
+		}
+
+		Arrays.sort(latencies);
+		long totalNanos = 0;
+		for (long latency : latencies) {
+			totalNanos += latency;
+		}
+		final int count = samples.size();
+		System.out.println("captchas:              " + count);
+		System.out.println("segmented:             " + percent(segmented, count));
+		System.out.println("answers correct:       " + percent(correct, count));
+		System.out.println("characters correct:    " + percent(correctChars, chars));
+		System.out.println("confident (>= " + minConfidence + "): " + percent(confident, count)
+				+ ", of them correct: " + percent(confidentCorrect, confident));
+		if (count > 0) {
+			System.out.println(String.format("latency ms: mean %.2f, p50 %.2f, p95 %.2f, max %.2f",
+					totalNanos / 1e6 / count, latencies[count / 2] / 1e6,
+					latencies[Math.min(count - 1, count * 95 / 100)] / 1e6, latencies[count - 1] / 1e6));
+		}
+	}
+
+	private static String percent(final int part, final int whole) {
+		return whole > 0 ? String.format("%d (%.1f%%)", part, 100.0 * part / whole) : "0";
+	}
+
+	private static List<Sample> loadCorpus(final File corpusDir) throws IOException {
+		final File[] files = corpusDir.listFiles();
+		if (files == null) {
+			throw new IOException("not a directory: " + corpusDir);
+		}
+		Arrays.sort(files);
+		final List<Sample> samples = new ArrayList<Sample>();
+		for (File file : files) {
+			final String name = file.getName();
+			final int dot = name.lastIndexOf('.');
+			if (dot <= 0) {
+				continue;
+			}
+			final BufferedImage image = ImageIO.read(file);
+			if (image == null) {
+				continue;
+			}
+			final int underscore = name.indexOf('_');
+			final String answer = name.substring(0, underscore > 0 ? underscore : dot).toLowerCase();
+			final int width = image.getWidth();
+			final int height = image.getHeight();
+			final int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+			samples.add(new Sample(answer, pixels, width, height));
+		}
+		return samples;
+	}
+
+	private static GlyphTemplates read(final File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			return GlyphTemplates.read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(final GlyphTemplates templates, final File file) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			templates.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * A captcha image with its answer.
+	 */
+	private static class Sample {
+		private final String answer;
+		private final int[] pixels;
+		private final int width;
+		private final int height;
+
+		Sample(final String answer, final int[] pixels, final int width, final int height) {
+			this.answer = answer;
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+}